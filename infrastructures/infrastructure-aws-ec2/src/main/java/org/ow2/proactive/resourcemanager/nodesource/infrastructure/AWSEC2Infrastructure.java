@@ -38,10 +38,10 @@ package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.objectweb.proactive.core.ProActiveException;
@@ -49,6 +49,7 @@ import org.objectweb.proactive.core.node.Node;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import org.ow2.proactive.resourcemanager.exception.RMException;		
 import org.ow2.proactive.resourcemanager.nodesource.common.Configurable;		
@@ -63,6 +64,10 @@ public class AWSEC2Infrastructure extends InfrastructureManager {
 
     private static final Logger logger = Logger.getLogger(AWSEC2Infrastructure.class);
 
+    private static final int DEFAULT_BOOTSTRAP_CONCURRENCY = 10;
+
+    private static final int DEFAULT_MAX_INSTANCE_REPLACEMENTS = 3;
+
     @Configurable(description = "The AWS_AKEY")
     protected String aws_key = null;
 
@@ -105,21 +110,54 @@ public class AWSEC2Infrastructure extends InfrastructureManager {
     @Configurable(description = "Subnet and VPC")
     protected String subnetId = null;
 
+    @Configurable(description = "Maximum number of instances bootstrapped at the same time")
+    protected int bootstrapConcurrency = DEFAULT_BOOTSTRAP_CONCURRENCY;
+
+    @Configurable(description = "Number of instances kept booted and ready for new nodes (0 to disable)")
+    protected int warmPoolSize = 0;
+
+    @Configurable(description = "Seconds an instance without nodes is kept for new nodes (0 to disable)")
+    protected int idleInstanceTimeout = 0;
+
+    @Configurable(description = "Seconds per billing period, bounds the idle retention (0 to ignore)")
+    protected int billingPeriod = 0;
+
+    @Configurable(description = "Seconds given to the nodes of an instance to register (0 to disable)")
+    protected int nodeRegistrationTimeout = 0;
+
+    @Configurable(description = "Maximum number of times an instance whose nodes never register is replaced")
+    protected int maxInstanceReplacements = DEFAULT_MAX_INSTANCE_REPLACEMENTS;
+
     protected ConnectorIaasController connectorIaasController = null;
 
-    protected final Map<String, Set<String>> nodesPerInstances;
+    protected WarmInstancePool warmInstancePool = null;
+
+    protected final NodesPerInstances nodesPerInstances;
+
+    protected final DeployingInstances deployingInstances;
+
+    protected final FleetSize fleetSize;
+
+    // numbers the acquisitions, whose instances are tagged apart from the instances already there
+    private final AtomicInteger acquisitionsCount = new AtomicInteger();
+
+    // tells the tags of this run of the node source apart from the tags of an earlier run, whose
+    // instances may still exist and would otherwise be reused as the counter starts again at 1
+    protected final String tagsNonce = Long.toString(System.currentTimeMillis(), 36);
 
     /**
      * Default constructor
      */
     public AWSEC2Infrastructure() {
-        nodesPerInstances = Maps.newConcurrentMap();
+        nodesPerInstances = new NodesPerInstances();
+        deployingInstances = new DeployingInstances();
+        fleetSize = new FleetSize();
     }
 
     @Override
     public void configure(Object... parameters) {
 
-        logger.info("Validating parameters : " + parameters);
+        logger.info("Validating parameters");
         validate(parameters);
 
         this.aws_key = parameters[0].toString().trim();
@@ -136,6 +174,24 @@ public class AWSEC2Infrastructure extends InfrastructureManager {
         this.spotPrice = parameters[11].toString().trim();
         this.securityGroupNames = parameters[12].toString().trim();
         this.subnetId = parameters[13].toString().trim();
+        if (parameters.length > 14) {
+            this.bootstrapConcurrency = Integer.parseInt(parameters[14].toString().trim());
+        }
+        if (parameters.length > 15) {
+            this.warmPoolSize = Integer.parseInt(parameters[15].toString().trim());
+        }
+        if (parameters.length > 16) {
+            this.idleInstanceTimeout = Integer.parseInt(parameters[16].toString().trim());
+        }
+        if (parameters.length > 17) {
+            this.billingPeriod = Integer.parseInt(parameters[17].toString().trim());
+        }
+        if (parameters.length > 18) {
+            this.nodeRegistrationTimeout = Integer.parseInt(parameters[18].toString().trim());
+        }
+        if (parameters.length > 19) {
+            this.maxInstanceReplacements = Integer.parseInt(parameters[19].toString().trim());
+        }
 
         connectorIaasController = new ConnectorIaasController(connectorIaasURL, INFRASTRUCTURE_TYPE);
 
@@ -203,41 +259,148 @@ public class AWSEC2Infrastructure extends InfrastructureManager {
             parameters[13] = "";
         }
 
+        if (parameters.length > 14 && parameters[14] == null) {
+            parameters[14] = DEFAULT_BOOTSTRAP_CONCURRENCY;
+        }
+
+        if (parameters.length > 15 && parameters[15] == null) {
+            parameters[15] = 0;
+        }
+
+        if (parameters.length > 16 && parameters[16] == null) {
+            parameters[16] = 0;
+        }
+
+        if (parameters.length > 17 && parameters[17] == null) {
+            parameters[17] = 0;
+        }
+
+        if (parameters.length > 18 && parameters[18] == null) {
+            parameters[18] = 0;
+        }
+
+        if (parameters.length > 19 && parameters[19] == null) {
+            parameters[19] = DEFAULT_MAX_INSTANCE_REPLACEMENTS;
+        }
+
     }
 
+    /**
+     * Adds one instance to the node source, unless it already has {@link #numberOfInstances}.
+     */
     @Override
     public void acquireNode() {
+        growFleet(1);
+    }
+
+    /**
+     * Adds the instances the node source lacks to have {@link #numberOfInstances}.
+     */
+    @Override
+    public void acquireAllNodes() {
+        growFleet(numberOfInstances);
+    }
+
+    private void growFleet(int numberOfInstancesToAdd) {
 
         connectorIaasController.waitForConnectorIaasToBeUP();
 
         connectorIaasController.createInfrastructure(getInfrastructureId(), aws_key, aws_secret_key, null,
                 false);
 
-        String instanceTag = getInfrastructureId();
+        connectorIaasController.registerNodeSource(nodeSource.getName(), nodesPerInstances);
+
+        int reserved = fleetSize.reserve(numberOfInstancesToAdd, numberOfInstances);
+        if (reserved == 0) {
+            logger.info("The node source already has its " + numberOfInstances + " instances");
+            return;
+        }
+
+        acquireInstances(reserved, 0);
+
+    }
+
+    /**
+     * @param replacement
+     *            0 when acquiring the requested instances, n when replacing an instance for the n-th
+     *            time because its nodes did not register
+     */
+    private void acquireInstances(int numberOfInstances, int replacement) {
+
+        String instanceTag = getInfrastructureId() + "-" + tagsNonce + "-" +
+            acquisitionsCount.incrementAndGet();
+
+        List<String> warmInstancesIds = getWarmInstancePool().claim(numberOfInstances);
 
         Set<String> instancesIds = Sets.newHashSet();
 
-        if (spotPrice.isEmpty() && securityGroupNames.isEmpty() && subnetId.isEmpty()) {
-            instancesIds = connectorIaasController.createInstances(getInfrastructureId(), instanceTag, image,
-                    numberOfInstances, cores, ram);
-        } else {
-            instancesIds = connectorIaasController.createInstancesWithOptions(getInfrastructureId(),
-                    instanceTag, image, numberOfInstances, cores, ram, spotPrice, securityGroupNames, subnetId, null);
+        long start = System.currentTimeMillis();
+
+        if (warmInstancesIds.size() < numberOfInstances) {
+            int numberOfInstancesToCreate = numberOfInstances - warmInstancesIds.size();
+            try {
+                if (spotPrice.isEmpty() && securityGroupNames.isEmpty() && subnetId.isEmpty()) {
+                    instancesIds = connectorIaasController.createInstances(getInfrastructureId(), instanceTag,
+                            image, numberOfInstancesToCreate, cores, ram);
+                } else {
+                    instancesIds = connectorIaasController.createInstancesWithOptions(getInfrastructureId(),
+                            instanceTag, image, numberOfInstancesToCreate, cores, ram, spotPrice,
+                            securityGroupNames, subnetId, null);
+                }
+            } catch (RuntimeException e) {
+                fleetSize.release(numberOfInstancesToCreate);
+                throw e;
+            }
+            fleetSize.release(Math.max(0, numberOfInstancesToCreate - instancesIds.size()));
         }
 
+        Map<String, List<String>> scriptsPerInstance = Maps.newHashMap();
+
         for (String instanceId : instancesIds) {
 
             List<String> scripts = Lists.newArrayList(this.downloadCommand,
                     "nohup " + generateDefaultStartNodeCommand(instanceId) + "  &");
 
-            connectorIaasController.executeScript(getInfrastructureId(), instanceId, scripts);
+            scriptsPerInstance.put(instanceId, scripts);
         }
 
+        // node.jar was downloaded when the warm instances were parked
+        for (String instanceId : warmInstancesIds) {
+            scriptsPerInstance.put(instanceId,
+                    Lists.newArrayList("nohup " + generateDefaultStartNodeCommand(instanceId) + "  &"));
+        }
+
+        nodesPerInstances.addPendingInstances(scriptsPerInstance.keySet());
+
+        for (String instanceId : scriptsPerInstance.keySet()) {
+            addDeployingInstance(instanceId, replacement);
+        }
+
+        Map<String, Throwable> failures = connectorIaasController.waitForScripts(connectorIaasController
+                .executeScriptOnInstances(getInfrastructureId(), scriptsPerInstance, bootstrapConcurrency));
+
+        handleScriptsFailures(failures);
+
+        getWarmInstancePool().recordLaunch(instancesIds, System.currentTimeMillis() - start);
+
     }
 
-    @Override
-    public void acquireAllNodes() {
-        acquireNode();
+    /**
+     * Terminates the instances on which the node could not be started, and gives their room back so
+     * that they can be acquired again.
+     */
+    private void handleScriptsFailures(Map<String, Throwable> failures) {
+        nodesPerInstances.removePendingInstances(failures.keySet());
+        for (Map.Entry<String, Throwable> failure : failures.entrySet()) {
+            String instanceId = failure.getKey();
+            String deployingNode = deployingInstances.removeByInstance(instanceId);
+            if (deployingNode != null) {
+                declareDeployingNodeLost(deployingNode,
+                        "The node could not be started on the instance: " + failure.getValue().getMessage());
+            }
+            connectorIaasController.queueInstanceTermination(getInfrastructureId(), instanceId);
+            fleetSize.release(1);
+        }
     }
 
     @Override
@@ -252,15 +415,18 @@ public class AWSEC2Infrastructure extends InfrastructureManager {
             logger.warn(e);
         }
 
-        synchronized (this) {
-            nodesPerInstances.get(instanceId).remove(node.getNodeInformation().getName());
-            logger.info("Removed node : " + node.getNodeInformation().getName());
+        boolean lastNodeOfInstance = nodesPerInstances.removeNode(instanceId,
+                node.getNodeInformation().getName());
+        logger.info("Removed node : " + node.getNodeInformation().getName());
 
-            if (nodesPerInstances.get(instanceId).isEmpty()) {
-                connectorIaasController.terminateInstance(getInfrastructureId(), instanceId);
-                nodesPerInstances.remove(instanceId);
-                logger.info("Removed instance : " + instanceId);
-            }
+        if (lastNodeOfInstance) {
+            connectorIaasController.traceNodeRemoval(getInfrastructureId(), instanceId);
+            fleetSize.release(1);
+        }
+
+        if (lastNodeOfInstance && !getWarmInstancePool().retain(instanceId)) {
+            connectorIaasController.queueInstanceTermination(getInfrastructureId(), instanceId);
+            logger.info("Removed instance : " + instanceId);
         }
     }
 
@@ -269,11 +435,56 @@ public class AWSEC2Infrastructure extends InfrastructureManager {
 
         String instanceId = getInstanceIdProperty(node);
 
+        nodesPerInstances.addNode(instanceId, node.getNodeInformation().getName());
+
+        connectorIaasController.traceNodeRegistration(getInfrastructureId(), instanceId);
+
+        String deployingNode = deployingInstances.removeByInstance(instanceId);
+        if (deployingNode != null) {
+            internalRemoveDeployingNode(deployingNode);
+        }
+    }
+
+    /**
+     * Terminates the instance whose nodes did not register in time and acquires a replacement in
+     * parallel, unless the instance already replaced {@link #maxInstanceReplacements} others.
+     */
+    @Override
+    protected void notifyDeployingNodeLost(String pnURL) {
+        final DeployingInstances.DeployingInstance instance = deployingInstances.removeByDeployingNode(pnURL);
+        if (instance == null) {
+            return;
+        }
+
+        String instanceId = instance.getInstanceId();
+        logger.warn("The nodes of instance " + instanceId + " did not register in time, terminating it");
+        nodesPerInstances.removePendingInstances(Sets.newHashSet(instanceId));
+        connectorIaasController.queueInstanceTermination(getInfrastructureId(), instanceId);
+
+        if (instance.getReplacement() >= maxInstanceReplacements) {
+            logger.error("Instance " + instanceId + " was replacement number " +
+                instance.getReplacement() + ", giving up replacing it");
+            fleetSize.release(1);
+            return;
+        }
+
+        nodeSource.executeInParallel(new Runnable() {
+            @Override
+            public void run() {
+                acquireInstances(1, instance.getReplacement() + 1);
+            }
+        });
+    }
+
+    @Override
+    public void shutDown() {
         synchronized (this) {
-            if (!nodesPerInstances.containsKey(instanceId)) {
-                nodesPerInstances.put(instanceId, new HashSet<String>());
+            if (warmInstancePool != null) {
+                warmInstancePool.close();
             }
-            nodesPerInstances.get(instanceId).add(node.getNodeInformation().getName());
+        }
+        if (connectorIaasController != null) {
+            connectorIaasController.unregisterNodeSource(nodeSource.getName());
         }
     }
 
@@ -326,6 +537,46 @@ public class AWSEC2Infrastructure extends InfrastructureManager {
         }
     }
 
+    private synchronized WarmInstancePool getWarmInstancePool() {
+        if (warmInstancePool == null) {
+            warmInstancePool = new WarmInstancePool(connectorIaasController, getInfrastructureId(),
+                warmPoolSize, idleInstanceTimeout * 1000L, billingPeriod * 1000L,
+                new WarmInstancePool.InstanceFactory() {
+                    @Override
+                    public ListenableFuture<Set<String>> createInstances(String instanceTag,
+                            int numberOfInstances) {
+                        if (spotPrice.isEmpty() && securityGroupNames.isEmpty() && subnetId.isEmpty()) {
+                            return connectorIaasController.createInstancesAsync(getInfrastructureId(),
+                                    instanceTag, image, numberOfInstances, cores, ram);
+                        }
+                        return connectorIaasController.createInstancesWithOptionsAsync(
+                                getInfrastructureId(), instanceTag, image, numberOfInstances, cores, ram,
+                                spotPrice, securityGroupNames, subnetId, null);
+                    }
+
+                    @Override
+                    public Map<String, ListenableFuture<String>> prepareInstances(String instanceTag,
+                            Set<String> instancesIds) {
+                        // the download does not depend on the instance, one script request is enough
+                        return connectorIaasController.executeScriptOnInstancesByTag(getInfrastructureId(),
+                                instanceTag, instancesIds, Lists.newArrayList(downloadCommand),
+                                bootstrapConcurrency);
+                    }
+                });
+        }
+        return warmInstancePool;
+    }
+
+    private void addDeployingInstance(String instanceId, int replacement) {
+        if (nodeRegistrationTimeout <= 0) {
+            return;
+        }
+        String deployingNode = addDeployingNode(instanceId, generateDefaultStartNodeCommand(instanceId),
+                "Waiting for the nodes of instance " + instanceId + " to register",
+                nodeRegistrationTimeout * 1000L);
+        deployingInstances.add(instanceId, deployingNode, replacement);
+    }
+
     private String getInstanceIdProperty(Node node) throws RMException {
         try {
             return node.getProperty(INSTANCE_ID_NODE_PROPERTY);
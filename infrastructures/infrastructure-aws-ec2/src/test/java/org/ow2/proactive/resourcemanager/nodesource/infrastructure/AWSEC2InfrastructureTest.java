@@ -4,14 +4,24 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyList;
-import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.objectweb.proactive.core.ProActiveException;
@@ -22,6 +32,11 @@ import org.ow2.proactive.resourcemanager.exception.RMException;
 import org.ow2.proactive.resourcemanager.nodesource.NodeSource;
 import org.python.google.common.collect.Sets;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+
 
 public class AWSEC2InfrastructureTest {
 
@@ -108,26 +123,158 @@ public class AWSEC2InfrastructureTest {
         when(connectorIaasController.createInfrastructure("node_source_name", "aws_key", "aws_secret_key",
                 null, true)).thenReturn("node_source_name");
 
-        when(connectorIaasController.createInstancesWithOptions("node_source_name", "node_source_name",
-                "aws-image", 2, 1, 512, "0.05", "default","127.0.0.1", null)).thenReturn(Sets.newHashSet("123", "456"));
+        when(connectorIaasController.createInstancesWithOptions("node_source_name", instanceTag(1),
+                "aws-image", 1, 1, 512, "0.05", "default","127.0.0.1", null)).thenReturn(Sets.newHashSet("123"));
+        when(connectorIaasController.createInstancesWithOptions("node_source_name", instanceTag(2),
+                "aws-image", 1, 1, 512, "0.05", "default","127.0.0.1", null)).thenReturn(Sets.newHashSet("456"));
 
         awsec2Infrastructure.acquireNode();
+        awsec2Infrastructure.acquireNode();
+        awsec2Infrastructure.acquireNode();
 
-        verify(connectorIaasController, times(1)).waitForConnectorIaasToBeUP();
+        verify(connectorIaasController, times(3)).waitForConnectorIaasToBeUP();
 
-        verify(connectorIaasController).createInfrastructure("node_source_name", "aws_key", "aws_secret_key",
-                null, false);
+        verify(connectorIaasController, times(3)).createInfrastructure("node_source_name", "aws_key",
+                "aws_secret_key", null, false);
 
-        verify(connectorIaasController).createInstancesWithOptions("node_source_name", "node_source_name",
-                "aws-image", 2, 1, 512, "0.05", "default","127.0.0.1", null);
+        verify(connectorIaasController).createInstancesWithOptions("node_source_name", instanceTag(1),
+                "aws-image", 1, 1, 512, "0.05", "default","127.0.0.1", null);
+        verify(connectorIaasController).createInstancesWithOptions("node_source_name", instanceTag(2),
+                "aws-image", 1, 1, 512, "0.05", "default","127.0.0.1", null);
+
+        ArgumentCaptor<Map> scriptsPerInstance = ArgumentCaptor.forClass(Map.class);
+
+        // the third node would exceed the 2 instances of the node source
+        verify(connectorIaasController, times(2)).executeScriptOnInstances(eq("node_source_name"),
+                scriptsPerInstance.capture(), eq(10));
+
+        assertThat(scriptsPerInstance.getAllValues().get(0).keySet(), is((Set) Sets.newHashSet("123")));
+        assertThat(scriptsPerInstance.getAllValues().get(1).keySet(), is((Set) Sets.newHashSet("456")));
+        assertThat(awsec2Infrastructure.fleetSize.get(), is(2));
+
+        verify(connectorIaasController, times(2)).waitForScripts(anyMap());
+
+    }
+
+    @Test
+    public void testAcquireNodeTerminatesInstanceWhoseScriptsFailed() {
+
+        when(nodeSource.getName()).thenReturn("Node source Name");
+        awsec2Infrastructure.nodeSource = nodeSource;
+
+        awsec2Infrastructure.configure("aws_key", "aws_secret_key", "test.activeeon.com",
+                "http://localhost:8088/connector-iaas", "aws-image", "2", "3",
+                "wget -nv test.activeeon.com/rest/node.jar", "-Dnew=value", 512, 1, "0.05", "default","127.0.0.1");
+
+        awsec2Infrastructure.connectorIaasController = connectorIaasController;
+        awsec2Infrastructure.rmUrl = "http://test.activeeon.com";
+
+        when(connectorIaasController.createInstancesWithOptions("node_source_name", instanceTag(1),
+                "aws-image", 1, 1, 512, "0.05", "default","127.0.0.1", null)).thenReturn(Sets.newHashSet("123"));
+        Map<String, Throwable> failures = Maps.newHashMap();
+        failures.put("123", new RuntimeException("script failed"));
+        when(connectorIaasController.waitForScripts(anyMap())).thenReturn(failures);
+
+        awsec2Infrastructure.acquireNode();
+
+        verify(connectorIaasController).queueInstanceTermination("node_source_name", "123");
+
+        assertThat(awsec2Infrastructure.fleetSize.get(), is(0));
+        assertThat(awsec2Infrastructure.nodesPerInstances.getPendingInstancesCount(), is(0));
+
+    }
+
+    @Test
+    public void testConfigureBootstrapConcurrency() {
+
+        when(nodeSource.getName()).thenReturn("Node source Name");
+        awsec2Infrastructure.nodeSource = nodeSource;
+
+        awsec2Infrastructure.configure("aws_key", "aws_secret_key", "test.activeeon.com",
+                "http://localhost:8088/connector-iaas", "aws-image", "2", "3",
+                "wget -nv test.activeeon.com/rest/node.jar", "-Dnew=value", 512, 1, "0.05", "default", "127.0.0.1",
+                "25");
+
+        assertThat(awsec2Infrastructure.bootstrapConcurrency, is(25));
+    }
+
+    @Test
+    public void testAcquireNodeFromWarmPool() {
 
-        verify(connectorIaasController, times(2)).executeScript(anyString(), anyString(), anyList());
+        when(nodeSource.getName()).thenReturn("Node source Name");
+        awsec2Infrastructure.nodeSource = nodeSource;
+
+        awsec2Infrastructure.configure("aws_key", "aws_secret_key", "test.activeeon.com",
+                "http://localhost:8088/connector-iaas", "aws-image", "2", "3",
+                "wget -nv test.activeeon.com/rest/node.jar", "-Dnew=value", 512, 1, "0.05", "default",
+                "127.0.0.1", "10", "1");
+
+        awsec2Infrastructure.connectorIaasController = connectorIaasController;
+        awsec2Infrastructure.rmUrl = "http://test.activeeon.com";
+
+        when(connectorIaasController.createInstancesWithOptions("node_source_name", instanceTag(1),
+                "aws-image", 1, 1, 512, "0.05", "default", "127.0.0.1", null))
+                        .thenReturn(Sets.newHashSet("123"));
+        when(connectorIaasController.createInstancesWithOptionsAsync(eq("node_source_name"),
+                startsWith("node_source_name-warm-"), eq("aws-image"), eq(1), eq(1), eq(512), eq("0.05"),
+                eq("default"), eq("127.0.0.1"), (String) isNull()))
+                        .thenReturn(Futures.<Set<String>> immediateFuture(Sets.newHashSet("789")));
+        when(connectorIaasController.executeScriptOnInstancesByTag(eq("node_source_name"),
+                startsWith("node_source_name-warm-"), eq((Set<String>) Sets.newHashSet("789")), anyList(),
+                eq(10))).thenReturn(ImmutableMap.of("789", Futures.immediateFuture("ok")));
+
+        awsec2Infrastructure.acquireNode();
+
+        assertThat(awsec2Infrastructure.warmInstancePool.getMissCount(), is(1L));
+        assertThat(awsec2Infrastructure.warmInstancePool.getParkedInstancesCount(), is(1));
+
+        awsec2Infrastructure.acquireNode();
 
+        assertThat(awsec2Infrastructure.warmInstancePool.getHitCount(), is(1L));
+
+        ArgumentCaptor<Map> scriptsPerInstance = ArgumentCaptor.forClass(Map.class);
+
+        verify(connectorIaasController, times(2)).executeScriptOnInstances(eq("node_source_name"),
+                scriptsPerInstance.capture(), eq(10));
+
+        Map<String, List<String>> scripts = scriptsPerInstance.getAllValues().get(0);
+        assertThat(scripts.keySet(), is((Set) Sets.newHashSet("123")));
+        assertThat(scripts.get("123").size(), is(2));
+        Map<String, List<String>> warmScripts = scriptsPerInstance.getAllValues().get(1);
+        assertThat(warmScripts.keySet(), is((Set) Sets.newHashSet("789")));
+        assertThat(warmScripts.get("789").size(), is(1));
     }
 
     @Test
     public void testAcquireAllNodes() {
-        testAcquireNode();
+
+        when(nodeSource.getName()).thenReturn("Node source Name");
+        awsec2Infrastructure.nodeSource = nodeSource;
+
+        awsec2Infrastructure.configure("aws_key", "aws_secret_key", "test.activeeon.com",
+                "http://localhost:8088/connector-iaas", "aws-image", "2", "3",
+                "wget -nv test.activeeon.com/rest/node.jar", "-Dnew=value", 512, 1, "0.05", "default","127.0.0.1");
+
+        awsec2Infrastructure.connectorIaasController = connectorIaasController;
+        awsec2Infrastructure.rmUrl = "http://test.activeeon.com";
+
+        when(connectorIaasController.createInstancesWithOptions("node_source_name", instanceTag(1),
+                "aws-image", 2, 1, 512, "0.05", "default","127.0.0.1", null))
+                        .thenReturn(Sets.newHashSet("123", "456"));
+
+        awsec2Infrastructure.acquireAllNodes();
+        awsec2Infrastructure.acquireAllNodes();
+
+        verify(connectorIaasController).createInstancesWithOptions("node_source_name", instanceTag(1),
+                "aws-image", 2, 1, 512, "0.05", "default","127.0.0.1", null);
+
+        ArgumentCaptor<Map> scriptsPerInstance = ArgumentCaptor.forClass(Map.class);
+
+        verify(connectorIaasController).executeScriptOnInstances(eq("node_source_name"),
+                scriptsPerInstance.capture(), eq(10));
+
+        assertThat(scriptsPerInstance.getValue().keySet(), is((Set) Sets.newHashSet("123", "456")));
+        assertThat(awsec2Infrastructure.fleetSize.get(), is(2));
     }
 
     @Test
@@ -150,15 +297,86 @@ public class AWSEC2InfrastructureTest {
 
         when(nodeInformation.getName()).thenReturn("nodename");
 
-        awsec2Infrastructure.nodesPerInstances.put("123", Sets.newHashSet("nodename"));
+        awsec2Infrastructure.nodesPerInstances.addNode("123", "nodename");
+        awsec2Infrastructure.fleetSize.reserve(1, 2);
 
         awsec2Infrastructure.removeNode(node);
 
         verify(proActiveRuntime).killNode("nodename");
 
-        verify(connectorIaasController).terminateInstance("node_source_name", "123");
+        verify(connectorIaasController).queueInstanceTermination("node_source_name", "123");
 
         assertThat(awsec2Infrastructure.nodesPerInstances.isEmpty(), is(true));
+        assertThat(awsec2Infrastructure.fleetSize.get(), is(0));
+
+    }
+
+    @Test
+    public void testRemoveNodeRetainsIdleInstance() throws ProActiveException, RMException {
+
+        when(nodeSource.getName()).thenReturn("Node source Name");
+        awsec2Infrastructure.nodeSource = nodeSource;
+
+        awsec2Infrastructure.configure("aws_key", "aws_secret_key", "test.activeeon.com",
+                "http://localhost:8088/connector-iaas", "aws-image", "2", "3",
+                "wget -nv test.activeeon.com/rest/node.jar", "-Dnew=value", 512, 1, "0.05", "default",
+                "127.0.0.1", "10", "0", "600", "3600");
+
+        awsec2Infrastructure.connectorIaasController = connectorIaasController;
+
+        when(node.getProperty(AWSEC2Infrastructure.INSTANCE_ID_NODE_PROPERTY)).thenReturn("123");
+
+        when(node.getNodeInformation()).thenReturn(nodeInformation);
+
+        when(node.getProActiveRuntime()).thenReturn(proActiveRuntime);
+
+        when(nodeInformation.getName()).thenReturn("nodename");
+
+        awsec2Infrastructure.nodesPerInstances.addNode("123", "nodename");
+
+        awsec2Infrastructure.removeNode(node);
+
+        verify(proActiveRuntime).killNode("nodename");
+
+        verify(connectorIaasController, never()).queueInstanceTermination("node_source_name", "123");
+
+        assertThat(awsec2Infrastructure.warmInstancePool.getRetainedCount(), is(1L));
+
+        assertThat(awsec2Infrastructure.warmInstancePool.claim(1),
+                is((List<String>) Lists.newArrayList("123")));
+
+    }
+
+    @Test
+    public void testShutDownTerminatesRetainedInstances() throws ProActiveException, RMException {
+
+        when(nodeSource.getName()).thenReturn("Node source Name");
+        awsec2Infrastructure.nodeSource = nodeSource;
+
+        awsec2Infrastructure.configure("aws_key", "aws_secret_key", "test.activeeon.com",
+                "http://localhost:8088/connector-iaas", "aws-image", "2", "3",
+                "wget -nv test.activeeon.com/rest/node.jar", "-Dnew=value", 512, 1, "0.05", "default",
+                "127.0.0.1", "10", "0", "600", "3600");
+
+        awsec2Infrastructure.connectorIaasController = connectorIaasController;
+
+        when(node.getProperty(AWSEC2Infrastructure.INSTANCE_ID_NODE_PROPERTY)).thenReturn("123");
+
+        when(node.getNodeInformation()).thenReturn(nodeInformation);
+
+        when(node.getProActiveRuntime()).thenReturn(proActiveRuntime);
+
+        when(nodeInformation.getName()).thenReturn("nodename");
+
+        awsec2Infrastructure.nodesPerInstances.addNode("123", "nodename");
+
+        awsec2Infrastructure.removeNode(node);
+
+        awsec2Infrastructure.shutDown();
+
+        verify(connectorIaasController).queueInstanceTermination("node_source_name", "123");
+
+        assertThat(awsec2Infrastructure.warmInstancePool.getParkedInstancesCount(), is(0));
 
     }
 
@@ -188,10 +406,42 @@ public class AWSEC2InfrastructureTest {
 
     }
 
+    @Test
+    public void testNotifyDeployingNodeLostReplacesInstance() {
+
+        when(nodeSource.getName()).thenReturn("Node source Name");
+        awsec2Infrastructure.nodeSource = nodeSource;
+
+        awsec2Infrastructure.configure("aws_key", "aws_secret_key", "test.activeeon.com",
+                "http://localhost:8088/connector-iaas", "aws-image", "2", "3",
+                "wget -nv test.activeeon.com/rest/node.jar", "-Dnew=value", 512, 1, "0.05", "default", "127.0.0.1",
+                "10", "0", "0", "0", "600", "1");
+
+        awsec2Infrastructure.connectorIaasController = connectorIaasController;
+
+        awsec2Infrastructure.deployingInstances.add("123", "deploying://123", 0);
+        awsec2Infrastructure.deployingInstances.add("456", "deploying://456", 1);
+
+        awsec2Infrastructure.notifyDeployingNodeLost("deploying://123");
+        awsec2Infrastructure.notifyDeployingNodeLost("deploying://456");
+        awsec2Infrastructure.notifyDeployingNodeLost("deploying://789");
+
+        assertThat(awsec2Infrastructure.nodeRegistrationTimeout, is(600));
+        verify(connectorIaasController).queueInstanceTermination("node_source_name", "123");
+        verify(connectorIaasController).queueInstanceTermination("node_source_name", "456");
+        // the replacement of 456 would exceed the maximum number of replacements
+        verify(nodeSource, times(1)).executeInParallel(any(Runnable.class));
+
+    }
+
     @Test
     public void testGetDescription() {
         assertThat(awsec2Infrastructure.getDescription(),
                 is("Handles nodes from the Amazon Elastic Compute Cloud Service."));
     }
 
+    private String instanceTag(int number) {
+        return "node_source_name-" + awsec2Infrastructure.tagsNonce + "-" + number;
+    }
+
 }
@@ -0,0 +1,324 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+
+/**
+ * Records, for each instance, when it went through each {@link Stage} of its life, from the
+ * registration of its infrastructure to its termination. The time spent in a stage is the time
+ * elapsed since the previous stage the instance went through, so that slow acquisitions can be
+ * blamed on the cloud (creation), on the script retries or on the node start (node.jar download
+ * and JVM start).
+ * <p>
+ * The traces can be exported in the Chrome trace event format, to be opened in chrome://tracing or
+ * Perfetto, and summarized as percentiles per stage. Setting {@value #FILE_PROPERTY} makes them be
+ * written to that file periodically. At most {@value #MAX_TRACES_PROPERTY} traces are kept, the
+ * oldest ones being dropped first.
+ */
+public class AcquisitionTracer {
+
+    private static final Logger logger = Logger.getLogger(AcquisitionTracer.class);
+
+    public static final String FILE_PROPERTY = "connector-iaas.trace.file";
+    public static final String INTERVAL_PROPERTY = "connector-iaas.trace.interval";
+    public static final String MAX_TRACES_PROPERTY = "connector-iaas.trace.maxTraces";
+
+    private static final long DEFAULT_INTERVAL = 60000;
+
+    private static final int DEFAULT_MAX_TRACES = 10000;
+
+    private static final double[] SUMMARY_PERCENTILES = { 50, 90, 99 };
+
+    public enum Stage {
+        INFRASTRUCTURE_REGISTERED,
+        CREATE_REQUESTED,
+        CREATE_ANSWERED,
+        FIRST_SCRIPT_ATTEMPT,
+        LAST_SCRIPT_ATTEMPT,
+        NODE_REGISTERED,
+        NODE_REMOVED,
+        TERMINATED
+    }
+
+    private static final AcquisitionTracer instance = new AcquisitionTracer(
+        Integer.getInteger(MAX_TRACES_PROPERTY, DEFAULT_MAX_TRACES));
+
+    static {
+        String traceFile = System.getProperty(FILE_PROPERTY);
+        if (traceFile != null) {
+            instance.writeChromeTraceFilePeriodically(new File(traceFile),
+                    Long.getLong(INTERVAL_PROPERTY, DEFAULT_INTERVAL));
+        }
+    }
+
+    private final ConcurrentMap<String, Long> infrastructuresRegistrations = Maps.newConcurrentMap();
+
+    private final ConcurrentMap<String, InstanceTrace> traces;
+
+    AcquisitionTracer(int maxTraces) {
+        this.traces = CacheBuilder.newBuilder().maximumSize(maxTraces).<String, InstanceTrace> build()
+                .asMap();
+    }
+
+    public static AcquisitionTracer getInstance() {
+        return instance;
+    }
+
+    /**
+     * Records when the infrastructure was last registered, the instances created afterwards being
+     * traced from that time.
+     */
+    public void infrastructureRegistered(String infrastructureId) {
+        infrastructuresRegistrations.put(infrastructureId, System.currentTimeMillis());
+    }
+
+    /**
+     * @param requestTime
+     *            when the creation of the instances was requested
+     */
+    public void instancesCreated(String infrastructureId, Collection<String> instancesIds, long requestTime) {
+        long now = System.currentTimeMillis();
+        Long registrationTime = infrastructuresRegistrations.get(infrastructureId);
+        for (String instanceId : instancesIds) {
+            // a later registration, by another acquisition, does not belong to these instances
+            if (registrationTime != null && registrationTime <= requestTime) {
+                record(infrastructureId, instanceId, Stage.INFRASTRUCTURE_REGISTERED, registrationTime);
+            }
+            record(infrastructureId, instanceId, Stage.CREATE_REQUESTED, requestTime);
+            record(infrastructureId, instanceId, Stage.CREATE_ANSWERED, now);
+        }
+    }
+
+    /**
+     * To be called at each attempt to run a script on the instance, retries included.
+     */
+    public void scriptAttempted(String infrastructureId, String instanceId) {
+        long now = System.currentTimeMillis();
+        record(infrastructureId, instanceId, Stage.FIRST_SCRIPT_ATTEMPT, now);
+        record(infrastructureId, instanceId, Stage.LAST_SCRIPT_ATTEMPT, now);
+    }
+
+    public void nodeRegistered(String infrastructureId, String instanceId) {
+        record(infrastructureId, instanceId, Stage.NODE_REGISTERED, System.currentTimeMillis());
+    }
+
+    public void nodeRemoved(String infrastructureId, String instanceId) {
+        record(infrastructureId, instanceId, Stage.NODE_REMOVED, System.currentTimeMillis());
+    }
+
+    public void instanceTerminated(String infrastructureId, String instanceId) {
+        record(infrastructureId, instanceId, Stage.TERMINATED, System.currentTimeMillis());
+    }
+
+    /**
+     * Records that the instance reached the stage at the given time. Only the first time is kept,
+     * except for {@link Stage#LAST_SCRIPT_ATTEMPT} whose latest time is kept.
+     */
+    void record(String infrastructureId, String instanceId, Stage stage, long time) {
+        String key = infrastructureId + '/' + instanceId;
+        InstanceTrace trace = traces.get(key);
+        if (trace == null) {
+            InstanceTrace newTrace = new InstanceTrace(infrastructureId, instanceId);
+            trace = traces.putIfAbsent(key, newTrace);
+            if (trace == null) {
+                trace = newTrace;
+            }
+        }
+        if (stage == Stage.LAST_SCRIPT_ATTEMPT) {
+            trace.timestamps.set(stage.ordinal(), time);
+        } else {
+            trace.timestamps.compareAndSet(stage.ordinal(), 0, time);
+        }
+    }
+
+    public List<InstanceTrace> getTraces() {
+        return ImmutableList.copyOf(traces.values());
+    }
+
+    /**
+     * @return for each stage, the given percentiles of the time spent in that stage, in milliseconds,
+     *         over the instances that went through it
+     */
+    public Map<Stage, long[]> getStagePercentiles(double... percentiles) {
+        Map<Stage, long[]> stagePercentiles = Maps.newEnumMap(Stage.class);
+        for (Stage stage : Stage.values()) {
+            List<Long> durations = Lists.newArrayList();
+            for (InstanceTrace trace : traces.values()) {
+                long duration = trace.getDuration(stage);
+                if (duration >= 0) {
+                    durations.add(duration);
+                }
+            }
+            if (durations.isEmpty()) {
+                continue;
+            }
+            Long[] sortedDurations = durations.toArray(new Long[durations.size()]);
+            Arrays.sort(sortedDurations);
+            long[] values = new long[percentiles.length];
+            for (int i = 0; i < percentiles.length; i++) {
+                int rank = (int) Math.ceil(percentiles[i] / 100 * sortedDurations.length);
+                values[i] = sortedDurations[Math.min(Math.max(rank, 1), sortedDurations.length) - 1];
+            }
+            stagePercentiles.put(stage, values);
+        }
+        return stagePercentiles;
+    }
+
+    /**
+     * @return the traces in the Chrome trace event format: one process per infrastructure, one
+     *         thread per instance and one complete event per stage
+     */
+    public String toChromeTrace() {
+        JSONArray events = new JSONArray();
+        Map<String, Integer> processIds = Maps.newHashMap();
+        int threadId = 0;
+        for (InstanceTrace trace : traces.values()) {
+            Integer processId = processIds.get(trace.getInfrastructureId());
+            if (processId == null) {
+                processId = processIds.size() + 1;
+                processIds.put(trace.getInfrastructureId(), processId);
+                events.put(metadataEvent("process_name", processId, 0, trace.getInfrastructureId()));
+            }
+            threadId++;
+            events.put(metadataEvent("thread_name", processId, threadId, trace.getInstanceId()));
+            for (Stage stage : Stage.values()) {
+                long duration = trace.getDuration(stage);
+                if (duration < 0) {
+                    continue;
+                }
+                long end = trace.getTimestamp(stage);
+                JSONObject event = new JSONObject();
+                event.put("name", stage.name());
+                event.put("cat", "acquisition");
+                event.put("ph", "X");
+                event.put("ts", TimeUnit.MILLISECONDS.toMicros(end - duration));
+                event.put("dur", TimeUnit.MILLISECONDS.toMicros(duration));
+                event.put("pid", processId);
+                event.put("tid", threadId);
+                events.put(event);
+            }
+        }
+        return new JSONObject().put("traceEvents", events).put("displayTimeUnit", "ms").toString();
+    }
+
+    /**
+     * Writes the Chrome trace to the file, replacing it atomically so that it is never read half
+     * written.
+     */
+    void writeChromeTraceFile(File file) throws IOException {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        Files.write(temporaryFile.toPath(), toChromeTrace().getBytes(Charsets.UTF_8));
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the Chrome trace to the file at a fixed rate, and logs the percentiles per stage.
+     */
+    void writeChromeTraceFilePeriodically(final File file, long interval) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("connector-iaas-trace").build());
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeChromeTraceFile(file);
+                } catch (IOException e) {
+                    logger.warn("Failed to write the acquisition traces to " + file, e);
+                }
+                logger.info("Acquisition stages p50/p90/p99 in ms : " + summarize());
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    String summarize() {
+        StringBuilder summary = new StringBuilder();
+        for (Map.Entry<Stage, long[]> percentiles : getStagePercentiles(SUMMARY_PERCENTILES).entrySet()) {
+            if (summary.length() > 0) {
+                summary.append(", ");
+            }
+            long[] values = percentiles.getValue();
+            summary.append(percentiles.getKey()).append('=').append(values[0]).append('/').append(values[1])
+                    .append('/').append(values[2]);
+        }
+        return summary.toString();
+    }
+
+    private static JSONObject metadataEvent(String name, int processId, int threadId, String value) {
+        return new JSONObject().put("name", name).put("ph", "M").put("pid", processId).put("tid", threadId)
+                .put("args", new JSONObject().put("name", value));
+    }
+
+    public static class InstanceTrace {
+
+        private final String infrastructureId;
+
+        private final String instanceId;
+
+        private final AtomicLongArray timestamps = new AtomicLongArray(Stage.values().length);
+
+        private InstanceTrace(String infrastructureId, String instanceId) {
+            this.infrastructureId = infrastructureId;
+            this.instanceId = instanceId;
+        }
+
+        public String getInfrastructureId() {
+            return infrastructureId;
+        }
+
+        public String getInstanceId() {
+            return instanceId;
+        }
+
+        /**
+         * @return when the instance reached the stage, in milliseconds since the epoch, 0 if it did
+         *         not
+         */
+        public long getTimestamp(Stage stage) {
+            return timestamps.get(stage.ordinal());
+        }
+
+        /**
+         * @return the time elapsed between the latest earlier stage the instance went through and
+         *         that stage, -1 if the instance did not go through both
+         */
+        public long getDuration(Stage stage) {
+            long end = getTimestamp(stage);
+            if (end == 0) {
+                return -1;
+            }
+            long start = 0;
+            for (int i = 0; i < stage.ordinal(); i++) {
+                long timestamp = timestamps.get(i);
+                if (timestamp != 0 && timestamp <= end) {
+                    start = Math.max(start, timestamp);
+                }
+            }
+            return start == 0 ? -1 : end - start;
+        }
+    }
+
+}
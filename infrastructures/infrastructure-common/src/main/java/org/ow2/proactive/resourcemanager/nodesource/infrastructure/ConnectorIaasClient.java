@@ -1,68 +1,323 @@
 package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 
+import java.net.HttpURLConnection;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 
 public class ConnectorIaasClient {
 
     private static final Logger logger = Logger.getLogger(ConnectorIaasClient.class);
 
-    private static final int MAX_RETRIES_IN_CASE_OF_ERROR = 20;
-    private static final int SLEEP_TIME_RETRIES_IN_CASE_OF_ERROR = 10000;
+    public static final int DEFAULT_INSTANCES_PAGE_SIZE = 100;
+
+    public static final long DEFAULT_CONNECTOR_IAAS_READY_TIMEOUT = 200000;
+
+    public static final String RUN_SCRIPT_OPERATION = "runScriptOnInstance";
+    public static final String RUN_SCRIPT_BY_TAG_OPERATION = "runScriptOnInstancesByTag";
+    public static final String GET_INSTANCES_OPERATION = "getInstances";
+    public static final String CREATE_INFRASTRUCTURE_OPERATION = "createInfrastructure";
+    public static final String TERMINATE_INSTANCE_OPERATION = "terminateInstance";
+    public static final String TERMINATE_INFRASTRUCTURE_OPERATION = "terminateInfrastructure";
+
+    private static final RetryMetrics retryMetrics = new RetryMetrics();
+
+    private static final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("connector-iaas-retry-scheduler").build());
 
     private final RestClient restClient;
 
+    private final int instancesPageSize;
+
+    private final InstanceInventoryCache inventoryCache;
+
+    private final long connectorIaasReadyTimeout;
+
+    private final RetryExecutor scriptRetryExecutor;
+
+    // for the idempotent requests, the ones creating instances being never sent twice
+    private final RetryExecutor requestRetryExecutor;
+
+    private final AcquisitionTracer tracer = AcquisitionTracer.getInstance();
+
+    private final ConcurrentMap<String, RegisteredInfrastructure> registeredInfrastructures = Maps
+            .newConcurrentMap();
+
+    private final Striped<Lock> infrastructureLocks = Striped.lock(16);
+
     public static RestClient generateRestClient(String connectorIaasURL) {
-        return new RestClient(connectorIaasURL);
+        return RestClient.getInstance(connectorIaasURL);
     }
 
     public ConnectorIaasClient(RestClient restClient) {
+        this(restClient, DEFAULT_INSTANCES_PAGE_SIZE);
+    }
+
+    public ConnectorIaasClient(RestClient restClient, int instancesPageSize) {
+        this(restClient, instancesPageSize, new InstanceInventoryCache());
+    }
+
+    public ConnectorIaasClient(RestClient restClient, int instancesPageSize,
+            InstanceInventoryCache inventoryCache) {
+        this(restClient, instancesPageSize, inventoryCache, DEFAULT_CONNECTOR_IAAS_READY_TIMEOUT,
+                new ExponentialBackoffRetryPolicy(1000, 15000, 200000, 20));
+    }
+
+    public ConnectorIaasClient(RestClient restClient, int instancesPageSize, InstanceInventoryCache inventoryCache,
+            long connectorIaasReadyTimeout, RetryPolicy scriptRetryPolicy) {
         this.restClient = restClient;
+        this.instancesPageSize = instancesPageSize;
+        this.inventoryCache = inventoryCache;
+        this.connectorIaasReadyTimeout = connectorIaasReadyTimeout;
+        this.scriptRetryExecutor = new RetryExecutor(scriptRetryPolicy, retryMetrics, retryScheduler);
+        this.requestRetryExecutor = new RetryExecutor(withoutRetryOnNotFound(scriptRetryPolicy), retryMetrics,
+            retryScheduler);
+    }
+
+    /**
+     * Unlike the instance targeted by a script, which may not be visible yet, an infrastructure or an
+     * instance that connector-iaas does not find will not show up by waiting.
+     */
+    private static RetryPolicy withoutRetryOnNotFound(final RetryPolicy retryPolicy) {
+        return new RetryPolicy() {
+            @Override
+            public long nextDelay(int attempt, long previousDelay, long elapsedTime, Throwable error) {
+                if (error instanceof ConnectorIaasException &&
+                    ((ConnectorIaasException) error).getStatus() == HttpURLConnection.HTTP_NOT_FOUND) {
+                    return -1;
+                }
+                return retryPolicy.nextDelay(attempt, previousDelay, elapsedTime, error);
+            }
+        };
+    }
+
+    /**
+     * @return the retry metrics shared by all the clients, per operation
+     */
+    public static RetryMetrics getRetryMetrics() {
+        return retryMetrics;
     }
 
+    public InstanceInventoryCache getInventoryCache() {
+        return inventoryCache;
+    }
+
+    /**
+     * Returns at once when connector-iaas is known to be up, see {@link ConnectorIaasHealthMonitor}.
+     */
     public void waitForConnectorIaasToBeUP() {
-        int count = 0;
-        while (true) {
-            try {
-                restClient.getInfrastructures();
+        ConnectorIaasHealthMonitor healthMonitor = restClient.getHealthMonitor();
+        try {
+            if (healthMonitor.awaitReady(connectorIaasReadyTimeout)) {
                 return;
-            } catch (Exception e) {
-                if (++count == MAX_RETRIES_IN_CASE_OF_ERROR) {
-                    logger.error(e);
-                    throw e;
-                } else {
-                    sleepFor(SLEEP_TIME_RETRIES_IN_CASE_OF_ERROR);
-                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        logger.error("connector-iaas is not up after " + connectorIaasReadyTimeout + " ms",
+                healthMonitor.getLastError());
+        throw new IllegalStateException("connector-iaas is not up", healthMonitor.getLastError());
+    }
+
+    /**
+     * @return the instances of the infrastructure, each one only holding its id and its tag
+     */
+    public Set<JSONObject> getAllJsonInstancesByInfrastructureId(final String infrastructureId) {
+        return requestRetryExecutor.execute(GET_INSTANCES_OPERATION, new Callable<Set<JSONObject>>() {
+            @Override
+            public Set<JSONObject> call() {
+                return restClient.getInstancesIdAndTagByInfrastructure(infrastructureId);
+            }
+        });
+    }
 
+    public ListenableFuture<Set<JSONObject>> getAllJsonInstancesByInfrastructureIdAsync(
+            final String infrastructureId) {
+        return requestRetryExecutor.executeAsync(GET_INSTANCES_OPERATION,
+                new Supplier<ListenableFuture<Set<JSONObject>>>() {
+                    @Override
+                    public ListenableFuture<Set<JSONObject>> get() {
+                        return restClient.getInstancesIdAndTagByInfrastructureAsync(infrastructureId);
+                    }
+                });
     }
 
-    public Set<JSONObject> getAllJsonInstancesByInfrastructureId(String infrastructureId) {
-        Set<JSONObject> existingInstances = Sets.newHashSet();
+    /**
+     * Asks connector-iaas for the instances having the given tag, page by page, so that the cost of
+     * the lookup depends on the number of matching instances rather than on the size of the fleet.
+     *
+     * @return the instances having the tag, each one only holding its id and its tag
+     */
+    public Set<JSONObject> getJsonInstancesByTag(String infrastructureId, String instanceTag) {
+        Set<JSONObject> instances = Sets.newHashSet();
+        Set<String> seenInstancesIds = Sets.newHashSet();
+
+        int offset = 0;
+        Set<JSONObject> page;
+        do {
+            page = getPageOfInstances(infrastructureId, instanceTag, offset);
+            offset += page.size();
+        } while (addPageOfInstances(instanceTag, page, seenInstancesIds, instances));
+
+        return instances;
+    }
 
-        JSONArray instancesJSONObjects = new JSONArray(
-            restClient.getInstancesByInfrastructure(infrastructureId));
+    public ListenableFuture<Set<JSONObject>> getJsonInstancesByTagAsync(String infrastructureId,
+            String instanceTag) {
+        return getJsonInstancesByTagAsync(infrastructureId, instanceTag, 0, Sets.<String> newHashSet(),
+                Sets.<JSONObject> newHashSet());
+    }
 
-        Iterator<Object> instancesJSONObjectsIterator = instancesJSONObjects.iterator();
+    private ListenableFuture<Set<JSONObject>> getJsonInstancesByTagAsync(final String infrastructureId,
+            final String instanceTag, final int offset, final Set<String> seenInstancesIds,
+            final Set<JSONObject> instances) {
+        return Futures.transform(getPageOfInstancesAsync(infrastructureId, instanceTag, offset),
+                new AsyncFunction<Set<JSONObject>, Set<JSONObject>>() {
+                    @Override
+                    public ListenableFuture<Set<JSONObject>> apply(Set<JSONObject> page) {
+                        if (addPageOfInstances(instanceTag, page, seenInstancesIds, instances)) {
+                            return getJsonInstancesByTagAsync(infrastructureId, instanceTag,
+                                    offset + page.size(), seenInstancesIds, instances);
+                        }
+                        return Futures.immediateFuture(instances);
+                    }
+                });
+    }
 
-        while (instancesJSONObjectsIterator.hasNext()) {
-            existingInstances.add(((JSONObject) instancesJSONObjectsIterator.next()));
+    private Set<JSONObject> getPageOfInstances(final String infrastructureId, final String instanceTag,
+            final int offset) {
+        return requestRetryExecutor.execute(GET_INSTANCES_OPERATION, new Callable<Set<JSONObject>>() {
+            @Override
+            public Set<JSONObject> call() {
+                return restClient.getInstancesIdAndTagByInfrastructureAndTag(infrastructureId, instanceTag,
+                        offset, instancesPageSize);
+            }
+        });
+    }
+
+    private ListenableFuture<Set<JSONObject>> getPageOfInstancesAsync(final String infrastructureId,
+            final String instanceTag, final int offset) {
+        return requestRetryExecutor.executeAsync(GET_INSTANCES_OPERATION,
+                new Supplier<ListenableFuture<Set<JSONObject>>>() {
+                    @Override
+                    public ListenableFuture<Set<JSONObject>> get() {
+                        return restClient.getInstancesIdAndTagByInfrastructureAndTagAsync(infrastructureId,
+                                instanceTag, offset, instancesPageSize);
+                    }
+                });
+    }
+
+    /**
+     * Adds the instances of the page having the tag, in case the connector did not filter them.
+     *
+     * @return whether another page has to be asked for
+     */
+    private boolean addPageOfInstances(String instanceTag, Set<JSONObject> page, Set<String> seenInstancesIds,
+            Set<JSONObject> instances) {
+        boolean newInstancesInPage = false;
+        for (JSONObject instance : page) {
+            if (seenInstancesIds.add(instance.getString("id"))) {
+                newInstancesInPage = true;
+                if (instanceTag.equals(instance.optString("tag"))) {
+                    instances.add(instance);
+                }
+            }
+        }
+        // a connector ignoring the paging answers with the whole listing, or the same page again
+        return page.size() == instancesPageSize && newInstancesInPage;
+    }
+
+    /**
+     * @return the ids of the instances having the tag, from the inventory cache when it knows the tag
+     */
+    public Set<String> getInstancesIdsByTag(String infrastructureId, String instanceTag) {
+        Set<String> instancesIds = inventoryCache.getInstancesIds(infrastructureId, instanceTag);
+        if (instancesIds == null) {
+            instancesIds = getExistingInstanceIds(instanceTag, getJsonInstancesByTag(infrastructureId, instanceTag));
+            inventoryCache.putInstancesIds(infrastructureId, instanceTag, instancesIds);
         }
+        return instancesIds;
+    }
 
-        return existingInstances;
+    public ListenableFuture<Set<String>> getInstancesIdsByTagAsync(final String infrastructureId,
+            final String instanceTag) {
+        Set<String> instancesIds = inventoryCache.getInstancesIds(infrastructureId, instanceTag);
+        if (instancesIds != null) {
+            return Futures.immediateFuture(instancesIds);
+        }
+        return Futures.transform(getJsonInstancesByTagAsync(infrastructureId, instanceTag),
+                new Function<Set<JSONObject>, Set<String>>() {
+                    @Override
+                    public Set<String> apply(Set<JSONObject> existingInstances) {
+                        Set<String> instancesIds = getExistingInstanceIds(instanceTag, existingInstances);
+                        inventoryCache.putInstancesIds(infrastructureId, instanceTag, instancesIds);
+                        return instancesIds;
+                    }
+                });
     }
 
-    public String createInfrastructure(String infrastructureId, String infrastructureJson) {
-        terminateInfrastructure(infrastructureId);
-        return restClient.postToInfrastructuresWebResource(infrastructureJson);
+    /**
+     * Registers the infrastructure, unless it was already registered with the same JSON since
+     * connector-iaas came up and no request about it failed since then, in which case nothing is
+     * sent to connector-iaas.
+     */
+    public String createInfrastructure(String infrastructureId, final String infrastructureJson) {
+        HashCode fingerprint = Hashing.sha256().hashString(infrastructureJson, Charsets.UTF_8);
+        long recoveryCount = restClient.getHealthMonitor().getRecoveryCount();
+
+        Lock lock = infrastructureLocks.get(infrastructureId);
+        lock.lock();
+        try {
+            RegisteredInfrastructure registeredInfrastructure = registeredInfrastructures.get(infrastructureId);
+            long failureCount = restClient.getInfrastructureFailureCount(infrastructureId);
+            if (registeredInfrastructure != null &&
+                registeredInfrastructure.isSameAs(fingerprint, recoveryCount, failureCount)) {
+                return registeredInfrastructure.response;
+            }
+
+            terminateInfrastructure(infrastructureId);
+            failureCount = restClient.getInfrastructureFailureCount(infrastructureId);
+            // the infrastructure being identified in its JSON, posting it again replaces it
+            String response = requestRetryExecutor.execute(CREATE_INFRASTRUCTURE_OPERATION,
+                    new Callable<String>() {
+                        @Override
+                        public String call() {
+                            return restClient.postToInfrastructuresWebResource(infrastructureJson);
+                        }
+                    });
+            registeredInfrastructures.put(infrastructureId,
+                    new RegisteredInfrastructure(fingerprint, recoveryCount, failureCount, response));
+            return response;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public Set<String> createInstancesIfNotExisist(String infrastructureId, String instanceTag,
@@ -70,17 +325,129 @@ public class ConnectorIaasClient {
         Set<String> instancesIds = getExistingInstanceIds(instanceTag, existingInstances);
 
         if (instancesIds.isEmpty()) {
-            instancesIds = createInstances(infrastructureId, instanceJson);
+            instancesIds = createInstances(infrastructureId, instanceTag, instanceJson);
+        }
+
+        return instancesIds;
+    }
+
+    public Set<String> createInstancesIfNotExisist(String infrastructureId, String instanceTag,
+            String instanceJson) {
+        Set<String> instancesIds = getInstancesIdsByTag(infrastructureId, instanceTag);
+
+        if (instancesIds.isEmpty()) {
+            instancesIds = createInstances(infrastructureId, instanceTag, instanceJson);
         }
 
         return instancesIds;
     }
 
+    public ListenableFuture<Set<String>> createInstancesIfNotExisistAsync(final String infrastructureId,
+            final String instanceTag, final String instanceJson) {
+        return Futures.transform(getInstancesIdsByTagAsync(infrastructureId, instanceTag),
+                new AsyncFunction<Set<String>, Set<String>>() {
+                    @Override
+                    public ListenableFuture<Set<String>> apply(Set<String> instancesIds) {
+                        if (instancesIds.isEmpty()) {
+                            return createInstancesAsync(infrastructureId, instanceTag, instanceJson);
+                        }
+                        return Futures.immediateFuture(instancesIds);
+                    }
+                });
+    }
+
+    /**
+     * Creates the instances of each tag that does not have instances yet. The existing instances of
+     * the tags unknown to the inventory cache are looked up with a single listing for the whole
+     * batch, then the missing tags are created in parallel.
+     *
+     * @param instanceJsonPerTag the JSON of the instances to create, by tag
+     * @return the ids of the instances of each tag, by tag
+     */
+    public Map<String, ListenableFuture<Set<String>>> createInstancesIfNotExisistAsync(
+            final String infrastructureId, final Map<String, String> instanceJsonPerTag) {
+        final Map<String, SettableFuture<Set<String>>> instancesIdsPerTag = Maps.newLinkedHashMap();
+        final Set<String> unknownTags = Sets.newHashSet();
+        // the cache is read once per tag, as an entry may expire between two reads
+        Map<String, Set<String>> cachedInstancesIdsPerTag = Maps.newHashMap();
+        for (String instanceTag : instanceJsonPerTag.keySet()) {
+            instancesIdsPerTag.put(instanceTag, SettableFuture.<Set<String>> create());
+            Set<String> cachedInstancesIds = inventoryCache.getInstancesIds(infrastructureId, instanceTag);
+            if (cachedInstancesIds == null) {
+                unknownTags.add(instanceTag);
+            } else {
+                cachedInstancesIdsPerTag.put(instanceTag, cachedInstancesIds);
+            }
+        }
+
+        for (Map.Entry<String, Set<String>> cachedInstancesIds : cachedInstancesIdsPerTag.entrySet()) {
+            String instanceTag = cachedInstancesIds.getKey();
+            createInstancesIfNotExisistAsync(infrastructureId, instanceTag,
+                    instanceJsonPerTag.get(instanceTag), cachedInstancesIds.getValue(),
+                    instancesIdsPerTag.get(instanceTag));
+        }
+
+        if (!unknownTags.isEmpty()) {
+            Futures.addCallback(getAllJsonInstancesByInfrastructureIdAsync(infrastructureId),
+                    new FutureCallback<Set<JSONObject>>() {
+                        @Override
+                        public void onSuccess(Set<JSONObject> existingInstances) {
+                            Map<String, Set<String>> existingInstancesIdsPerTag = getInstancesIdsPerTag(
+                                    existingInstances);
+                            for (String instanceTag : unknownTags) {
+                                Set<String> instancesIds = existingInstancesIdsPerTag.get(instanceTag);
+                                if (instancesIds == null) {
+                                    instancesIds = Sets.newHashSet();
+                                }
+                                inventoryCache.putInstancesIds(infrastructureId, instanceTag, instancesIds);
+                                createInstancesIfNotExisistAsync(infrastructureId, instanceTag,
+                                        instanceJsonPerTag.get(instanceTag), instancesIds,
+                                        instancesIdsPerTag.get(instanceTag));
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            for (String instanceTag : unknownTags) {
+                                instancesIdsPerTag.get(instanceTag).setException(t);
+                            }
+                        }
+                    });
+        }
+
+        return ImmutableMap.<String, ListenableFuture<Set<String>>> copyOf(instancesIdsPerTag);
+    }
+
+    private void createInstancesIfNotExisistAsync(String infrastructureId, String instanceTag,
+            String instanceJson, Set<String> existingInstancesIds, SettableFuture<Set<String>> instancesIds) {
+        if (existingInstancesIds.isEmpty()) {
+            instancesIds.setFuture(createInstancesAsync(infrastructureId, instanceTag, instanceJson));
+        } else {
+            instancesIds.set(existingInstancesIds);
+        }
+    }
+
+    private Map<String, Set<String>> getInstancesIdsPerTag(Set<JSONObject> instances) {
+        Map<String, Set<String>> instancesIdsPerTag = Maps.newHashMap();
+
+        for (JSONObject instance : instances) {
+            String instanceTag = instance.optString("tag");
+            Set<String> instancesIds = instancesIdsPerTag.get(instanceTag);
+            if (instancesIds == null) {
+                instancesIds = Sets.newHashSet();
+                instancesIdsPerTag.put(instanceTag, instancesIds);
+            }
+            instancesIds.add(instance.getString("id"));
+        }
+
+        return instancesIdsPerTag;
+    }
+
     private Set<String> getExistingInstanceIds(String instanceTag, Set<JSONObject> existingInstances) {
         Set<String> instancesIds = Sets.newHashSet();
 
         for (JSONObject instance : existingInstances) {
-            if (instance.getString("tag").equals(instanceTag)) {
+            if (instanceTag.equals(instance.optString("tag"))) {
                 instancesIds.add(instance.getString("id"));
             }
         }
@@ -88,9 +455,27 @@ public class ConnectorIaasClient {
         return instancesIds;
     }
 
-    private Set<String> createInstances(String infrastructureId, String instanceJson) {
-        String response = restClient.postToInstancesWebResource(infrastructureId, instanceJson);
+    private Set<String> createInstances(String infrastructureId, String instanceTag, String instanceJson) {
+        Set<String> instancesIds = getInstanceIds(
+                restClient.postToInstancesWebResource(infrastructureId, instanceJson));
+        inventoryCache.addInstancesIds(infrastructureId, instanceTag, instancesIds);
+        return instancesIds;
+    }
+
+    private ListenableFuture<Set<String>> createInstancesAsync(final String infrastructureId,
+            final String instanceTag, String instanceJson) {
+        return Futures.transform(restClient.postToInstancesWebResourceAsync(infrastructureId, instanceJson),
+                new Function<String, Set<String>>() {
+                    @Override
+                    public Set<String> apply(String response) {
+                        Set<String> instancesIds = getInstanceIds(response);
+                        inventoryCache.addInstancesIds(infrastructureId, instanceTag, instancesIds);
+                        return instancesIds;
+                    }
+                });
+    }
 
+    private Set<String> getInstanceIds(String response) {
         JSONArray instancesJSONObjects = new JSONArray(response);
 
         Set<String> instancesIds = Sets.newHashSet();
@@ -105,40 +490,213 @@ public class ConnectorIaasClient {
     }
 
     public void terminateInstance(String infrastructureId, String instanceId) {
-        restClient.deleteToInstancesWebResource(infrastructureId, "instanceId", instanceId);
+        deleteInstances(infrastructureId, "instanceId", instanceId);
+        inventoryCache.removeInstance(infrastructureId, instanceId);
     }
 
     public void terminateInstanceByTag(String infrastructureId, String instanceTag) {
-        restClient.deleteToInstancesWebResource(infrastructureId, "instanceTag", instanceTag);
+        deleteInstances(infrastructureId, "instanceTag", instanceTag);
+        inventoryCache.putInstancesIds(infrastructureId, instanceTag, Sets.<String> newHashSet());
+    }
+
+    public void terminateInfrastructure(final String infrastructureId) {
+        registeredInfrastructures.remove(infrastructureId);
+        requestRetryExecutor.execute(TERMINATE_INFRASTRUCTURE_OPERATION, new Callable<Void>() {
+            @Override
+            public Void call() {
+                restClient.deleteInfrastructuresWebResource(infrastructureId);
+                return null;
+            }
+        });
+        inventoryCache.invalidateInfrastructure(infrastructureId);
+    }
+
+    public ListenableFuture<Void> terminateInstanceAsync(final String infrastructureId,
+            final String instanceId) {
+        return Futures.transform(deleteInstancesAsync(infrastructureId, "instanceId", instanceId),
+                new Function<Void, Void>() {
+                    @Override
+                    public Void apply(Void input) {
+                        inventoryCache.removeInstance(infrastructureId, instanceId);
+                        return null;
+                    }
+                });
     }
 
-    public void terminateInfrastructure(String infrastructureId) {
-        restClient.deleteInfrastructuresWebResource(infrastructureId);
+    /**
+     * Terminates the instances in parallel, connector-iaas terminating a single instance per request.
+     *
+     * @return the termination of each instance, by instance id
+     */
+    public Map<String, ListenableFuture<Void>> terminateInstances(String infrastructureId,
+            Collection<String> instancesIds) {
+        Map<String, ListenableFuture<Void>> terminations = Maps.newHashMap();
+        for (String instanceId : instancesIds) {
+            terminations.put(instanceId, terminateInstanceAsync(infrastructureId, instanceId));
+        }
+        return terminations;
+    }
+
+    /**
+     * Terminates the instances with the given tags in parallel, one request per tag.
+     *
+     * @return the termination of the instances of each tag, by tag
+     */
+    public Map<String, ListenableFuture<Void>> terminateInstancesByTag(String infrastructureId,
+            Collection<String> instancesTags) {
+        Map<String, ListenableFuture<Void>> terminations = Maps.newHashMap();
+        for (String instanceTag : instancesTags) {
+            terminations.put(instanceTag, terminateInstanceByTagAsync(infrastructureId, instanceTag));
+        }
+        return terminations;
     }
 
-    public String runScriptOnInstance(String infrastructureId, String instanceId, String instanceScriptJson) {
-        int count = 0;
-        while (true) {
-            try {
+    public ListenableFuture<Void> terminateInstanceByTagAsync(final String infrastructureId,
+            final String instanceTag) {
+        return Futures.transform(deleteInstancesAsync(infrastructureId, "instanceTag", instanceTag),
+                new Function<Void, Void>() {
+                    @Override
+                    public Void apply(Void input) {
+                        inventoryCache.putInstancesIds(infrastructureId, instanceTag, Sets.<String> newHashSet());
+                        return null;
+                    }
+                });
+    }
+
+    public ListenableFuture<Void> terminateInfrastructureAsync(final String infrastructureId) {
+        registeredInfrastructures.remove(infrastructureId);
+        ListenableFuture<Void> deletion = requestRetryExecutor.executeAsync(
+                TERMINATE_INFRASTRUCTURE_OPERATION, new Supplier<ListenableFuture<Void>>() {
+                    @Override
+                    public ListenableFuture<Void> get() {
+                        return restClient.deleteInfrastructuresWebResourceAsync(infrastructureId);
+                    }
+                });
+        return Futures.transform(deletion, new Function<Void, Void>() {
+            @Override
+            public Void apply(Void input) {
+                inventoryCache.invalidateInfrastructure(infrastructureId);
+                return null;
+            }
+        });
+    }
+
+    private void deleteInstances(final String infrastructureId, final String key, final String value) {
+        requestRetryExecutor.execute(TERMINATE_INSTANCE_OPERATION, new Callable<Void>() {
+            @Override
+            public Void call() {
+                restClient.deleteToInstancesWebResource(infrastructureId, key, value);
+                return null;
+            }
+        });
+    }
+
+    private ListenableFuture<Void> deleteInstancesAsync(final String infrastructureId, final String key,
+            final String value) {
+        return requestRetryExecutor.executeAsync(TERMINATE_INSTANCE_OPERATION,
+                new Supplier<ListenableFuture<Void>>() {
+                    @Override
+                    public ListenableFuture<Void> get() {
+                        return restClient.deleteToInstancesWebResourceAsync(infrastructureId, key, value);
+                    }
+                });
+    }
+
+    public String runScriptOnInstance(final String infrastructureId, final String instanceId,
+            final String instanceScriptJson) {
+        return scriptRetryExecutor.execute(RUN_SCRIPT_OPERATION, new Callable<String>() {
+            @Override
+            public String call() {
+                tracer.scriptAttempted(infrastructureId, instanceId);
                 return restClient.postToScriptsWebResource(infrastructureId, "instanceId", instanceId,
                         instanceScriptJson);
-            } catch (Exception e) {
-                if (++count == MAX_RETRIES_IN_CASE_OF_ERROR) {
-                    logger.error(e);
-                    throw e;
-                } else {
-                    sleepFor(SLEEP_TIME_RETRIES_IN_CASE_OF_ERROR);
-                }
             }
+        });
+    }
+
+    /**
+     * Same as {@link #runScriptOnInstance(String, String, String)}, but the retries are scheduled
+     * instead of slept, so no thread is held between two attempts.
+     */
+    public ListenableFuture<String> runScriptOnInstanceAsync(final String infrastructureId,
+            final String instanceId, final String instanceScriptJson) {
+        return scriptRetryExecutor.executeAsync(RUN_SCRIPT_OPERATION, new Supplier<ListenableFuture<String>>() {
+            @Override
+            public ListenableFuture<String> get() {
+                tracer.scriptAttempted(infrastructureId, instanceId);
+                return restClient.postToScriptsWebResourceAsync(infrastructureId, "instanceId", instanceId,
+                        instanceScriptJson);
+            }
+        });
+    }
+
+    /**
+     * Runs the script on every instance having the tag, in a single request.
+     *
+     * @return the script result of each instance the connector ran the script on, by instance id
+     */
+    public Map<String, String> runScriptOnInstancesByTag(final String infrastructureId, final String instanceTag,
+            final String instanceScriptJson) {
+        return getScriptResultsPerInstance(scriptRetryExecutor.execute(RUN_SCRIPT_BY_TAG_OPERATION,
+                new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return restClient.postToScriptsWebResource(infrastructureId, "instanceTag", instanceTag,
+                                instanceScriptJson);
+                    }
+                }));
+    }
+
+    public ListenableFuture<Map<String, String>> runScriptOnInstancesByTagAsync(final String infrastructureId,
+            final String instanceTag, final String instanceScriptJson) {
+        return Futures.transform(scriptRetryExecutor.executeAsync(RUN_SCRIPT_BY_TAG_OPERATION,
+                new Supplier<ListenableFuture<String>>() {
+                    @Override
+                    public ListenableFuture<String> get() {
+                        return restClient.postToScriptsWebResourceAsync(infrastructureId, "instanceTag",
+                                instanceTag, instanceScriptJson);
+                    }
+                }), new Function<String, Map<String, String>>() {
+                    @Override
+                    public Map<String, String> apply(String response) {
+                        return getScriptResultsPerInstance(response);
+                    }
+                });
+    }
+
+    private Map<String, String> getScriptResultsPerInstance(String response) {
+        Map<String, String> scriptResultsPerInstance = Maps.newHashMap();
+
+        JSONArray scriptResults = new JSONArray(response);
+        for (int i = 0; i < scriptResults.length(); i++) {
+            JSONObject scriptResult = scriptResults.getJSONObject(i);
+            scriptResultsPerInstance.put(scriptResult.getString("instanceId"), scriptResult.toString());
         }
 
+        return scriptResultsPerInstance;
     }
 
-    private void sleepFor(long millisecondsToSleep) {
-        try {
-            Thread.sleep(millisecondsToSleep);
-        } catch (InterruptedException e) {
-            logger.warn("Failed to sleep", e);
+    private static final class RegisteredInfrastructure {
+
+        private final HashCode fingerprint;
+
+        private final long recoveryCount;
+
+        private final long failureCount;
+
+        private final String response;
+
+        private RegisteredInfrastructure(HashCode fingerprint, long recoveryCount, long failureCount,
+                String response) {
+            this.fingerprint = fingerprint;
+            this.recoveryCount = recoveryCount;
+            this.failureCount = failureCount;
+            this.response = response;
+        }
+
+        private boolean isSameAs(HashCode fingerprint, long recoveryCount, long failureCount) {
+            return this.fingerprint.equals(fingerprint) && this.recoveryCount == recoveryCount &&
+                   this.failureCount == failureCount;
         }
     }
 
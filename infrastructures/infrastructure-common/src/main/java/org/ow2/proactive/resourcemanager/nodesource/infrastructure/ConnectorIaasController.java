@@ -1,29 +1,42 @@
 package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
-import org.apache.log4j.Logger;
-import org.json.JSONObject;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 
 public class ConnectorIaasController {
 
-    private static final Logger logger = Logger.getLogger(ConnectorIaasController.class);
+    private static final ProvisioningLogger logger = ProvisioningLogger
+            .getLogger(ConnectorIaasController.class);
 
     protected final ConnectorIaasClient connectorIaasClient;
     private final String infrastructureType;
+    private final InstanceTerminationQueue instanceTerminationQueue;
+    private final Set<String> registeredNodeSources = Sets.newConcurrentHashSet();
 
     public ConnectorIaasController(String connectorIaasURL, String infrastructureType) {
-        this.connectorIaasClient = new ConnectorIaasClient(
-            ConnectorIaasClient.generateRestClient(connectorIaasURL));
-        this.infrastructureType = infrastructureType;
-
+        this(new ConnectorIaasClient(ConnectorIaasClient.generateRestClient(connectorIaasURL)),
+                infrastructureType);
     }
 
     public ConnectorIaasController(ConnectorIaasClient connectorIaasClient, String infrastructureType) {
         this.connectorIaasClient = connectorIaasClient;
         this.infrastructureType = infrastructureType;
+        this.instanceTerminationQueue = new InstanceTerminationQueue(connectorIaasClient);
 
     }
 
@@ -37,15 +50,48 @@ public class ConnectorIaasController {
         String infrastructureJson = ConnectorIaasJSONTransformer.getInfrastructureJSONWithEndPoint(
                 infrastructureId, infrastructureType, username, password, endPoint, destroyOnShutdown);
 
-        logger.info("Creating infrastructure : " + infrastructureJson);
+        logger.info("Creating infrastructure : {}", infrastructureJson);
+
+        ConnectorIaasMetrics.getInstance().registerInfrastructure(infrastructureId, infrastructureType);
 
         connectorIaasClient.createInfrastructure(infrastructureId, infrastructureJson);
+        AcquisitionTracer.getInstance().infrastructureRegistered(infrastructureId);
 
-        logger.info("Infrastructure created");
+        logger.info("Infrastructure {} created", infrastructureId);
 
         return infrastructureId;
     }
 
+    /**
+     * Publishes the gauges of the node source, see {@link ConnectorIaasMetrics}. Only the first call
+     * for a node source publishes them, until it is unregistered.
+     */
+    public void registerNodeSource(String nodeSourceName, NodesPerInstances nodesPerInstances) {
+        if (registeredNodeSources.add(nodeSourceName)) {
+            ConnectorIaasMetrics.getInstance().registerNodeSource(nodeSourceName,
+                    new NodeSourceMetrics(infrastructureType, nodesPerInstances));
+        }
+    }
+
+    public void unregisterNodeSource(String nodeSourceName) {
+        registeredNodeSources.remove(nodeSourceName);
+        ConnectorIaasMetrics.getInstance().unregisterNodeSource(nodeSourceName);
+    }
+
+    /**
+     * Records in the {@link AcquisitionTracer} that a node of the instance registered.
+     */
+    public void traceNodeRegistration(String infrastructureId, String instanceId) {
+        AcquisitionTracer.getInstance().nodeRegistered(infrastructureId, instanceId);
+    }
+
+    /**
+     * Records in the {@link AcquisitionTracer} that the last node of the instance was removed.
+     */
+    public void traceNodeRemoval(String infrastructureId, String instanceId) {
+        AcquisitionTracer.getInstance().nodeRemoved(infrastructureId, instanceId);
+    }
+
     public Set<String> createInstancesWithOptions(String infrastructureId, String instanceTag, String image,
             int numberOfInstances, int cores, int ram, String spotPrice, String securityGroupNames, String subnetId, String macAddresses) {
 
@@ -75,6 +121,70 @@ public class ConnectorIaasController {
         return createInstance(infrastructureId, instanceTag, instanceJson);
     }
 
+    public ListenableFuture<Set<String>> createInstancesWithOptionsAsync(String infrastructureId,
+            String instanceTag, String image, int numberOfInstances, int cores, int ram, String spotPrice,
+            String securityGroupNames, String subnetId, String macAddresses) {
+
+        String instanceJson = ConnectorIaasJSONTransformer.getInstanceJSON(instanceTag, image,
+                "" + numberOfInstances, "" + cores, "" + ram, spotPrice, securityGroupNames, subnetId, macAddresses);
+
+        return createInstanceAsync(infrastructureId, instanceTag, instanceJson);
+    }
+
+    public ListenableFuture<Set<String>> createInstancesAsync(String infrastructureId, String instanceTag,
+            String image, int numberOfInstances, int cores, int ram) {
+
+        String instanceJson = ConnectorIaasJSONTransformer.getInstanceJSON(instanceTag, image,
+                "" + numberOfInstances, "" + cores, "" + ram, null, null, null, null);
+
+        return createInstanceAsync(infrastructureId, instanceTag, instanceJson);
+    }
+
+    public ListenableFuture<Set<String>> createInstancesWithPublicKeyNameAndInitScriptAsync(
+            String infrastructureId, String instanceTag, String image, int numberOfInstances, int hardwareType,
+            String publicKeyName, List<String> scripts) {
+
+        String instanceJson = ConnectorIaasJSONTransformer.getInstanceJSONWithPublicKeyAndScripts(instanceTag,
+                image, String.valueOf(numberOfInstances), publicKeyName, String.valueOf(hardwareType),
+                scripts);
+
+        return createInstanceAsync(infrastructureId, instanceTag, instanceJson);
+    }
+
+    /**
+     * Creates, for each tag, the given number of instances running the init scripts of that tag,
+     * looking up the existing instances once for the whole batch. The instances are traced under
+     * their tag, as their nodes know them by it.
+     *
+     * @return the ids of the instances of each tag, by tag
+     */
+    public Map<String, ListenableFuture<Set<String>>> createInstancesWithPublicKeyNameAndInitScriptPerTag(
+            String infrastructureId, Map<String, List<String>> scriptsPerTag, String image,
+            int numberOfInstancesPerTag, int hardwareType, String publicKeyName) {
+
+        Map<String, String> instanceJsonPerTag = Maps.newLinkedHashMap();
+        for (Map.Entry<String, List<String>> scripts : scriptsPerTag.entrySet()) {
+            instanceJsonPerTag.put(scripts.getKey(),
+                    ConnectorIaasJSONTransformer.getInstanceJSONWithPublicKeyAndScripts(scripts.getKey(),
+                            image, String.valueOf(numberOfInstancesPerTag), publicKeyName,
+                            String.valueOf(hardwareType), scripts.getValue()));
+        }
+
+        logger.info("Creating instances with tags : {}", instanceJsonPerTag.keySet());
+
+        long requestTime = System.currentTimeMillis();
+
+        Map<String, ListenableFuture<Set<String>>> instancesIdsPerTag = connectorIaasClient
+                .createInstancesIfNotExisistAsync(infrastructureId, instanceJsonPerTag);
+
+        for (Map.Entry<String, ListenableFuture<Set<String>>> instancesIds : instancesIdsPerTag.entrySet()) {
+            recordInstancesCreation(infrastructureId, instancesIds.getKey(), requestTime,
+                    instancesIds.getValue(), true);
+        }
+
+        return instancesIdsPerTag;
+    }
+
     public void executeScript(String infrastructureId, String instanceId, List<String> scripts) {
         executeScriptWithCredentials(infrastructureId, instanceId, scripts, null, null);
 
@@ -86,40 +196,329 @@ public class ConnectorIaasController {
         String instanceScriptJson = ConnectorIaasJSONTransformer.getScriptInstanceJSONWithCredentials(scripts,
                 username, password);
 
-        String scriptResult = null;
         try {
-        	
-            scriptResult = connectorIaasClient.runScriptOnInstance(infrastructureId, instanceId,
+            String scriptResult = connectorIaasClient.runScriptOnInstance(infrastructureId, instanceId,
                     instanceScriptJson);
-       
-            	logger.info("Executed successfully script for instance id :" + instanceId );
-            	logger.info("InstanceScriptJson : " + instanceScriptJson);
-                logger.info("Script result : " + scriptResult);
-            
+
+            logScriptResult(instanceId, instanceScriptJson, scriptResult);
         } catch (Exception e) {
-            logger.error("Error while executing script :\n" + instanceScriptJson, e);
+            logger.error(e, "Error while executing script on instance {} :\n{}", instanceId,
+                    instanceScriptJson);
+        }
+    }
+
+    public ListenableFuture<String> executeScriptAsync(String infrastructureId, String instanceId,
+            List<String> scripts) {
+        return executeScriptWithCredentialsAsync(infrastructureId, instanceId, scripts, null, null);
+    }
+
+    public ListenableFuture<String> executeScriptWithCredentialsAsync(String infrastructureId,
+            final String instanceId, List<String> scripts, String username, String password) {
+
+        final String instanceScriptJson = ConnectorIaasJSONTransformer
+                .getScriptInstanceJSONWithCredentials(scripts, username, password);
+
+        ListenableFuture<String> scriptResult = connectorIaasClient.runScriptOnInstanceAsync(infrastructureId,
+                instanceId, instanceScriptJson);
+
+        Futures.addCallback(scriptResult, new FutureCallback<String>() {
+            @Override
+            public void onSuccess(String result) {
+                logScriptResult(instanceId, instanceScriptJson, result);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                logger.error(t, "Error while executing script on instance {} :\n{}", instanceId,
+                        instanceScriptJson);
+            }
+        });
+
+        return scriptResult;
+    }
+
+    /**
+     * Runs the scripts of each instance, with at most maxConcurrency scripts in progress at a time.
+     *
+     * @return the result of the scripts of each instance, completed as soon as that instance is done
+     */
+    public Map<String, ListenableFuture<String>> executeScriptOnInstances(String infrastructureId,
+            Map<String, List<String>> scriptsPerInstance, int maxConcurrency) {
+        Map<String, SettableFuture<String>> scriptsResults = Maps.newLinkedHashMap();
+        Queue<String> pendingInstancesIds = Queues.newConcurrentLinkedQueue();
+        for (String instanceId : scriptsPerInstance.keySet()) {
+            scriptsResults.put(instanceId, SettableFuture.<String> create());
+            pendingInstancesIds.add(instanceId);
         }
+
+        Map<String, List<String>> scripts = ImmutableMap.copyOf(scriptsPerInstance);
+        for (int i = 0; i < Math.min(Math.max(maxConcurrency, 1), scripts.size()); i++) {
+            executeNextScripts(infrastructureId, scripts, pendingInstancesIds, scriptsResults);
+        }
+
+        return ImmutableMap.<String, ListenableFuture<String>> copyOf(scriptsResults);
+    }
+
+    /**
+     * Runs the scripts on every instance having the tag in a single request to connector-iaas. The
+     * instances the connector did not report a result for, or all of them if the request failed, are
+     * then run one by one, with at most maxConcurrency scripts in progress at a time.
+     *
+     * @return the result of the scripts of each of the given instances
+     */
+    public Map<String, ListenableFuture<String>> executeScriptOnInstancesByTag(final String infrastructureId,
+            final String instanceTag, Set<String> instancesIds, final List<String> scripts,
+            final int maxConcurrency) {
+        final Map<String, SettableFuture<String>> scriptsResults = Maps.newHashMap();
+        for (String instanceId : instancesIds) {
+            scriptsResults.put(instanceId, SettableFuture.<String> create());
+        }
+
+        final String instanceScriptJson = ConnectorIaasJSONTransformer.getScriptInstanceJSONWithCredentials(scripts,
+                null, null);
+
+        Futures.addCallback(
+                connectorIaasClient.runScriptOnInstancesByTagAsync(infrastructureId, instanceTag,
+                        instanceScriptJson),
+                new FutureCallback<Map<String, String>>() {
+                    @Override
+                    public void onSuccess(Map<String, String> scriptResultsPerInstance) {
+                        Map<String, List<String>> remainingScripts = Maps.newHashMap();
+                        for (Map.Entry<String, SettableFuture<String>> scriptsResult : scriptsResults.entrySet()) {
+                            String scriptResult = scriptResultsPerInstance.get(scriptsResult.getKey());
+                            if (scriptResult == null) {
+                                remainingScripts.put(scriptsResult.getKey(), scripts);
+                            } else {
+                                scriptsResult.getValue().set(scriptResult);
+                            }
+                        }
+                        logger.info("Executed script on {} instances with tag {}, executing on {} one by one",
+                                scriptsResults.size() - remainingScripts.size(), instanceTag,
+                                remainingScripts.keySet());
+                        executeRemainingScripts(infrastructureId, remainingScripts, maxConcurrency, scriptsResults);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        logger.warn(t, "Error while executing script on instances with tag {}, " +
+                            "executing it one instance at a time", instanceTag);
+                        Map<String, List<String>> remainingScripts = Maps.newHashMap();
+                        for (String instanceId : scriptsResults.keySet()) {
+                            remainingScripts.put(instanceId, scripts);
+                        }
+                        executeRemainingScripts(infrastructureId, remainingScripts, maxConcurrency, scriptsResults);
+                    }
+                });
+
+        return ImmutableMap.<String, ListenableFuture<String>> copyOf(scriptsResults);
+    }
+
+    /**
+     * Waits for the scripts of every instance to be done.
+     *
+     * @return the error of each instance whose scripts failed
+     */
+    public Map<String, Throwable> waitForScripts(Map<String, ListenableFuture<String>> scriptsResults) {
+        Map<String, Throwable> failures = waitFor(scriptsResults);
+        if (!failures.isEmpty()) {
+            logger.error("Scripts failed on {} of {} instances : {}", failures.size(), scriptsResults.size(),
+                    failures.keySet());
+        }
+        return failures;
+    }
+
+    /**
+     * Waits for the instances of every tag to be created.
+     *
+     * @return the error of each tag whose instances could not be created
+     */
+    public Map<String, Throwable> waitForInstances(
+            Map<String, ListenableFuture<Set<String>>> instancesIdsPerTag) {
+        Map<String, Throwable> failures = waitFor(instancesIdsPerTag);
+        if (!failures.isEmpty()) {
+            logger.error("Instances creation failed for {} of {} tags : {}", failures.size(),
+                    instancesIdsPerTag.size(), failures.keySet());
+        }
+        return failures;
     }
 
     public void terminateInstance(String infrastructureId, String instanceId) {
         connectorIaasClient.terminateInstance(infrastructureId, instanceId);
     }
 
-    private Set<String> createInstance(String infrastructureId, String instanceTag, String instanceJson) {
-        Set<JSONObject> existingInstancesByInfrastructureId = connectorIaasClient
-                .getAllJsonInstancesByInfrastructureId(infrastructureId);
+    public ListenableFuture<Void> terminateInstanceAsync(String infrastructureId, String instanceId) {
+        return connectorIaasClient.terminateInstanceAsync(infrastructureId, instanceId);
+    }
+
+    public Map<String, ListenableFuture<Void>> terminateInstances(String infrastructureId,
+            Collection<String> instancesIds) {
+        return connectorIaasClient.terminateInstances(infrastructureId, instancesIds);
+    }
 
-        logger.info("Total existing Instances By Infrastructure Id : " +
-            existingInstancesByInfrastructureId.size());
+    /**
+     * Queues the termination of the instance, to be done together with the other instances queued
+     * shortly after, see {@link InstanceTerminationQueue}. Returns without waiting for connector-iaas.
+     */
+    public ListenableFuture<Void> queueInstanceTermination(final String infrastructureId,
+            final String instanceId) {
+        ListenableFuture<Void> termination = instanceTerminationQueue.add(infrastructureId, instanceId);
+
+        Futures.addCallback(termination, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                logger.info("Terminated instance : {}", instanceId);
+                AcquisitionTracer.getInstance().instanceTerminated(infrastructureId, instanceId);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                logger.error(t, "Error while terminating instance {}", instanceId);
+            }
+        });
+
+        return termination;
+    }
 
-        logger.info("InstanceJson : " + instanceJson);
+    /**
+     * Queues the termination of the instances with the tag, like
+     * {@link #queueInstanceTermination(String, String)} does for an instance id. For the
+     * infrastructures whose instances are only known by their tag.
+     */
+    public ListenableFuture<Void> queueInstanceTerminationByTag(final String infrastructureId,
+            final String instanceTag) {
+        ListenableFuture<Void> termination = instanceTerminationQueue.addByTag(infrastructureId, instanceTag);
+
+        Futures.addCallback(termination, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                logger.info("Terminated instances with tag : {}", instanceTag);
+                AcquisitionTracer.getInstance().instanceTerminated(infrastructureId, instanceTag);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                logger.error(t, "Error while terminating instances with tag {}", instanceTag);
+            }
+        });
+
+        return termination;
+    }
+
+    private Set<String> createInstance(String infrastructureId, String instanceTag, String instanceJson) {
+        logger.debug("InstanceJson : {}", instanceJson);
+
+        long requestTime = System.currentTimeMillis();
 
         Set<String> instancesIds = connectorIaasClient.createInstancesIfNotExisist(infrastructureId,
-                instanceTag, instanceJson, existingInstancesByInfrastructureId);
+                instanceTag, instanceJson);
+
+        logger.info("Instances ids created : {}", instancesIds);
+
+        AcquisitionTracer.getInstance().instancesCreated(infrastructureId, instancesIds, requestTime);
+
+        return instancesIds;
+    }
+
+    private ListenableFuture<Set<String>> createInstanceAsync(String infrastructureId, String instanceTag,
+            String instanceJson) {
+        logger.debug("InstanceJson : {}", instanceJson);
 
-        logger.info("Instances ids created : " + instancesIds);
+        long requestTime = System.currentTimeMillis();
+
+        ListenableFuture<Set<String>> instancesIds = connectorIaasClient
+                .createInstancesIfNotExisistAsync(infrastructureId, instanceTag, instanceJson);
+
+        recordInstancesCreation(infrastructureId, instanceTag, requestTime, instancesIds, false);
 
         return instancesIds;
     }
 
+    /**
+     * Logs the creation of the instances and traces it, under their ids or under their tag.
+     */
+    private void recordInstancesCreation(final String infrastructureId, final String instanceTag,
+            final long requestTime, ListenableFuture<Set<String>> instancesIds, final boolean traceByTag) {
+        Futures.addCallback(instancesIds, new FutureCallback<Set<String>>() {
+            @Override
+            public void onSuccess(Set<String> result) {
+                logger.info("Instances ids created : {}", result);
+                AcquisitionTracer.getInstance().instancesCreated(infrastructureId,
+                        traceByTag ? Collections.singleton(instanceTag) : result, requestTime);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                logger.error(t, "Error while creating instances with tag {}", instanceTag);
+            }
+        });
+    }
+
+    private void logScriptResult(String instanceId, String instanceScriptJson, String scriptResult) {
+        logger.info("Executed successfully script for instance id : {}", instanceId);
+        logger.debug("InstanceScriptJson : {}", instanceScriptJson);
+        logger.debug("Script result : {}", scriptResult);
+    }
+
+    private <T> Map<String, Throwable> waitFor(Map<String, ListenableFuture<T>> results) {
+        Map<String, Throwable> failures = Maps.newLinkedHashMap();
+        for (Map.Entry<String, ListenableFuture<T>> result : results.entrySet()) {
+            try {
+                result.getValue().get();
+            } catch (ExecutionException e) {
+                failures.put(result.getKey(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failures.put(result.getKey(), e);
+            }
+        }
+        return failures;
+    }
+
+    private void executeRemainingScripts(String infrastructureId, Map<String, List<String>> remainingScripts,
+            int maxConcurrency, Map<String, SettableFuture<String>> scriptsResults) {
+        Map<String, ListenableFuture<String>> remainingScriptsResults = executeScriptOnInstances(infrastructureId,
+                remainingScripts, maxConcurrency);
+        for (Map.Entry<String, ListenableFuture<String>> remainingScriptsResult : remainingScriptsResults
+                .entrySet()) {
+            scriptsResults.get(remainingScriptsResult.getKey()).setFuture(remainingScriptsResult.getValue());
+        }
+    }
+
+    /**
+     * Runs the scripts of the pending instances one after the other, until one is still in progress
+     * once sent: that one starts the next scripts when done. Looping over the scripts completed right
+     * away, rather than starting the next one from their callback, keeps the stack flat when many
+     * scripts fail as soon as they are sent.
+     */
+    private void executeNextScripts(final String infrastructureId, final Map<String, List<String>> scripts,
+            final Queue<String> pendingInstancesIds, final Map<String, SettableFuture<String>> scriptsResults) {
+        String instanceId;
+        while ((instanceId = pendingInstancesIds.poll()) != null) {
+            ListenableFuture<String> scriptResult;
+            try {
+                scriptResult = executeScriptAsync(infrastructureId, instanceId, scripts.get(instanceId));
+            } catch (RuntimeException e) {
+                scriptResult = Futures.immediateFailedFuture(e);
+            }
+
+            scriptsResults.get(instanceId).setFuture(scriptResult);
+            if (scriptResult.isDone()) {
+                continue;
+            }
+
+            Futures.addCallback(scriptResult, new FutureCallback<String>() {
+                @Override
+                public void onSuccess(String result) {
+                    executeNextScripts(infrastructureId, scripts, pendingInstancesIds, scriptsResults);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    executeNextScripts(infrastructureId, scripts, pendingInstancesIds, scriptsResults);
+                }
+            });
+            return;
+        }
+    }
+
 }
@@ -0,0 +1,19 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+/**
+ * Thrown when connector-iaas answers a request with an HTTP status other than OK.
+ */
+public class ConnectorIaasException extends RuntimeException {
+
+    private final int status;
+
+    public ConnectorIaasException(int status) {
+        super("Failed : HTTP error code : " + status);
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+}
@@ -0,0 +1,267 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+
+/**
+ * Keeps track of whether the connector-iaas behind a {@link RestClient} is up, so that callers do
+ * not have to ask connector-iaas before each operation. Once started, it probes connector-iaas in
+ * the background: rarely while it is up, and with a growing delay while it is down. Every answer
+ * received by the client counts as a probe, so a connector in use is not probed at all.
+ */
+public class ConnectorIaasHealthMonitor {
+
+    private static final Logger logger = Logger.getLogger(ConnectorIaasHealthMonitor.class);
+
+    public static final String PROBE_INTERVAL_PROPERTY = "connector-iaas.health.probeInterval";
+    public static final String MIN_RETRY_INTERVAL_PROPERTY = "connector-iaas.health.minRetryInterval";
+    public static final String MAX_RETRY_INTERVAL_PROPERTY = "connector-iaas.health.maxRetryInterval";
+
+    private static final long DEFAULT_PROBE_INTERVAL = 30000;
+    private static final long DEFAULT_MIN_RETRY_INTERVAL = 500;
+    private static final long DEFAULT_MAX_RETRY_INTERVAL = 10000;
+
+    private final RestClient restClient;
+
+    private final long probeInterval;
+
+    private final long minRetryInterval;
+
+    private final long maxRetryInterval;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Runnable probeTask = new Runnable() {
+        @Override
+        public void run() {
+            probe();
+        }
+    };
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private final AtomicBoolean probing = new AtomicBoolean();
+
+    private final AtomicLong recoveryCount = new AtomicLong();
+
+    private final List<Runnable> recoveryListeners = Lists.newCopyOnWriteArrayList();
+
+    private final Random random = new Random();
+
+    private final Object readyLock = new Object();
+
+    private volatile boolean ready;
+
+    private volatile boolean closed;
+
+    private volatile long lastResponseTime;
+
+    private volatile Throwable lastError;
+
+    private long retryInterval;
+
+    private ScheduledFuture<?> nextProbe;
+
+    public ConnectorIaasHealthMonitor(RestClient restClient) {
+        this(restClient, Long.getLong(PROBE_INTERVAL_PROPERTY, DEFAULT_PROBE_INTERVAL),
+                Long.getLong(MIN_RETRY_INTERVAL_PROPERTY, DEFAULT_MIN_RETRY_INTERVAL),
+                Long.getLong(MAX_RETRY_INTERVAL_PROPERTY, DEFAULT_MAX_RETRY_INTERVAL));
+    }
+
+    public ConnectorIaasHealthMonitor(RestClient restClient, long probeInterval, long minRetryInterval,
+            long maxRetryInterval) {
+        this.restClient = restClient;
+        this.probeInterval = probeInterval;
+        this.minRetryInterval = minRetryInterval;
+        this.maxRetryInterval = maxRetryInterval;
+        this.retryInterval = minRetryInterval;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("connector-iaas-health-monitor-%d").build());
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return the number of times connector-iaas was seen coming up, which changes whenever it may
+     *         have been restarted and lost its state
+     */
+    public long getRecoveryCount() {
+        return recoveryCount.get();
+    }
+
+    /**
+     * @return the error of the last failed probe, or null if none failed since connector-iaas is up
+     */
+    public Throwable getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Returns at once if connector-iaas is known to be up, otherwise waits for a probe to succeed.
+     *
+     * @return whether connector-iaas is up, false if it was still down after the timeout
+     */
+    public boolean awaitReady(long timeout) throws InterruptedException {
+        if (ready) {
+            return true;
+        }
+        start();
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (readyLock) {
+            while (!ready) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                readyLock.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Registers a listener called each time connector-iaas comes back up after being down, including
+     * the first time it is seen up.
+     */
+    public void addRecoveryListener(Runnable recoveryListener) {
+        recoveryListeners.add(recoveryListener);
+    }
+
+    public void removeRecoveryListener(Runnable recoveryListener) {
+        recoveryListeners.remove(recoveryListener);
+    }
+
+    /**
+     * Starts probing in the background, if not started yet.
+     */
+    public void start() {
+        if (started.compareAndSet(false, true)) {
+            scheduleProbe(0);
+        }
+    }
+
+    public void close() {
+        closed = true;
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Called by the rest client for each answer of connector-iaas. Any answer shows that connector-iaas
+     * is up, except the ones telling that it is not available.
+     */
+    void reportResponse(int status) {
+        if (status == HttpURLConnection.HTTP_BAD_GATEWAY || status == HttpURLConnection.HTTP_UNAVAILABLE ||
+            status == HttpURLConnection.HTTP_GATEWAY_TIMEOUT) {
+            markDown(new ConnectorIaasException(status));
+            if (started.get()) {
+                scheduleProbe(0);
+            }
+        } else {
+            markUp();
+        }
+    }
+
+    /**
+     * Called by the rest client when a request could not reach connector-iaas at all.
+     */
+    void reportError(Throwable error) {
+        markDown(error);
+        if (started.get()) {
+            scheduleProbe(0);
+        }
+    }
+
+    private void probe() {
+        if (closed || !probing.compareAndSet(false, true)) {
+            return;
+        }
+        long nextProbeDelay;
+        try {
+            long timeSinceLastResponse = System.currentTimeMillis() - lastResponseTime;
+            if (ready && timeSinceLastResponse < probeInterval) {
+                nextProbeDelay = probeInterval - timeSinceLastResponse;
+            } else {
+                restClient.getInfrastructures();
+                markUp();
+                nextProbeDelay = probeInterval;
+            }
+        } catch (RuntimeException e) {
+            markDown(e);
+            nextProbeDelay = nextRetryInterval();
+            logger.debug("connector-iaas at " + restClient.getConnectorIaasURL() + " is not up, probing again in " +
+                nextProbeDelay + " ms", e);
+        } finally {
+            probing.set(false);
+        }
+        scheduleProbe(nextProbeDelay);
+    }
+
+    private synchronized void scheduleProbe(long delay) {
+        if (closed) {
+            return;
+        }
+        if (nextProbe != null) {
+            nextProbe.cancel(false);
+        }
+        nextProbe = scheduler.schedule(probeTask, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized long nextRetryInterval() {
+        long upperBound = Math.min(maxRetryInterval, 3 * retryInterval);
+        retryInterval = minRetryInterval + (long) (random.nextDouble() * Math.max(0, upperBound - minRetryInterval));
+        return retryInterval;
+    }
+
+    private void markUp() {
+        boolean recovered;
+        synchronized (readyLock) {
+            lastResponseTime = System.currentTimeMillis();
+            recovered = !ready;
+            if (recovered) {
+                recoveryCount.incrementAndGet();
+            }
+            ready = true;
+            lastError = null;
+            readyLock.notifyAll();
+        }
+        if (recovered) {
+            synchronized (this) {
+                retryInterval = minRetryInterval;
+            }
+            logger.info("connector-iaas at " + restClient.getConnectorIaasURL() + " is up");
+            for (Runnable recoveryListener : recoveryListeners) {
+                try {
+                    recoveryListener.run();
+                } catch (RuntimeException e) {
+                    logger.warn("connector-iaas recovery listener failed", e);
+                }
+            }
+        }
+    }
+
+    private void markDown(Throwable error) {
+        synchronized (readyLock) {
+            lastError = error;
+            if (ready) {
+                logger.warn("connector-iaas at " + restClient.getConnectorIaasURL() + " is down", error);
+            }
+            ready = false;
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.io.Reader;
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import com.google.common.collect.Sets;
+
+
+/**
+ * Reads a connector-iaas instance listing token by token, keeping only the id and the tag of each
+ * instance. Every other value is skipped without being materialised, so the memory used does not
+ * depend on how much the connector reports per instance.
+ */
+public class ConnectorIaasInstancesReader {
+
+    public static final String ID = "id";
+    public static final String TAG = "tag";
+
+    private static final String LITERAL_DELIMITERS = ",:]}/\\\"[{;=#";
+
+    private ConnectorIaasInstancesReader() {
+    }
+
+    public static Set<JSONObject> readIdsAndTags(Reader reader) {
+        JSONTokener tokener = new JSONTokener(reader);
+        Set<JSONObject> instances = Sets.newHashSet();
+
+        if (tokener.nextClean() != '[') {
+            throw tokener.syntaxError("An instance listing must start with '['");
+        }
+        if (tokener.nextClean() == ']') {
+            return instances;
+        }
+        tokener.back();
+
+        while (true) {
+            instances.add(readIdAndTag(tokener));
+            char c = tokener.nextClean();
+            if (c == ']') {
+                return instances;
+            } else if (c != ',') {
+                throw tokener.syntaxError("Expected a ',' or ']'");
+            }
+        }
+    }
+
+    private static JSONObject readIdAndTag(JSONTokener tokener) {
+        JSONObject instance = new JSONObject();
+
+        if (tokener.nextClean() != '{') {
+            throw tokener.syntaxError("An instance must start with '{'");
+        }
+        if (tokener.nextClean() == '}') {
+            return instance;
+        }
+        tokener.back();
+
+        while (true) {
+            String key = readKey(tokener);
+            if (tokener.nextClean() != ':') {
+                throw tokener.syntaxError("Expected a ':' after a key");
+            }
+            if (ID.equals(key) || TAG.equals(key)) {
+                instance.put(key, tokener.nextValue());
+            } else {
+                skipValue(tokener);
+            }
+            char c = tokener.nextClean();
+            if (c == '}') {
+                return instance;
+            } else if (c != ',') {
+                throw tokener.syntaxError("Expected a ',' or '}'");
+            }
+        }
+    }
+
+    private static String readKey(JSONTokener tokener) {
+        char c = tokener.nextClean();
+        if (c != '"' && c != '\'') {
+            throw tokener.syntaxError("Expected a quoted key");
+        }
+        return tokener.nextString(c);
+    }
+
+    private static void skipValue(JSONTokener tokener) throws JSONException {
+        char c = tokener.nextClean();
+        switch (c) {
+            case '"':
+            case '\'':
+                tokener.nextString(c);
+                break;
+            case '{':
+            case '[':
+                skipNestedValue(tokener);
+                break;
+            default:
+                while (c >= ' ' && LITERAL_DELIMITERS.indexOf(c) < 0) {
+                    c = tokener.next();
+                }
+                tokener.back();
+        }
+    }
+
+    private static void skipNestedValue(JSONTokener tokener) throws JSONException {
+        int depth = 1;
+        while (depth > 0) {
+            char c = tokener.next();
+            switch (c) {
+                case 0:
+                    throw tokener.syntaxError("Unterminated object or array");
+                case '"':
+                case '\'':
+                    tokener.nextString(c);
+                    break;
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+}
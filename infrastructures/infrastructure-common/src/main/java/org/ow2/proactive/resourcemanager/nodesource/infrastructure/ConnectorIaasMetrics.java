@@ -0,0 +1,360 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+
+/**
+ * Measures the requests made to connector-iaas, by operation, answer status and infrastructure
+ * type, and collects the gauges of the node sources. Everything is registered as MXBeans in the
+ * {@value #JMX_DOMAIN} domain and can be rendered in the Prometheus text format. Setting
+ * {@value #PROMETHEUS_FILE_PROPERTY} makes the metrics be written to that file periodically, to be
+ * picked up by a Prometheus textfile collector.
+ */
+public class ConnectorIaasMetrics {
+
+    private static final Logger logger = Logger.getLogger(ConnectorIaasMetrics.class);
+
+    public static final String JMX_DOMAIN = "org.ow2.proactive.connector-iaas";
+
+    public static final String PROMETHEUS_FILE_PROPERTY = "connector-iaas.metrics.prometheusFile";
+    public static final String PROMETHEUS_INTERVAL_PROPERTY = "connector-iaas.metrics.prometheusInterval";
+
+    public static final String GET_INFRASTRUCTURES = "get-infrastructures";
+    public static final String POST_INFRASTRUCTURES = "post-infrastructures";
+    public static final String DELETE_INFRASTRUCTURES = "delete-infrastructures";
+    public static final String GET_INSTANCES = "get-instances";
+    public static final String POST_INSTANCES = "post-instances";
+    public static final String DELETE_INSTANCES = "delete-instances";
+    public static final String POST_SCRIPTS = "post-scripts";
+
+    /**
+     * Status of the requests that got no answer, because connector-iaas could not be reached
+     */
+    public static final int NO_RESPONSE = -1;
+
+    static final String UNKNOWN_INFRASTRUCTURE_TYPE = "unknown";
+
+    private static final long DEFAULT_PROMETHEUS_INTERVAL = 15000;
+
+    private static final long[] HISTOGRAM_BOUNDS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000,
+                                                     30000, 60000 };
+
+    private static final ConnectorIaasMetrics instance = new ConnectorIaasMetrics(
+        ManagementFactory.getPlatformMBeanServer());
+
+    static {
+        String prometheusFile = System.getProperty(PROMETHEUS_FILE_PROPERTY);
+        if (prometheusFile != null) {
+            instance.writePrometheusFilePeriodically(new File(prometheusFile),
+                    Long.getLong(PROMETHEUS_INTERVAL_PROPERTY, DEFAULT_PROMETHEUS_INTERVAL));
+        }
+    }
+
+    private final MBeanServer mBeanServer;
+
+    private final ConcurrentMap<String, String> infrastructureTypes = Maps.newConcurrentMap();
+
+    private final ConcurrentMap<String, RequestMetrics> requestMetrics = Maps.newConcurrentMap();
+
+    private final ConcurrentMap<String, NodeSourceMetricsMXBean> nodeSourceMetrics = Maps.newConcurrentMap();
+
+    ConnectorIaasMetrics(MBeanServer mBeanServer) {
+        this.mBeanServer = mBeanServer;
+    }
+
+    public static ConnectorIaasMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Remembers the type of the infrastructure, so that the requests about it are counted for that
+     * type.
+     */
+    public void registerInfrastructure(String infrastructureId, String infrastructureType) {
+        infrastructureTypes.put(infrastructureId, infrastructureType);
+    }
+
+    /**
+     * @param status
+     *            the HTTP status of the answer, or {@link #NO_RESPONSE}
+     * @param time
+     *            the time until the answer, in nanoseconds
+     */
+    public void recordRequest(String operation, String infrastructureId, int status, long time) {
+        String infrastructureType = infrastructureId == null ? null
+                : infrastructureTypes.get(infrastructureId);
+        if (infrastructureType == null) {
+            infrastructureType = UNKNOWN_INFRASTRUCTURE_TYPE;
+        }
+        getRequestMetrics(operation, status, infrastructureType).record(time);
+    }
+
+    public void registerNodeSource(String nodeSourceName, NodeSourceMetricsMXBean metrics) {
+        NodeSourceMetricsMXBean previousMetrics = nodeSourceMetrics.put(nodeSourceName, metrics);
+        ObjectName objectName = nodeSourceObjectName(nodeSourceName);
+        if (previousMetrics != null) {
+            unregisterMBean(objectName);
+        }
+        registerMBean(metrics, objectName);
+    }
+
+    public void unregisterNodeSource(String nodeSourceName) {
+        if (nodeSourceMetrics.remove(nodeSourceName) != null) {
+            unregisterMBean(nodeSourceObjectName(nodeSourceName));
+        }
+    }
+
+    public Map<String, RequestMetricsMXBean> getRequestMetrics() {
+        return ImmutableMap.<String, RequestMetricsMXBean> copyOf(requestMetrics);
+    }
+
+    public Map<String, NodeSourceMetricsMXBean> getNodeSourceMetrics() {
+        return ImmutableMap.copyOf(nodeSourceMetrics);
+    }
+
+    /**
+     * @return every metric in the Prometheus text exposition format
+     */
+    public String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+        text.append("# HELP connector_iaas_request_duration_seconds Time until connector-iaas answered.\n");
+        text.append("# TYPE connector_iaas_request_duration_seconds histogram\n");
+        for (RequestMetrics metrics : requestMetrics.values()) {
+            String labels = "operation=\"" + escape(metrics.getOperation()) + "\",status=\"" +
+                (metrics.getStatus() == NO_RESPONSE ? "none" : String.valueOf(metrics.getStatus())) +
+                "\",infrastructure_type=\"" + escape(metrics.getInfrastructureType()) + "\"";
+            long[] counts = metrics.getHistogramCounts();
+            long cumulativeCount = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulativeCount += counts[i];
+                String bound = i < HISTOGRAM_BOUNDS.length ? String.valueOf(HISTOGRAM_BOUNDS[i] / 1000.0)
+                        : "+Inf";
+                text.append("connector_iaas_request_duration_seconds_bucket{").append(labels).append(",le=\"")
+                        .append(bound).append("\"} ").append(cumulativeCount).append('\n');
+            }
+            text.append("connector_iaas_request_duration_seconds_sum{").append(labels).append("} ")
+                    .append(metrics.getTotalTime() / 1000.0).append('\n');
+            text.append("connector_iaas_request_duration_seconds_count{").append(labels).append("} ")
+                    .append(cumulativeCount).append('\n');
+        }
+
+        appendNodeSourceGauges(text, "pending_instances", "Instances whose nodes did not register yet.");
+        appendNodeSourceGauges(text, "live_instances", "Instances running registered nodes.");
+        appendNodeSourceGauges(text, "nodes", "Registered nodes.");
+        appendNodeSourceGauges(text, "nodes_per_instance", "Mean number of nodes per live instance.");
+        return text.toString();
+    }
+
+    /**
+     * Writes the Prometheus text to the file at a fixed rate, replacing it atomically so that it is
+     * never read half written.
+     */
+    void writePrometheusFilePeriodically(final File file, long interval) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("connector-iaas-metrics").build());
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writePrometheusFile(file);
+                } catch (IOException e) {
+                    logger.warn("Failed to write the connector-iaas metrics to " + file, e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    void writePrometheusFile(File file) throws IOException {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        Files.write(temporaryFile.toPath(), toPrometheusText().getBytes(Charsets.UTF_8));
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private RequestMetrics getRequestMetrics(String operation, int status, String infrastructureType) {
+        String key = operation + '/' + status + '/' + infrastructureType;
+        RequestMetrics metrics = requestMetrics.get(key);
+        if (metrics == null) {
+            RequestMetrics newMetrics = new RequestMetrics(operation, status, infrastructureType);
+            metrics = requestMetrics.putIfAbsent(key, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+                registerMBean(metrics, requestObjectName(operation, status, infrastructureType));
+            }
+        }
+        return metrics;
+    }
+
+    private void appendNodeSourceGauges(StringBuilder text, String name, String help) {
+        text.append("# HELP connector_iaas_node_source_").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE connector_iaas_node_source_").append(name).append(" gauge\n");
+        for (Map.Entry<String, NodeSourceMetricsMXBean> metrics : nodeSourceMetrics.entrySet()) {
+            NodeSourceMetricsMXBean gauges = metrics.getValue();
+            double value;
+            switch (name) {
+                case "pending_instances":
+                    value = gauges.getPendingInstances();
+                    break;
+                case "live_instances":
+                    value = gauges.getLiveInstances();
+                    break;
+                case "nodes":
+                    value = gauges.getNodes();
+                    break;
+                default:
+                    value = gauges.getNodesPerInstance();
+            }
+            text.append("connector_iaas_node_source_").append(name).append("{node_source=\"")
+                    .append(escape(metrics.getKey())).append("\",infrastructure_type=\"")
+                    .append(escape(gauges.getInfrastructureType())).append("\"} ").append(value).append('\n');
+        }
+    }
+
+    private ObjectName requestObjectName(String operation, int status, String infrastructureType) {
+        return objectName(JMX_DOMAIN + ":type=Requests,operation=" + ObjectName.quote(operation) +
+            ",status=" + status + ",infrastructureType=" + ObjectName.quote(infrastructureType));
+    }
+
+    private ObjectName nodeSourceObjectName(String nodeSourceName) {
+        return objectName(JMX_DOMAIN + ":type=NodeSource,name=" + ObjectName.quote(nodeSourceName));
+    }
+
+    private ObjectName objectName(String name) {
+        try {
+            return new ObjectName(name);
+        } catch (JMException e) {
+            throw new IllegalArgumentException(name, e);
+        }
+    }
+
+    private void registerMBean(Object mBean, ObjectName objectName) {
+        try {
+            mBeanServer.registerMBean(mBean, objectName);
+        } catch (JMException e) {
+            logger.warn("Failed to register the connector-iaas metrics " + objectName, e);
+        }
+    }
+
+    private void unregisterMBean(ObjectName objectName) {
+        try {
+            mBeanServer.unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.debug("Failed to unregister the connector-iaas metrics " + objectName, e);
+        }
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static class RequestMetrics implements RequestMetricsMXBean {
+
+        private final String operation;
+
+        private final int status;
+
+        private final String infrastructureType;
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong totalTime = new AtomicLong();
+
+        private final AtomicLong maxTime = new AtomicLong();
+
+        private final AtomicLongArray histogramCounts = new AtomicLongArray(HISTOGRAM_BOUNDS.length + 1);
+
+        private RequestMetrics(String operation, int status, String infrastructureType) {
+            this.operation = operation;
+            this.status = status;
+            this.infrastructureType = infrastructureType;
+        }
+
+        private void record(long time) {
+            count.incrementAndGet();
+            totalTime.addAndGet(time);
+            long currentMaxTime = maxTime.get();
+            while (time > currentMaxTime && !maxTime.compareAndSet(currentMaxTime, time)) {
+                currentMaxTime = maxTime.get();
+            }
+            long timeMillis = TimeUnit.NANOSECONDS.toMillis(time);
+            int bucket = 0;
+            while (bucket < HISTOGRAM_BOUNDS.length && timeMillis > HISTOGRAM_BOUNDS[bucket]) {
+                bucket++;
+            }
+            histogramCounts.incrementAndGet(bucket);
+        }
+
+        @Override
+        public String getOperation() {
+            return operation;
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public String getInfrastructureType() {
+            return infrastructureType;
+        }
+
+        @Override
+        public long getCount() {
+            return count.get();
+        }
+
+        @Override
+        public long getTotalTime() {
+            return TimeUnit.NANOSECONDS.toMillis(totalTime.get());
+        }
+
+        @Override
+        public double getMeanTime() {
+            long currentCount = count.get();
+            return currentCount == 0 ? 0 : totalTime.get() / 1e6 / currentCount;
+        }
+
+        @Override
+        public long getMaxTime() {
+            return TimeUnit.NANOSECONDS.toMillis(maxTime.get());
+        }
+
+        @Override
+        public long[] getHistogramBounds() {
+            return HISTOGRAM_BOUNDS.clone();
+        }
+
+        @Override
+        public long[] getHistogramCounts() {
+            long[] counts = new long[histogramCounts.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = histogramCounts.get(i);
+            }
+            return counts;
+        }
+    }
+
+}
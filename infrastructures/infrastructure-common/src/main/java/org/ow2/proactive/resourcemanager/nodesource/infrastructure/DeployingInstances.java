@@ -0,0 +1,106 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Maps;
+
+
+/**
+ * Maps the instances whose nodes did not register yet to the deploying node standing for each of
+ * them in the resource manager. When the timeout of a deploying node expires, the instance it
+ * stands for can be found back, so that it is terminated and replaced. Each instance remembers how
+ * many replacements led to it, so that the replacements of an instance that never works can be
+ * capped.
+ */
+public class DeployingInstances {
+
+    private final ConcurrentMap<String, DeployingInstance> instances = Maps.newConcurrentMap();
+
+    private final ConcurrentMap<String, String> instancesIdsByDeployingNode = Maps.newConcurrentMap();
+
+    private final AtomicInteger missedDeadlines = new AtomicInteger();
+
+    /**
+     * @param replacement
+     *            0 for an instance acquired as requested, n for the n-th replacement of such an
+     *            instance
+     */
+    public void add(String instanceId, String deployingNodeUrl, int replacement) {
+        instances.put(instanceId, new DeployingInstance(instanceId, deployingNodeUrl, replacement));
+        instancesIdsByDeployingNode.put(deployingNodeUrl, instanceId);
+    }
+
+    /**
+     * To be called when a node of the instance registered.
+     *
+     * @return the deploying node standing for the instance, null if it had none or was already lost
+     */
+    public String removeByInstance(String instanceId) {
+        DeployingInstance instance = instances.remove(instanceId);
+        if (instance == null) {
+            return null;
+        }
+        instancesIdsByDeployingNode.remove(instance.getDeployingNodeUrl(), instanceId);
+        return instance.getDeployingNodeUrl();
+    }
+
+    /**
+     * To be called when the deploying node is lost, because its timeout expired.
+     *
+     * @return the instance the deploying node stood for, null if a node of the instance registered in
+     *         the meantime or if it is not the deploying node of an instance
+     */
+    public DeployingInstance removeByDeployingNode(String deployingNodeUrl) {
+        String instanceId = instancesIdsByDeployingNode.remove(deployingNodeUrl);
+        if (instanceId == null) {
+            return null;
+        }
+        DeployingInstance instance = instances.get(instanceId);
+        if (instance == null || !instance.getDeployingNodeUrl().equals(deployingNodeUrl) ||
+            !instances.remove(instanceId, instance)) {
+            return null;
+        }
+        missedDeadlines.incrementAndGet();
+        return instance;
+    }
+
+    public int size() {
+        return instances.size();
+    }
+
+    /**
+     * @return the number of instances whose nodes did not register before their deadline
+     */
+    public int getMissedDeadlines() {
+        return missedDeadlines.get();
+    }
+
+    public static class DeployingInstance {
+
+        private final String instanceId;
+
+        private final String deployingNodeUrl;
+
+        private final int replacement;
+
+        private DeployingInstance(String instanceId, String deployingNodeUrl, int replacement) {
+            this.instanceId = instanceId;
+            this.deployingNodeUrl = deployingNodeUrl;
+            this.replacement = replacement;
+        }
+
+        public String getInstanceId() {
+            return instanceId;
+        }
+
+        public String getDeployingNodeUrl() {
+            return deployingNodeUrl;
+        }
+
+        public int getReplacement() {
+            return replacement;
+        }
+    }
+
+}
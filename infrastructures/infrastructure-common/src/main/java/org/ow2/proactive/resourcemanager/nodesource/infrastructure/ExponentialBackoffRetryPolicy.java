@@ -0,0 +1,59 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.net.HttpURLConnection;
+import java.util.Random;
+
+
+/**
+ * Retries with an exponential backoff and decorrelated jitter: each delay is drawn between the base
+ * delay and three times the previous one, capped by the maximum delay. It gives up on fatal errors,
+ * when the maximum number of attempts is reached, or when the next attempt would start after the
+ * deadline of the operation.
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+
+    private final long baseDelay;
+
+    private final long maxDelay;
+
+    private final long deadline;
+
+    private final int maxAttempts;
+
+    private final Random random = new Random();
+
+    public ExponentialBackoffRetryPolicy(long baseDelay, long maxDelay, long deadline, int maxAttempts) {
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.deadline = deadline;
+        this.maxAttempts = maxAttempts;
+    }
+
+    @Override
+    public long nextDelay(int attempt, long previousDelay, long elapsedTime, Throwable error) {
+        if (!isRetryable(error) || attempt >= maxAttempts) {
+            return -1;
+        }
+        long upperBound = Math.max(baseDelay, Math.min(maxDelay, 3 * Math.max(previousDelay, baseDelay)));
+        long delay = baseDelay + (long) (random.nextDouble() * (upperBound - baseDelay));
+        if (elapsedTime + delay > deadline) {
+            return -1;
+        }
+        return delay;
+    }
+
+    /**
+     * Client errors are fatal, except the ones that may go away by themselves: a resource that is
+     * not visible yet, a request timeout, or throttling. Server and transport errors are retryable.
+     */
+    public static boolean isRetryable(Throwable error) {
+        if (error instanceof ConnectorIaasException) {
+            int status = ((ConnectorIaasException) error).getStatus();
+            return status < HttpURLConnection.HTTP_BAD_REQUEST || status >= HttpURLConnection.HTTP_INTERNAL_ERROR ||
+                status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_CLIENT_TIMEOUT ||
+                status == 429;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,46 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Counts the instances of a node source, from the moment their acquisition is decided until their
+ * last node is removed, so that the node source grows without exceeding its maximum number of
+ * instances even when nodes are acquired concurrently.
+ */
+public class FleetSize {
+
+    private final AtomicInteger instancesCount = new AtomicInteger();
+
+    /**
+     * Reserves room for new instances, as many as requested if the maximum allows it.
+     *
+     * @return the number of instances reserved, between 0 and numberOfInstances
+     */
+    public int reserve(int numberOfInstances, int maxNumberOfInstances) {
+        while (true) {
+            int currentCount = instancesCount.get();
+            int reserved = Math.max(0, Math.min(numberOfInstances, maxNumberOfInstances - currentCount));
+            if (reserved == 0 || instancesCount.compareAndSet(currentCount, currentCount + reserved)) {
+                return reserved;
+            }
+        }
+    }
+
+    /**
+     * Frees the room of instances that are gone or could not be created.
+     */
+    public void release(int numberOfInstances) {
+        while (true) {
+            int currentCount = instancesCount.get();
+            if (instancesCount.compareAndSet(currentCount, Math.max(0, currentCount - numberOfInstances))) {
+                return;
+            }
+        }
+    }
+
+    public int get() {
+        return instancesCount.get();
+    }
+
+}
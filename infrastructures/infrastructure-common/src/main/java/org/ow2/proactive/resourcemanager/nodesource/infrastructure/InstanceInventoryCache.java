@@ -0,0 +1,170 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+
+/**
+ * Remembers, per infrastructure, the ids of the instances having a given tag, so that checking
+ * whether the instances of a tag exist does not need a round trip to connector-iaas. Entries
+ * expire after a configurable time and the number of tags remembered is bounded. An index by
+ * instance id keeps the entries up to date when single instances are terminated.
+ */
+public class InstanceInventoryCache {
+
+    public static final String TTL_PROPERTY = "connector-iaas.inventory.ttl";
+    public static final String MAX_SIZE_PROPERTY = "connector-iaas.inventory.maxSize";
+
+    private static final long DEFAULT_TTL = 60000;
+    private static final long DEFAULT_MAX_SIZE = 10000;
+
+    private final Cache<Key, Set<String>> instancesIdsByTag;
+
+    private final ConcurrentMap<Key, Key> tagByInstanceId = Maps.newConcurrentMap();
+
+    public InstanceInventoryCache() {
+        this(Long.getLong(TTL_PROPERTY, DEFAULT_TTL), Long.getLong(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE));
+    }
+
+    public InstanceInventoryCache(long ttl, long maxSize) {
+        this(ttl, maxSize, Ticker.systemTicker());
+    }
+
+    InstanceInventoryCache(long ttl, long maxSize, Ticker ticker) {
+        this.instancesIdsByTag = CacheBuilder.newBuilder().expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .maximumSize(maxSize).ticker(ticker).recordStats()
+                .removalListener(new RemovalListener<Key, Set<String>>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<Key, Set<String>> notification) {
+                        if (notification.getCause() != RemovalCause.REPLACED) {
+                            unindex(notification.getKey(), notification.getValue());
+                        }
+                    }
+                }).build();
+    }
+
+    /**
+     * @return the ids of the instances having the tag, or null if the tag is unknown or expired
+     */
+    public Set<String> getInstancesIds(String infrastructureId, String instanceTag) {
+        return instancesIdsByTag.getIfPresent(new Key(infrastructureId, instanceTag));
+    }
+
+    public void putInstancesIds(String infrastructureId, String instanceTag, Set<String> instancesIds) {
+        Key tagKey = new Key(infrastructureId, instanceTag);
+        Set<String> newInstancesIds = ImmutableSet.copyOf(instancesIds);
+        Set<String> previousInstancesIds = instancesIdsByTag.asMap().put(tagKey, newInstancesIds);
+        if (previousInstancesIds != null) {
+            unindex(tagKey, Sets.difference(previousInstancesIds, newInstancesIds));
+        }
+        index(tagKey, newInstancesIds);
+    }
+
+    public void addInstancesIds(String infrastructureId, String instanceTag, Set<String> instancesIds) {
+        Key tagKey = new Key(infrastructureId, instanceTag);
+        ConcurrentMap<Key, Set<String>> instancesIdsByTagMap = instancesIdsByTag.asMap();
+        while (true) {
+            Set<String> previousInstancesIds = instancesIdsByTagMap.get(tagKey);
+            if (previousInstancesIds == null) {
+                if (instancesIdsByTagMap.putIfAbsent(tagKey, ImmutableSet.copyOf(instancesIds)) == null) {
+                    break;
+                }
+            } else if (instancesIdsByTagMap.replace(tagKey, previousInstancesIds,
+                    ImmutableSet.<String> builder().addAll(previousInstancesIds).addAll(instancesIds).build())) {
+                break;
+            }
+        }
+        index(tagKey, instancesIds);
+    }
+
+    public void removeInstance(String infrastructureId, String instanceId) {
+        Key tagKey = tagByInstanceId.remove(new Key(infrastructureId, instanceId));
+        if (tagKey == null) {
+            return;
+        }
+        ConcurrentMap<Key, Set<String>> instancesIdsByTagMap = instancesIdsByTag.asMap();
+        while (true) {
+            Set<String> previousInstancesIds = instancesIdsByTagMap.get(tagKey);
+            if (previousInstancesIds == null || !previousInstancesIds.contains(instanceId) ||
+                instancesIdsByTagMap.replace(tagKey, previousInstancesIds,
+                        ImmutableSet.copyOf(Sets.difference(previousInstancesIds, ImmutableSet.of(instanceId))))) {
+                return;
+            }
+        }
+    }
+
+    public void invalidateInfrastructure(String infrastructureId) {
+        for (Key tagKey : instancesIdsByTag.asMap().keySet()) {
+            if (tagKey.infrastructureId.equals(infrastructureId)) {
+                instancesIdsByTag.invalidate(tagKey);
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return instancesIdsByTag.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return instancesIdsByTag.stats().missCount();
+    }
+
+    public long getEvictionCount() {
+        return instancesIdsByTag.stats().evictionCount();
+    }
+
+    public long size() {
+        return instancesIdsByTag.size();
+    }
+
+    private void index(Key tagKey, Set<String> instancesIds) {
+        for (String instanceId : instancesIds) {
+            tagByInstanceId.put(new Key(tagKey.infrastructureId, instanceId), tagKey);
+        }
+    }
+
+    private void unindex(Key tagKey, Set<String> instancesIds) {
+        for (String instanceId : instancesIds) {
+            tagByInstanceId.remove(new Key(tagKey.infrastructureId, instanceId), tagKey);
+        }
+    }
+
+    private static final class Key {
+
+        private final String infrastructureId;
+
+        private final String name;
+
+        private Key(String infrastructureId, String name) {
+            this.infrastructureId = infrastructureId;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return infrastructureId.equals(other.infrastructureId) && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(infrastructureId, name);
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+
+/**
+ * Collects the instances to terminate and terminates them together, a short time after the first
+ * one was queued, so that removing many nodes at once results in a few bulk terminations that do
+ * not hold up the caller.
+ */
+public class InstanceTerminationQueue {
+
+    private static final Logger logger = Logger.getLogger(InstanceTerminationQueue.class);
+
+    public static final String WINDOW_PROPERTY = "connector-iaas.termination.window";
+
+    private static final long DEFAULT_WINDOW = 200;
+
+    private static final ScheduledExecutorService scheduler = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("connector-iaas-termination-queue").build());
+
+    private final ConnectorIaasClient connectorIaasClient;
+
+    private final long window;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final Object lock = new Object();
+
+    private Map<String, Map<String, SettableFuture<Void>>> pendingTerminations = Maps.newHashMap();
+
+    private Map<String, Map<String, SettableFuture<Void>>> pendingTerminationsByTag = Maps.newHashMap();
+
+    private boolean flushScheduled;
+
+    public InstanceTerminationQueue(ConnectorIaasClient connectorIaasClient) {
+        this(connectorIaasClient, Long.getLong(WINDOW_PROPERTY, DEFAULT_WINDOW));
+    }
+
+    public InstanceTerminationQueue(ConnectorIaasClient connectorIaasClient, long window) {
+        this.connectorIaasClient = connectorIaasClient;
+        this.window = window;
+    }
+
+    /**
+     * @return the termination of the instance, completed once connector-iaas terminated it
+     */
+    public ListenableFuture<Void> add(String infrastructureId, String instanceId) {
+        synchronized (lock) {
+            return add(pendingTerminations, infrastructureId, instanceId);
+        }
+    }
+
+    /**
+     * For the infrastructures whose instances are only known by their tag.
+     *
+     * @return the termination of the instances with the tag, completed once connector-iaas
+     *         terminated them
+     */
+    public ListenableFuture<Void> addByTag(String infrastructureId, String instanceTag) {
+        synchronized (lock) {
+            return add(pendingTerminationsByTag, infrastructureId, instanceTag);
+        }
+    }
+
+    /**
+     * Must be called holding the lock.
+     */
+    private ListenableFuture<Void> add(Map<String, Map<String, SettableFuture<Void>>> terminations,
+            String infrastructureId, String instanceKey) {
+        Map<String, SettableFuture<Void>> instancesTerminations = terminations.get(infrastructureId);
+        if (instancesTerminations == null) {
+            instancesTerminations = Maps.newHashMap();
+            terminations.put(infrastructureId, instancesTerminations);
+        }
+        SettableFuture<Void> termination = instancesTerminations.get(instanceKey);
+        if (termination == null) {
+            termination = SettableFuture.create();
+            instancesTerminations.put(instanceKey, termination);
+        }
+        if (!flushScheduled) {
+            flushScheduled = true;
+            scheduler.schedule(flushTask, window, TimeUnit.MILLISECONDS);
+        }
+        return termination;
+    }
+
+    /**
+     * Terminates the queued instances now.
+     */
+    public void flush() {
+        Map<String, Map<String, SettableFuture<Void>>> terminations;
+        Map<String, Map<String, SettableFuture<Void>>> terminationsByTag;
+        synchronized (lock) {
+            terminations = pendingTerminations;
+            pendingTerminations = Maps.newHashMap();
+            terminationsByTag = pendingTerminationsByTag;
+            pendingTerminationsByTag = Maps.newHashMap();
+            flushScheduled = false;
+        }
+
+        flush(terminations, false);
+        flush(terminationsByTag, true);
+    }
+
+    private void flush(Map<String, Map<String, SettableFuture<Void>>> terminations, boolean byTag) {
+        for (Map.Entry<String, Map<String, SettableFuture<Void>>> instancesTerminations : terminations
+                .entrySet()) {
+            String infrastructureId = instancesTerminations.getKey();
+            logger.info("Terminating instances of " + infrastructureId + (byTag ? " with tags : " : " : ") +
+                instancesTerminations.getValue().keySet());
+            try {
+                Map<String, ListenableFuture<Void>> results = byTag
+                        ? connectorIaasClient.terminateInstancesByTag(infrastructureId,
+                                instancesTerminations.getValue().keySet())
+                        : connectorIaasClient.terminateInstances(infrastructureId,
+                                instancesTerminations.getValue().keySet());
+                for (Map.Entry<String, SettableFuture<Void>> termination : instancesTerminations.getValue()
+                        .entrySet()) {
+                    termination.getValue().setFuture(results.get(termination.getKey()));
+                }
+            } catch (RuntimeException e) {
+                for (SettableFuture<Void> termination : instancesTerminations.getValue().values()) {
+                    termination.setException(e);
+                }
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        synchronized (lock) {
+            for (Map<String, SettableFuture<Void>> instancesTerminations : pendingTerminations.values()) {
+                size += instancesTerminations.size();
+            }
+            for (Map<String, SettableFuture<Void>> instancesTerminations : pendingTerminationsByTag
+                    .values()) {
+                size += instancesTerminations.size();
+            }
+        }
+        return size;
+    }
+
+}
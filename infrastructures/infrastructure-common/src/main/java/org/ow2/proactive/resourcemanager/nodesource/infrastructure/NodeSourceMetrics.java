@@ -0,0 +1,43 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+/**
+ * Gauges of a node source, read from the bookkeeping of its infrastructure.
+ */
+public class NodeSourceMetrics implements NodeSourceMetricsMXBean {
+
+    private final String infrastructureType;
+
+    private final NodesPerInstances nodesPerInstances;
+
+    public NodeSourceMetrics(String infrastructureType, NodesPerInstances nodesPerInstances) {
+        this.infrastructureType = infrastructureType;
+        this.nodesPerInstances = nodesPerInstances;
+    }
+
+    @Override
+    public String getInfrastructureType() {
+        return infrastructureType;
+    }
+
+    @Override
+    public int getPendingInstances() {
+        return nodesPerInstances.getPendingInstancesCount();
+    }
+
+    @Override
+    public int getLiveInstances() {
+        return nodesPerInstances.size();
+    }
+
+    @Override
+    public int getNodes() {
+        return nodesPerInstances.getNodesCount();
+    }
+
+    @Override
+    public double getNodesPerInstance() {
+        int liveInstances = getLiveInstances();
+        return liveInstances == 0 ? 0 : (double) getNodes() / liveInstances;
+    }
+
+}
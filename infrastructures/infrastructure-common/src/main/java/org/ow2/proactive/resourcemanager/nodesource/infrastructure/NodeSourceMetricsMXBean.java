@@ -0,0 +1,24 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+/**
+ * State of the instances of a node source deployed through connector-iaas.
+ */
+public interface NodeSourceMetricsMXBean {
+
+    String getInfrastructureType();
+
+    /**
+     * @return the number of instances created whose nodes did not register yet
+     */
+    int getPendingInstances();
+
+    /**
+     * @return the number of instances running at least one registered node
+     */
+    int getLiveInstances();
+
+    int getNodes();
+
+    double getNodesPerInstance();
+
+}
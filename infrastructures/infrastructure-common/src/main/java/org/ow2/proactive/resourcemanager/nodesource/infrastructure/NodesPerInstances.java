@@ -0,0 +1,128 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+
+/**
+ * Keeps track of the nodes deployed on each instance without a global lock. Each instance counts
+ * its nodes atomically, so that exactly one of the concurrent removals of its last nodes sees the
+ * instance becoming empty, and so that no node can be added to an instance once it is empty.
+ */
+public class NodesPerInstances {
+
+    private final ConcurrentMap<String, InstanceNodes> nodesPerInstance = Maps.newConcurrentMap();
+
+    // instances whose nodes are being started but did not register yet
+    private final Set<String> pendingInstancesIds = Sets.newConcurrentHashSet();
+
+    public void addPendingInstances(Collection<String> instancesIds) {
+        pendingInstancesIds.addAll(instancesIds);
+    }
+
+    public void removePendingInstances(Collection<String> instancesIds) {
+        pendingInstancesIds.removeAll(instancesIds);
+    }
+
+    public int getPendingInstancesCount() {
+        return pendingInstancesIds.size();
+    }
+
+    public void addNode(String instanceId, String nodeName) {
+        pendingInstancesIds.remove(instanceId);
+        while (true) {
+            InstanceNodes instanceNodes = nodesPerInstance.get(instanceId);
+            if (instanceNodes == null) {
+                InstanceNodes newInstanceNodes = new InstanceNodes();
+                instanceNodes = nodesPerInstance.putIfAbsent(instanceId, newInstanceNodes);
+                if (instanceNodes == null) {
+                    instanceNodes = newInstanceNodes;
+                }
+            }
+            if (instanceNodes.add(nodeName)) {
+                return;
+            }
+            // the instance was emptied meanwhile, start over with a new entry
+            nodesPerInstance.remove(instanceId, instanceNodes);
+        }
+    }
+
+    /**
+     * @return whether the node was the last one of the instance, which is then forgotten
+     */
+    public boolean removeNode(String instanceId, String nodeName) {
+        InstanceNodes instanceNodes = nodesPerInstance.get(instanceId);
+        if (instanceNodes != null && instanceNodes.remove(nodeName)) {
+            nodesPerInstance.remove(instanceId, instanceNodes);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the nodes of the instance, or null if the instance has no nodes
+     */
+    public Set<String> get(String instanceId) {
+        InstanceNodes instanceNodes = nodesPerInstance.get(instanceId);
+        return instanceNodes == null ? null : Collections.unmodifiableSet(instanceNodes.nodes);
+    }
+
+    public Set<String> getInstancesIds() {
+        return Collections.unmodifiableSet(nodesPerInstance.keySet());
+    }
+
+    public int getNodesCount() {
+        int nodesCount = 0;
+        for (InstanceNodes instanceNodes : nodesPerInstance.values()) {
+            nodesCount += instanceNodes.nodes.size();
+        }
+        return nodesCount;
+    }
+
+    public boolean isEmpty() {
+        return nodesPerInstance.isEmpty();
+    }
+
+    public int size() {
+        return nodesPerInstance.size();
+    }
+
+    private static final class InstanceNodes {
+
+        private static final int RETIRED = -1;
+
+        private final Set<String> nodes = Sets.newConcurrentHashSet();
+
+        // number of nodes added or being added, RETIRED once the last node left
+        private final AtomicInteger count = new AtomicInteger();
+
+        private boolean add(String nodeName) {
+            while (true) {
+                int currentCount = count.get();
+                if (currentCount == RETIRED) {
+                    return false;
+                }
+                if (count.compareAndSet(currentCount, currentCount + 1)) {
+                    if (!nodes.add(nodeName)) {
+                        count.decrementAndGet();
+                    }
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return whether the instance is empty and retired after removing the node
+         */
+        private boolean remove(String nodeName) {
+            return nodes.remove(nodeName) && count.decrementAndGet() == 0 && count.compareAndSet(0, RETIRED);
+        }
+    }
+
+}
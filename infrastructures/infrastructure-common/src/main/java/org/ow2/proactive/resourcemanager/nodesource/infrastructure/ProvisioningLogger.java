@@ -0,0 +1,164 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.Enumeration;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.AsyncAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Lists;
+
+
+/**
+ * Logs the provisioning of instances. Messages are patterns whose "{}" placeholders are replaced
+ * by the arguments only if the message is actually logged. Arguments are made safe to log: the
+ * credentials they hold are masked and long ones, such as JSON payloads and script outputs, are
+ * truncated.
+ * <p>
+ * Setting {@value #ASYNC_PROPERTY} to true makes the provisioning loggers write through a
+ * non-blocking {@link AsyncAppender}, so that a slow disk does not slow down the provisioning.
+ */
+public class ProvisioningLogger {
+
+    public static final String MAX_LENGTH_PROPERTY = "connector-iaas.log.maxLength";
+    public static final String ASYNC_PROPERTY = "connector-iaas.log.async";
+
+    static final String ASYNC_APPENDER_NAME = "connector-iaas-async";
+
+    private static final int DEFAULT_MAX_LENGTH = 1000;
+
+    private static final String FQCN = ProvisioningLogger.class.getName();
+
+    private static final String MASK = "****";
+
+    private static final Pattern CREDENTIALS_PATTERN = Pattern.compile(
+            "(\"(?:password|secret|[a-zA-Z_]*[kK]ey)\"\\s*:\\s*)\"(?:[^\"\\\\]|\\\\.)*\"");
+
+    private static final int maxLength = Integer.getInteger(MAX_LENGTH_PROPERTY, DEFAULT_MAX_LENGTH);
+
+    static {
+        if (Boolean.getBoolean(ASYNC_PROPERTY)) {
+            useAsyncAppender(Logger.getLogger(ProvisioningLogger.class.getPackage().getName()));
+        }
+    }
+
+    private final Logger logger;
+
+    private ProvisioningLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    public static ProvisioningLogger getLogger(Class<?> clazz) {
+        return new ProvisioningLogger(Logger.getLogger(clazz));
+    }
+
+    public boolean isDebugEnabled() {
+        return logger.isDebugEnabled();
+    }
+
+    public void debug(String pattern, Object... arguments) {
+        log(Level.DEBUG, null, pattern, arguments);
+    }
+
+    public void info(String pattern, Object... arguments) {
+        log(Level.INFO, null, pattern, arguments);
+    }
+
+    public void warn(String pattern, Object... arguments) {
+        log(Level.WARN, null, pattern, arguments);
+    }
+
+    public void warn(Throwable t, String pattern, Object... arguments) {
+        log(Level.WARN, t, pattern, arguments);
+    }
+
+    public void error(String pattern, Object... arguments) {
+        log(Level.ERROR, null, pattern, arguments);
+    }
+
+    public void error(Throwable t, String pattern, Object... arguments) {
+        log(Level.ERROR, t, pattern, arguments);
+    }
+
+    /**
+     * Replaces each "{}" of the pattern by the next argument, made safe to log.
+     */
+    static String format(String pattern, Object... arguments) {
+        StringBuilder message = new StringBuilder(pattern.length() + 16 * arguments.length);
+        int start = 0;
+        for (Object argument : arguments) {
+            int placeholder = pattern.indexOf("{}", start);
+            if (placeholder < 0) {
+                break;
+            }
+            message.append(pattern, start, placeholder).append(sanitize(String.valueOf(argument)));
+            start = placeholder + 2;
+        }
+        return message.append(pattern, start, pattern.length()).toString();
+    }
+
+    static String sanitize(String text) {
+        return truncate(redact(text), maxLength);
+    }
+
+    /**
+     * Masks the values of the password, secret and key fields of JSON documents.
+     */
+    static String redact(String text) {
+        return CREDENTIALS_PATTERN.matcher(text).replaceAll("$1\"" + MASK + "\"");
+    }
+
+    static String truncate(String text, int maxLength) {
+        if (text.length() <= maxLength) {
+            return text;
+        }
+        return text.substring(0, maxLength) + "... (" + (text.length() - maxLength) + " more characters)";
+    }
+
+    /**
+     * Makes the logger write through a non-blocking asynchronous appender, which drops events rather
+     * than wait when its buffer is full. The appenders of the logger, or the root appenders if it has
+     * none of its own, are moved behind the asynchronous appender.
+     */
+    static synchronized void useAsyncAppender(Logger logger) {
+        if (logger.getAppender(ASYNC_APPENDER_NAME) != null) {
+            return;
+        }
+        AsyncAppender asyncAppender = new AsyncAppender();
+        asyncAppender.setName(ASYNC_APPENDER_NAME);
+        asyncAppender.setBlocking(false);
+
+        List<Appender> ownAppenders = getAppenders(logger.getAllAppenders());
+        List<Appender> appenders = ownAppenders.isEmpty() ?
+                getAppenders(Logger.getRootLogger().getAllAppenders()) : ownAppenders;
+        for (Appender appender : appenders) {
+            asyncAppender.addAppender(appender);
+        }
+        if (ownAppenders.isEmpty()) {
+            logger.setAdditivity(false);
+        }
+        for (Appender appender : ownAppenders) {
+            // removeAllAppenders would close them
+            logger.removeAppender(appender);
+        }
+        logger.addAppender(asyncAppender);
+    }
+
+    private static List<Appender> getAppenders(Enumeration<?> appenders) {
+        List<Appender> appendersList = Lists.newArrayList();
+        while (appenders.hasMoreElements()) {
+            appendersList.add((Appender) appenders.nextElement());
+        }
+        return appendersList;
+    }
+
+    private void log(Level level, Throwable t, String pattern, Object... arguments) {
+        if (logger.isEnabledFor(level)) {
+            logger.log(FQCN, level, format(pattern, arguments), t);
+        }
+    }
+
+}
@@ -0,0 +1,36 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+/**
+ * Latency of the requests made to connector-iaas for one operation, answer status and
+ * infrastructure type. Times are in milliseconds.
+ */
+public interface RequestMetricsMXBean {
+
+    String getOperation();
+
+    /**
+     * @return the HTTP status of the answers, or {@link ConnectorIaasMetrics#NO_RESPONSE}
+     */
+    int getStatus();
+
+    String getInfrastructureType();
+
+    long getCount();
+
+    long getTotalTime();
+
+    double getMeanTime();
+
+    long getMaxTime();
+
+    /**
+     * @return the upper bounds of the histogram buckets, the last bucket having no bound
+     */
+    long[] getHistogramBounds();
+
+    /**
+     * @return the number of requests in each histogram bucket
+     */
+    long[] getHistogramCounts();
+
+}
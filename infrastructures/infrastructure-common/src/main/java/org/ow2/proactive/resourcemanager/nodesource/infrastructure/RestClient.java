@@ -1,78 +1,362 @@
 package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.ws.rs.ProcessingException;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.log4j.Logger;
 import org.jboss.resteasy.client.jaxrs.ResteasyClient;
 import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
 import org.jboss.resteasy.client.jaxrs.ResteasyWebTarget;
+import org.jboss.resteasy.client.jaxrs.engines.ApacheHttpClient4Engine;
+import org.json.JSONObject;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 
 public class RestClient {
 
+    private static final Logger logger = Logger.getLogger(RestClient.class);
+
+    public static final String MAX_CONNECTIONS_PER_ROUTE_PROPERTY = "connector-iaas.http.maxConnectionsPerRoute";
+    public static final String CONNECT_TIMEOUT_PROPERTY = "connector-iaas.http.connectTimeout";
+    public static final String READ_TIMEOUT_PROPERTY = "connector-iaas.http.readTimeout";
+    public static final String IDLE_EVICTION_TIME_PROPERTY = "connector-iaas.http.idleEvictionTime";
+
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 50;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    private static final int DEFAULT_READ_TIMEOUT = 300000;
+    private static final int DEFAULT_IDLE_EVICTION_TIME = 60000;
+
+    private static final ConcurrentMap<String, RestClient> restClientsPerURL = Maps.newConcurrentMap();
+
     private final ResteasyClient restEasyClient;
+    private final CloseableHttpClient httpClient;
+
+    /**
+     * Runs the *Async methods. They do not use non-blocking I/O: each one runs the blocking call of
+     * its synchronous counterpart on a thread of this executor, which only spares the caller's
+     * thread. At most maxConnectionsPerRoute of them are sent at the same time, the others are queued.
+     */
+    private final ListeningExecutorService asyncExecutor;
+
     private final String connectorIaasURL;
 
+    private final ResteasyWebTarget infrastructuresTarget;
+
+    private final ConnectorIaasHealthMonitor healthMonitor;
+
+    private final ConnectorIaasMetrics metrics = ConnectorIaasMetrics.getInstance();
+
+    private final ConcurrentMap<String, AtomicLong> failuresPerInfrastructure = Maps.newConcurrentMap();
+
     public RestClient(String connectorIaasURL) {
-        this.restEasyClient = new ResteasyClientBuilder().build();
+        this(connectorIaasURL,
+             Integer.getInteger(MAX_CONNECTIONS_PER_ROUTE_PROPERTY, DEFAULT_MAX_CONNECTIONS_PER_ROUTE),
+             Integer.getInteger(CONNECT_TIMEOUT_PROPERTY, DEFAULT_CONNECT_TIMEOUT),
+             Integer.getInteger(READ_TIMEOUT_PROPERTY, DEFAULT_READ_TIMEOUT),
+             Integer.getInteger(IDLE_EVICTION_TIME_PROPERTY, DEFAULT_IDLE_EVICTION_TIME));
+    }
+
+    public RestClient(String connectorIaasURL, int maxConnectionsPerRoute, int connectTimeout,
+            int readTimeout, int idleEvictionTime) {
         this.connectorIaasURL = connectorIaasURL;
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnectionsPerRoute);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+
+        RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout).setSocketTimeout(readTimeout).build();
+
+        this.httpClient = HttpClients.custom().setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig).evictExpiredConnections()
+                .evictIdleConnections((long) idleEvictionTime, TimeUnit.MILLISECONDS).build();
+
+        this.restEasyClient = new ResteasyClientBuilder().httpEngine(new ApacheHttpClient4Engine(httpClient))
+                .build();
+        this.infrastructuresTarget = restEasyClient.target(connectorIaasURL + "/infrastructures");
+
+        // asynchronous calls never need more threads than there are pooled connections to serve them,
+        // so the pool size is also the number of asynchronous requests in flight, the others are queued
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxConnectionsPerRoute, maxConnectionsPerRoute,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("connector-iaas-rest-client-%d").build());
+        executor.allowCoreThreadTimeOut(true);
+        this.asyncExecutor = MoreExecutors.listeningDecorator(executor);
+
+        this.healthMonitor = new ConnectorIaasHealthMonitor(this);
+    }
+
+    /**
+     * Returns the client shared by every caller targeting the given connector-iaas URL, so that
+     * they all use the same pool of keep-alive connections.
+     */
+    public static RestClient getInstance(String connectorIaasURL) {
+        RestClient restClient = restClientsPerURL.get(connectorIaasURL);
+        if (restClient == null) {
+            RestClient newRestClient = new RestClient(connectorIaasURL);
+            restClient = restClientsPerURL.putIfAbsent(connectorIaasURL, newRestClient);
+            if (restClient == null) {
+                restClient = newRestClient;
+            } else {
+                newRestClient.close();
+            }
+        }
+        return restClient;
+    }
+
+    public String getConnectorIaasURL() {
+        return connectorIaasURL;
+    }
+
+    /**
+     * @return the monitor of the connector-iaas targeted by this client, fed by its answers
+     */
+    public ConnectorIaasHealthMonitor getHealthMonitor() {
+        return healthMonitor;
+    }
+
+    /**
+     * @return how many requests about the infrastructure were answered with a 404 or could not reach
+     *         connector-iaas: when it changes, connector-iaas may have lost the infrastructure
+     */
+    public long getInfrastructureFailureCount(String infrastructureId) {
+        AtomicLong failures = failuresPerInfrastructure.get(infrastructureId);
+        return failures == null ? 0 : failures.get();
     }
 
     public String getInfrastructures() {
-        ResteasyWebTarget target = initWebTarget(connectorIaasURL + "/infrastructures");
-        Response response = target.request(MediaType.APPLICATION_JSON_TYPE).get();
+        Response response = invoke(ConnectorIaasMetrics.GET_INFRASTRUCTURES, null,
+                infrastructuresTarget.request(MediaType.APPLICATION_JSON_TYPE).buildGet());
         return checkAndGetResponse(response);
     }
 
     public String getInstancesByInfrastructure(String infrastructureId) {
-        ResteasyWebTarget target = initWebTarget(connectorIaasURL + "/infrastructures/" + infrastructureId + "/instances");
-        Response response = target.request(MediaType.APPLICATION_JSON_TYPE).get();
+        ResteasyWebTarget target = instancesTarget(infrastructureId);
+        Response response = invoke(ConnectorIaasMetrics.GET_INSTANCES, infrastructureId,
+                target.request(MediaType.APPLICATION_JSON_TYPE).buildGet());
         return checkAndGetResponse(response);
     }
 
+    /**
+     * Streams the instance listing of the infrastructure and only keeps the id and the tag of each
+     * instance, see {@link ConnectorIaasInstancesReader}.
+     */
+    public Set<JSONObject> getInstancesIdAndTagByInfrastructure(String infrastructureId) {
+        return readInstancesIdAndTag(infrastructureId, instancesTarget(infrastructureId));
+    }
+
+    /**
+     * Same as {@link #getInstancesIdAndTagByInfrastructure(String)}, but only asks for one page of the
+     * instances having the given tag.
+     */
+    public Set<JSONObject> getInstancesIdAndTagByInfrastructureAndTag(String infrastructureId,
+            String instanceTag, int offset, int limit) {
+        return readInstancesIdAndTag(infrastructureId, instancesTarget(infrastructureId)
+                .queryParam("instanceTag", instanceTag).queryParam("offset", offset)
+                .queryParam("limit", limit));
+    }
+
     public String postToInfrastructuresWebResource(String infrastructureJson) {
-        ResteasyWebTarget target = initWebTarget(connectorIaasURL + "/infrastructures");
-        Response response = target.request().post(Entity.entity(infrastructureJson, MediaType.APPLICATION_JSON_TYPE));
+        Response response = invoke(ConnectorIaasMetrics.POST_INFRASTRUCTURES, null, infrastructuresTarget
+                .request().buildPost(Entity.entity(infrastructureJson, MediaType.APPLICATION_JSON_TYPE)));
         return checkAndGetResponse(response);
     }
 
     public void deleteInfrastructuresWebResource(String infrastructureId) {
-        ResteasyWebTarget target = initWebTarget(connectorIaasURL + "/infrastructures/" + infrastructureId);
-        Response response = target.request(MediaType.APPLICATION_JSON_TYPE).delete();
+        ResteasyWebTarget target = infrastructuresTarget.path(infrastructureId);
+        Response response = invoke(ConnectorIaasMetrics.DELETE_INFRASTRUCTURES, infrastructureId,
+                target.request(MediaType.APPLICATION_JSON_TYPE).buildDelete());
         checkAndGetResponse(response);
     }
 
     public String postToInstancesWebResource(String infrastructureId, String instanceJson) {
-        ResteasyWebTarget target = initWebTarget(connectorIaasURL + "/infrastructures/" + infrastructureId + "/instances");
-        Response response = target.request().post(Entity.entity(instanceJson, MediaType.APPLICATION_JSON_TYPE));
+        ResteasyWebTarget target = instancesTarget(infrastructureId);
+        Response response = invoke(ConnectorIaasMetrics.POST_INSTANCES, infrastructureId,
+                target.request().buildPost(Entity.entity(instanceJson, MediaType.APPLICATION_JSON_TYPE)));
         return checkAndGetResponse(response);
     }
 
     public void deleteToInstancesWebResource(String infrastructureId, String key, String value) {
-        ResteasyWebTarget target = initWebTarget(connectorIaasURL + "/infrastructures/" + infrastructureId + "/instances");
-        Response response = target.queryParam(key, value).request(MediaType.APPLICATION_JSON_TYPE).delete();
+        ResteasyWebTarget target = instancesTarget(infrastructureId);
+        Response response = invoke(ConnectorIaasMetrics.DELETE_INSTANCES, infrastructureId,
+                target.queryParam(key, value).request(MediaType.APPLICATION_JSON_TYPE).buildDelete());
         checkAndGetResponse(response);
     }
 
     public String postToScriptsWebResource(String infrastructureId, String key, String value,
             String scriptJson) {
-        ResteasyWebTarget target = initWebTarget(connectorIaasURL + "/infrastructures/" + infrastructureId + "/instances/scripts");
-        Response response = target.queryParam(key, value).request().post(Entity.entity(scriptJson, MediaType.APPLICATION_JSON_TYPE));
+        ResteasyWebTarget target = instancesTarget(infrastructureId).path("scripts");
+        Response response = invoke(ConnectorIaasMetrics.POST_SCRIPTS, infrastructureId,
+                target.queryParam(key, value).request()
+                        .buildPost(Entity.entity(scriptJson, MediaType.APPLICATION_JSON_TYPE)));
         return checkAndGetResponse(response);
     }
 
+    public ListenableFuture<String> getInstancesByInfrastructureAsync(final String infrastructureId) {
+        return asyncExecutor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return getInstancesByInfrastructure(infrastructureId);
+            }
+        });
+    }
+
+    public ListenableFuture<Set<JSONObject>> getInstancesIdAndTagByInfrastructureAsync(
+            final String infrastructureId) {
+        return asyncExecutor.submit(new Callable<Set<JSONObject>>() {
+            @Override
+            public Set<JSONObject> call() {
+                return getInstancesIdAndTagByInfrastructure(infrastructureId);
+            }
+        });
+    }
+
+    public ListenableFuture<Set<JSONObject>> getInstancesIdAndTagByInfrastructureAndTagAsync(
+            final String infrastructureId, final String instanceTag, final int offset, final int limit) {
+        return asyncExecutor.submit(new Callable<Set<JSONObject>>() {
+            @Override
+            public Set<JSONObject> call() {
+                return getInstancesIdAndTagByInfrastructureAndTag(infrastructureId, instanceTag, offset, limit);
+            }
+        });
+    }
+
+    public ListenableFuture<String> postToInstancesWebResourceAsync(final String infrastructureId,
+            final String instanceJson) {
+        return asyncExecutor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return postToInstancesWebResource(infrastructureId, instanceJson);
+            }
+        });
+    }
+
+    public ListenableFuture<Void> deleteInfrastructuresWebResourceAsync(final String infrastructureId) {
+        return asyncExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                deleteInfrastructuresWebResource(infrastructureId);
+                return null;
+            }
+        });
+    }
+
+    public ListenableFuture<Void> deleteToInstancesWebResourceAsync(final String infrastructureId,
+            final String key, final String value) {
+        return asyncExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                deleteToInstancesWebResource(infrastructureId, key, value);
+                return null;
+            }
+        });
+    }
+
+    public ListenableFuture<String> postToScriptsWebResourceAsync(final String infrastructureId,
+            final String key, final String value, final String scriptJson) {
+        return asyncExecutor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return postToScriptsWebResource(infrastructureId, key, value, scriptJson);
+            }
+        });
+    }
+
+    public void close() {
+        restClientsPerURL.remove(connectorIaasURL, this);
+        healthMonitor.close();
+        asyncExecutor.shutdown();
+        restEasyClient.close();
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close the connection pool to " + connectorIaasURL, e);
+        }
+    }
+
+    /**
+     * Sends the request and records how long connector-iaas took to answer.
+     */
+    private Response invoke(String operation, String infrastructureId, Invocation invocation) {
+        long start = System.nanoTime();
+        int status = ConnectorIaasMetrics.NO_RESPONSE;
+        try {
+            Response response = invocation.invoke();
+            status = response.getStatus();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                recordInfrastructureFailure(infrastructureId);
+            }
+            return response;
+        } catch (ProcessingException e) {
+            healthMonitor.reportError(e);
+            recordInfrastructureFailure(infrastructureId);
+            throw e;
+        } finally {
+            metrics.recordRequest(operation, infrastructureId, status, System.nanoTime() - start);
+        }
+    }
+
+    private void recordInfrastructureFailure(String infrastructureId) {
+        if (infrastructureId == null) {
+            return;
+        }
+        AtomicLong failures = failuresPerInfrastructure.get(infrastructureId);
+        if (failures == null) {
+            AtomicLong newFailures = new AtomicLong();
+            failures = failuresPerInfrastructure.putIfAbsent(infrastructureId, newFailures);
+            if (failures == null) {
+                failures = newFailures;
+            }
+        }
+        failures.incrementAndGet();
+    }
+
     private Response checkResponseIsOK(Response response) {
+        healthMonitor.reportResponse(response.getStatus());
         if (response.getStatus() != HttpURLConnection.HTTP_OK) {
-            throw new RuntimeException("Failed : HTTP error code : " + response.getStatus());
+            throw new ConnectorIaasException(response.getStatus());
         }
         return response;
     }
 
-    private ResteasyWebTarget initWebTarget(String url){
-        return restEasyClient.target(url);
+    private ResteasyWebTarget instancesTarget(String infrastructureId) {
+        return infrastructuresTarget.path(infrastructureId).path("instances");
+    }
+
+    private Set<JSONObject> readInstancesIdAndTag(String infrastructureId, ResteasyWebTarget target) {
+        Response response = invoke(ConnectorIaasMetrics.GET_INSTANCES, infrastructureId,
+                target.request(MediaType.APPLICATION_JSON_TYPE).buildGet());
+        try {
+            InputStream instances = checkResponseIsOK(response).readEntity(InputStream.class);
+            return ConnectorIaasInstancesReader.readIdsAndTags(new InputStreamReader(instances, Charsets.UTF_8));
+        } finally {
+            response.close();
+        }
     }
 
     private String checkAndGetResponse(Response response){
@@ -0,0 +1,135 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+
+/**
+ * Runs connector-iaas calls again on failure, as decided by a {@link RetryPolicy}, and records the
+ * attempts in {@link RetryMetrics}. Asynchronous calls are retried through a scheduler so that no
+ * thread waits between two attempts.
+ */
+public class RetryExecutor {
+
+    private static final Logger logger = Logger.getLogger(RetryExecutor.class);
+
+    private final RetryPolicy retryPolicy;
+
+    private final RetryMetrics retryMetrics;
+
+    private final ScheduledExecutorService scheduler;
+
+    public RetryExecutor(RetryPolicy retryPolicy, RetryMetrics retryMetrics, ScheduledExecutorService scheduler) {
+        this.retryPolicy = retryPolicy;
+        this.retryMetrics = retryMetrics;
+        this.scheduler = scheduler;
+    }
+
+    public <T> T execute(String operation, Callable<T> call) {
+        RetryMetrics.OperationMetrics operationMetrics = retryMetrics.getOperationMetrics(operation);
+        long start = System.currentTimeMillis();
+        long firstFailure = 0;
+        long delay = 0;
+        int attempt = 0;
+        while (true) {
+            attempt++;
+            operationMetrics.recordAttempt();
+            try {
+                T result = call.call();
+                recordTimeSpentRetrying(operationMetrics, firstFailure);
+                return result;
+            } catch (Exception e) {
+                long now = System.currentTimeMillis();
+                if (firstFailure == 0) {
+                    firstFailure = now;
+                }
+                delay = retryPolicy.nextDelay(attempt, delay, now - start, e);
+                if (delay < 0) {
+                    giveUp(operation, operationMetrics, firstFailure, attempt, e);
+                    throw Throwables.propagate(e);
+                }
+                operationMetrics.recordRetry();
+                logger.debug(operation + " failed at attempt " + attempt + ", retrying in " + delay + " ms", e);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    giveUp(operation, operationMetrics, firstFailure, attempt, e);
+                    throw Throwables.propagate(e);
+                }
+            }
+        }
+    }
+
+    public <T> ListenableFuture<T> executeAsync(String operation, Supplier<ListenableFuture<T>> call) {
+        SettableFuture<T> result = SettableFuture.create();
+        executeAsync(operation, call, result, System.currentTimeMillis(), 0, 1, 0);
+        return result;
+    }
+
+    private <T> void executeAsync(final String operation, final Supplier<ListenableFuture<T>> call,
+            final SettableFuture<T> result, final long start, final long firstFailure, final int attempt,
+            final long previousDelay) {
+        final RetryMetrics.OperationMetrics operationMetrics = retryMetrics.getOperationMetrics(operation);
+        operationMetrics.recordAttempt();
+
+        ListenableFuture<T> attemptResult;
+        try {
+            attemptResult = call.get();
+        } catch (RuntimeException e) {
+            attemptResult = Futures.immediateFailedFuture(e);
+        }
+
+        Futures.addCallback(attemptResult, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                recordTimeSpentRetrying(operationMetrics, firstFailure);
+                result.set(value);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                long now = System.currentTimeMillis();
+                final long failure = firstFailure == 0 ? now : firstFailure;
+                final long delay = retryPolicy.nextDelay(attempt, previousDelay, now - start, t);
+                if (delay < 0) {
+                    giveUp(operation, operationMetrics, failure, attempt, t);
+                    result.setException(t);
+                    return;
+                }
+                operationMetrics.recordRetry();
+                logger.debug(operation + " failed at attempt " + attempt + ", retrying in " + delay + " ms", t);
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        executeAsync(operation, call, result, start, failure, attempt + 1, delay);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    private void recordTimeSpentRetrying(RetryMetrics.OperationMetrics operationMetrics, long firstFailure) {
+        if (firstFailure != 0) {
+            operationMetrics.recordTimeSpentRetrying(System.currentTimeMillis() - firstFailure);
+        }
+    }
+
+    private void giveUp(String operation, RetryMetrics.OperationMetrics operationMetrics, long firstFailure,
+            int attempt, Throwable error) {
+        operationMetrics.recordFailure();
+        recordTimeSpentRetrying(operationMetrics, firstFailure);
+        logger.error(operation + " failed after " + attempt + " attempt(s)", error);
+    }
+
+}
@@ -0,0 +1,81 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+
+/**
+ * Counts, per operation, the attempts made by a {@link RetryExecutor} and the time it spent retrying.
+ */
+public class RetryMetrics {
+
+    private final ConcurrentMap<String, OperationMetrics> metricsPerOperation = Maps.newConcurrentMap();
+
+    public OperationMetrics getOperationMetrics(String operation) {
+        OperationMetrics operationMetrics = metricsPerOperation.get(operation);
+        if (operationMetrics == null) {
+            OperationMetrics newOperationMetrics = new OperationMetrics();
+            operationMetrics = metricsPerOperation.putIfAbsent(operation, newOperationMetrics);
+            if (operationMetrics == null) {
+                operationMetrics = newOperationMetrics;
+            }
+        }
+        return operationMetrics;
+    }
+
+    public Map<String, OperationMetrics> getMetricsPerOperation() {
+        return ImmutableMap.copyOf(metricsPerOperation);
+    }
+
+    public static class OperationMetrics {
+
+        private final AtomicLong attempts = new AtomicLong();
+
+        private final AtomicLong retries = new AtomicLong();
+
+        private final AtomicLong failures = new AtomicLong();
+
+        private final AtomicLong timeSpentRetrying = new AtomicLong();
+
+        void recordAttempt() {
+            attempts.incrementAndGet();
+        }
+
+        void recordRetry() {
+            retries.incrementAndGet();
+        }
+
+        void recordFailure() {
+            failures.incrementAndGet();
+        }
+
+        void recordTimeSpentRetrying(long time) {
+            timeSpentRetrying.addAndGet(time);
+        }
+
+        public long getAttempts() {
+            return attempts.get();
+        }
+
+        public long getRetries() {
+            return retries.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * @return the time elapsed between the first failed attempt and the end of the operation, in
+         *         milliseconds, summed over all the operations
+         */
+        public long getTimeSpentRetrying() {
+            return timeSpentRetrying.get();
+        }
+    }
+
+}
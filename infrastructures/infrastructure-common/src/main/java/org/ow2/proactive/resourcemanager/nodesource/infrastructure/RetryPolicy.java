@@ -0,0 +1,17 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+/**
+ * Decides whether and when a failed connector-iaas call is attempted again.
+ */
+public interface RetryPolicy {
+
+    /**
+     * @param attempt the number of attempts made so far, starting at 1
+     * @param previousDelay the delay waited before the failed attempt, 0 for the first one
+     * @param elapsedTime the time spent on the operation so far, in milliseconds
+     * @param error the error of the failed attempt
+     * @return the delay to wait before the next attempt in milliseconds, or a negative value to give up
+     */
+    long nextDelay(int attempt, long previousDelay, long elapsedTime, Throwable error);
+
+}
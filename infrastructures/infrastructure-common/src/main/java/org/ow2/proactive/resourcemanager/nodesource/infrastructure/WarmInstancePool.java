@@ -0,0 +1,453 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+
+/**
+ * Keeps a number of instances of an infrastructure booted and ready to start nodes, so that
+ * acquiring nodes does not wait for instances to boot. Parked instances have been created and
+ * prepared, usually by downloading node.jar, but run no node yet. Claimed instances are replaced
+ * in the background.
+ * <p>
+ * Instances whose nodes were all removed can also be retained in the pool for a while instead of
+ * being terminated, so that nodes acquired shortly after do not pay for a new boot. A retained
+ * instance is terminated once its idle timeout elapses, or just before it starts a new billing
+ * period, whichever comes first.
+ */
+public class WarmInstancePool {
+
+    private static final Logger logger = Logger.getLogger(WarmInstancePool.class);
+
+    public static final String BILLING_MARGIN_PROPERTY = "connector-iaas.idle.billingMargin";
+
+    private static final long DEFAULT_BILLING_MARGIN = 60000;
+
+    private static final ScheduledExecutorService scheduler = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("connector-iaas-warm-pool").build());
+
+    /**
+     * Creates and prepares the instances of the pool.
+     */
+    public interface InstanceFactory {
+
+        ListenableFuture<Set<String>> createInstances(String instanceTag, int numberOfInstances);
+
+        /**
+         * Makes the instances, which are the only ones with the tag, ready to start nodes without
+         * starting them.
+         *
+         * @return the preparation of each instance, by instance id
+         */
+        Map<String, ? extends ListenableFuture<?>> prepareInstances(String instanceTag,
+                Set<String> instancesIds);
+    }
+
+    private final ConnectorIaasController connectorIaasController;
+
+    private final String infrastructureId;
+
+    private final int size;
+
+    private final InstanceFactory instanceFactory;
+
+    private final long idleTimeout;
+
+    private final long billingPeriod;
+
+    private final long billingMargin;
+
+    private final Queue<ParkedInstance> parkedInstances = Queues.newConcurrentLinkedQueue();
+
+    private final ConcurrentMap<String, Long> launchTimes = Maps.newConcurrentMap();
+
+    private final AtomicInteger pendingInstances = new AtomicInteger();
+
+    private final AtomicInteger refillsCounter = new AtomicInteger();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong refillCount = new AtomicLong();
+
+    private final AtomicLong totalRefillTime = new AtomicLong();
+
+    private final AtomicLong retainedCount = new AtomicLong();
+
+    private final AtomicLong reusedCount = new AtomicLong();
+
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    private final AtomicLong bootCount = new AtomicLong();
+
+    private final AtomicLong totalBootTime = new AtomicLong();
+
+    private final AtomicLong savedBootTime = new AtomicLong();
+
+    private boolean closed;
+
+    public WarmInstancePool(ConnectorIaasController connectorIaasController, String infrastructureId,
+            int size, InstanceFactory instanceFactory) {
+        this(connectorIaasController, infrastructureId, size, 0, 0, instanceFactory);
+    }
+
+    /**
+     * @param idleTimeout
+     *            how long, in milliseconds, an instance without nodes is retained, 0 to terminate it
+     *            at once
+     * @param billingPeriod
+     *            the length, in milliseconds, of the periods the instances are billed by, 0 if the
+     *            billing does not matter
+     */
+    public WarmInstancePool(ConnectorIaasController connectorIaasController, String infrastructureId,
+            int size, long idleTimeout, long billingPeriod, InstanceFactory instanceFactory) {
+        this.connectorIaasController = connectorIaasController;
+        this.infrastructureId = infrastructureId;
+        this.size = size;
+        this.idleTimeout = idleTimeout;
+        this.billingPeriod = billingPeriod;
+        this.billingMargin = Long.getLong(BILLING_MARGIN_PROPERTY, DEFAULT_BILLING_MARGIN);
+        this.instanceFactory = instanceFactory;
+    }
+
+    /**
+     * Takes up to the given number of parked instances out of the pool, then refills the pool.
+     *
+     * @return the ids of the instances taken, fewer than asked if the pool did not have enough
+     */
+    public List<String> claim(int numberOfInstances) {
+        List<String> instancesIds = Lists.newArrayList();
+        if (size <= 0 && idleTimeout <= 0) {
+            return instancesIds;
+        }
+        while (instancesIds.size() < numberOfInstances) {
+            ParkedInstance parkedInstance = parkedInstances.poll();
+            if (parkedInstance == null) {
+                break;
+            }
+            if (parkedInstance.retained) {
+                reusedCount.incrementAndGet();
+                savedBootTime.addAndGet(getAverageBootTime());
+            }
+            instancesIds.add(parkedInstance.instanceId);
+        }
+        hitCount.addAndGet(instancesIds.size());
+        missCount.addAndGet(numberOfInstances - instancesIds.size());
+        logger.info("Claimed " + instancesIds.size() + " of " + numberOfInstances +
+            " instances from the warm pool of " + infrastructureId);
+
+        refill();
+        return instancesIds;
+    }
+
+    /**
+     * Creates the instances missing for the pool to be full, counting the ones being created.
+     */
+    public synchronized void refill() {
+        if (closed) {
+            return;
+        }
+        final int missingInstances = size - parkedInstances.size() - pendingInstances.get();
+        if (missingInstances <= 0) {
+            return;
+        }
+        pendingInstances.addAndGet(missingInstances);
+        final long start = System.currentTimeMillis();
+        final String instanceTag = infrastructureId + "-warm-" + start + "-" +
+                                   refillsCounter.incrementAndGet();
+
+        ListenableFuture<Set<String>> instancesIds;
+        try {
+            instancesIds = instanceFactory.createInstances(instanceTag, missingInstances);
+        } catch (RuntimeException e) {
+            instancesIds = Futures.immediateFailedFuture(e);
+        }
+
+        Futures.addCallback(instancesIds, new FutureCallback<Set<String>>() {
+            @Override
+            public void onSuccess(Set<String> result) {
+                pendingInstances.addAndGet(-Math.max(0, missingInstances - result.size()));
+                if (isClosed()) {
+                    for (String instanceId : result) {
+                        pendingInstances.decrementAndGet();
+                        connectorIaasController.queueInstanceTermination(infrastructureId, instanceId);
+                    }
+                } else if (!result.isEmpty()) {
+                    prepare(instanceTag, result, start);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                pendingInstances.addAndGet(-missingInstances);
+                logger.error("Error while creating warm instances of " + infrastructureId, t);
+            }
+        });
+    }
+
+    /**
+     * Records that instances were just created and how long they took to be ready for nodes.
+     */
+    public void recordLaunch(Collection<String> instancesIds, long bootTime) {
+        for (String instanceId : instancesIds) {
+            bootCount.incrementAndGet();
+            totalBootTime.addAndGet(bootTime);
+            if (billingPeriod > 0) {
+                launchTimes.putIfAbsent(instanceId, System.currentTimeMillis() - bootTime);
+            }
+        }
+    }
+
+    /**
+     * Parks an instance whose nodes were all removed, if idle retention is enabled and the instance
+     * can still be used before its current billing period ends.
+     *
+     * @return whether the instance was retained, otherwise it is up to the caller to terminate it
+     */
+    public boolean retain(String instanceId) {
+        long now = System.currentTimeMillis();
+        long expiry = idleTimeout <= 0 ? now : computeExpiry(launchTimes.get(instanceId), now);
+        if (expiry <= now) {
+            launchTimes.remove(instanceId);
+            return false;
+        }
+
+        final ParkedInstance parkedInstance = new ParkedInstance(instanceId, true);
+        if (!park(parkedInstance)) {
+            launchTimes.remove(instanceId);
+            return false;
+        }
+        retainedCount.incrementAndGet();
+        parkedInstance.expiryTimer = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire(parkedInstance);
+            }
+        }, expiry - now, TimeUnit.MILLISECONDS);
+        logger.info("Retained idle instance " + instanceId + " for " + (expiry - now) + " ms");
+        return true;
+    }
+
+    /**
+     * Stops refilling the pool and terminates, through the termination queue, the instances it
+     * holds. Instances still being created or prepared are terminated once they are ready.
+     */
+    public void close() {
+        List<ParkedInstance> instancesToTerminate = Lists.newArrayList();
+        synchronized (this) {
+            closed = true;
+            ParkedInstance parkedInstance;
+            while ((parkedInstance = parkedInstances.poll()) != null) {
+                instancesToTerminate.add(parkedInstance);
+            }
+        }
+        for (ParkedInstance parkedInstance : instancesToTerminate) {
+            if (parkedInstance.expiryTimer != null) {
+                parkedInstance.expiryTimer.cancel(false);
+            }
+            launchTimes.remove(parkedInstance.instanceId);
+            connectorIaasController.queueInstanceTermination(infrastructureId, parkedInstance.instanceId);
+        }
+        if (!instancesToTerminate.isEmpty()) {
+            logger.info("Terminating the " + instancesToTerminate.size() + " instances of the warm pool of " +
+                infrastructureId);
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public int getParkedInstancesCount() {
+        return parkedInstances.size();
+    }
+
+    public int getPendingInstancesCount() {
+        return pendingInstances.get();
+    }
+
+    /**
+     * @return the number of instances asked for that the pool could provide
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return the number of instances asked for that had to be created on demand
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return the number of instances parked in the pool so far
+     */
+    public long getRefillCount() {
+        return refillCount.get();
+    }
+
+    /**
+     * @return the mean time, in milliseconds, from asking for an instance to having it parked
+     */
+    public long getAverageRefillTime() {
+        long count = refillCount.get();
+        return count == 0 ? 0 : totalRefillTime.get() / count;
+    }
+
+    /**
+     * @return the number of instances without nodes that were retained instead of being terminated
+     */
+    public long getRetainedCount() {
+        return retainedCount.get();
+    }
+
+    /**
+     * @return the number of retained instances that were claimed before they expired
+     */
+    public long getReusedCount() {
+        return reusedCount.get();
+    }
+
+    /**
+     * @return the number of retained instances terminated because nobody claimed them in time
+     */
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    /**
+     * @return the fraction of the retained instances that were claimed again
+     */
+    public double getReuseRate() {
+        long count = retainedCount.get();
+        return count == 0 ? 0 : (double) reusedCount.get() / count;
+    }
+
+    /**
+     * @return the mean time, in milliseconds, new instances took to be ready for nodes
+     */
+    public long getAverageBootTime() {
+        long count = bootCount.get();
+        return count == 0 ? 0 : totalBootTime.get() / count;
+    }
+
+    /**
+     * @return an estimate, in milliseconds, of the boot time saved by reusing retained instances
+     */
+    public long getSavedBootTime() {
+        return savedBootTime.get();
+    }
+
+    long computeExpiry(Long launchTime, long now) {
+        long expiry = now + idleTimeout;
+        if (billingPeriod > 0 && launchTime != null) {
+            long nextBillingBoundary = launchTime + ((now - launchTime) / billingPeriod + 1) * billingPeriod;
+            expiry = Math.min(expiry, nextBillingBoundary - billingMargin);
+        }
+        return expiry;
+    }
+
+    private void expire(ParkedInstance parkedInstance) {
+        // the instance may have been claimed in the meantime
+        if (parkedInstances.remove(parkedInstance)) {
+            expiredCount.incrementAndGet();
+            launchTimes.remove(parkedInstance.instanceId);
+            logger.info("Idle instance " + parkedInstance.instanceId + " expired, terminating it");
+            connectorIaasController.queueInstanceTermination(infrastructureId, parkedInstance.instanceId);
+        }
+    }
+
+    private void prepare(String instanceTag, Set<String> instancesIds, long start) {
+        Map<String, ? extends ListenableFuture<?>> preparations;
+        try {
+            preparations = instanceFactory.prepareInstances(instanceTag, instancesIds);
+        } catch (RuntimeException e) {
+            logger.error("Error while preparing the warm instances with tag " + instanceTag, e);
+            preparations = Collections.emptyMap();
+        }
+
+        for (String instanceId : instancesIds) {
+            ListenableFuture<?> preparation = preparations.get(instanceId);
+            if (preparation == null) {
+                preparation = Futures.immediateFailedFuture(
+                        new IllegalStateException("The instance " + instanceId + " was not prepared"));
+            }
+            prepare(instanceId, preparation, start);
+        }
+    }
+
+    private void prepare(final String instanceId, ListenableFuture<?> preparation, final long start) {
+        Futures.addCallback(preparation, new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(Object result) {
+                long refillTime = System.currentTimeMillis() - start;
+                totalRefillTime.addAndGet(refillTime);
+                refillCount.incrementAndGet();
+                recordLaunch(Collections.singleton(instanceId), refillTime);
+                pendingInstances.decrementAndGet();
+                if (!park(new ParkedInstance(instanceId, false))) {
+                    launchTimes.remove(instanceId);
+                    connectorIaasController.queueInstanceTermination(infrastructureId, instanceId);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                pendingInstances.decrementAndGet();
+                logger.error("Error while preparing warm instance " + instanceId + ", terminating it", t);
+                connectorIaasController.queueInstanceTermination(infrastructureId, instanceId);
+            }
+        });
+    }
+
+    /**
+     * @return whether the instance was parked, false if the pool is closed
+     */
+    private synchronized boolean park(ParkedInstance parkedInstance) {
+        if (closed) {
+            return false;
+        }
+        parkedInstances.add(parkedInstance);
+        return true;
+    }
+
+    private static final class ParkedInstance {
+
+        private final String instanceId;
+
+        // whether the instance ran nodes before, as opposed to being created for the pool
+        private final boolean retained;
+
+        private volatile ScheduledFuture<?> expiryTimer;
+
+        private ParkedInstance(String instanceId, boolean retained) {
+            this.instanceId = instanceId;
+            this.retained = retained;
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.ow2.proactive.resourcemanager.nodesource.infrastructure.AcquisitionTracer.InstanceTrace;
+import org.ow2.proactive.resourcemanager.nodesource.infrastructure.AcquisitionTracer.Stage;
+
+import com.google.common.collect.Maps;
+
+
+public class AcquisitionTracerTest {
+
+    private AcquisitionTracer tracer;
+
+    @Before
+    public void init() {
+        tracer = new AcquisitionTracer(100);
+    }
+
+    @Test
+    public void testDurations() {
+        tracer.record("infra", "123", Stage.CREATE_REQUESTED, 1000);
+        tracer.record("infra", "123", Stage.CREATE_ANSWERED, 3000);
+        tracer.record("infra", "123", Stage.FIRST_SCRIPT_ATTEMPT, 3500);
+        tracer.record("infra", "123", Stage.LAST_SCRIPT_ATTEMPT, 3500);
+        tracer.record("infra", "123", Stage.FIRST_SCRIPT_ATTEMPT, 13500);
+        tracer.record("infra", "123", Stage.LAST_SCRIPT_ATTEMPT, 13500);
+        tracer.record("infra", "123", Stage.NODE_REGISTERED, 20000);
+
+        InstanceTrace trace = tracer.getTraces().get(0);
+
+        assertThat(trace.getInstanceId(), is("123"));
+        assertThat(trace.getTimestamp(Stage.FIRST_SCRIPT_ATTEMPT), is(3500L));
+        assertThat(trace.getDuration(Stage.CREATE_REQUESTED), is(-1L));
+        assertThat(trace.getDuration(Stage.CREATE_ANSWERED), is(2000L));
+        assertThat(trace.getDuration(Stage.FIRST_SCRIPT_ATTEMPT), is(500L));
+        assertThat(trace.getDuration(Stage.LAST_SCRIPT_ATTEMPT), is(10000L));
+        assertThat(trace.getDuration(Stage.NODE_REGISTERED), is(6500L));
+        assertThat(trace.getDuration(Stage.TERMINATED), is(-1L));
+    }
+
+    @Test
+    public void testInstancesAreTracedFromTheLatestEarlierRegistration() throws InterruptedException {
+        tracer.infrastructureRegistered("infra");
+        Thread.sleep(10);
+        long latestRegistration = System.currentTimeMillis();
+        tracer.infrastructureRegistered("infra");
+        long requestTime = System.currentTimeMillis();
+
+        tracer.instancesCreated("infra", Collections.singleton("123"), requestTime);
+        tracer.instancesCreated("infra", Collections.singleton("456"), latestRegistration - 5);
+
+        Map<String, InstanceTrace> tracesPerInstance = Maps.newHashMap();
+        for (InstanceTrace trace : tracer.getTraces()) {
+            tracesPerInstance.put(trace.getInstanceId(), trace);
+        }
+        long registrationTime = tracesPerInstance.get("123").getTimestamp(Stage.INFRASTRUCTURE_REGISTERED);
+        assertThat(registrationTime >= latestRegistration && registrationTime <= requestTime, is(true));
+        assertThat(tracesPerInstance.get("456").getTimestamp(Stage.INFRASTRUCTURE_REGISTERED), is(0L));
+    }
+
+    @Test
+    public void testStagePercentiles() {
+        for (int i = 1; i <= 10; i++) {
+            tracer.record("infra", "instance" + i, Stage.CREATE_REQUESTED, 1000);
+            tracer.record("infra", "instance" + i, Stage.CREATE_ANSWERED, 1000 + i * 100);
+        }
+
+        Map<Stage, long[]> percentiles = tracer.getStagePercentiles(50, 90, 100);
+
+        assertThat(percentiles.size(), is(1));
+        assertThat(percentiles.get(Stage.CREATE_ANSWERED)[0], is(500L));
+        assertThat(percentiles.get(Stage.CREATE_ANSWERED)[1], is(900L));
+        assertThat(percentiles.get(Stage.CREATE_ANSWERED)[2], is(1000L));
+    }
+
+    @Test
+    public void testChromeTrace() {
+        tracer.record("infra", "123", Stage.CREATE_REQUESTED, 1000);
+        tracer.record("infra", "123", Stage.CREATE_ANSWERED, 3000);
+
+        JSONArray events = new JSONObject(tracer.toChromeTrace()).getJSONArray("traceEvents");
+
+        assertThat(events.length(), is(3));
+        assertThat(events.getJSONObject(0).getJSONObject("args").getString("name"), is("infra"));
+        assertThat(events.getJSONObject(1).getJSONObject("args").getString("name"), is("123"));
+        JSONObject event = events.getJSONObject(2);
+        assertThat(event.getString("name"), is("CREATE_ANSWERED"));
+        assertThat(event.getString("ph"), is("X"));
+        assertThat(event.getLong("ts"), is(1000000L));
+        assertThat(event.getLong("dur"), is(2000000L));
+    }
+
+    @Test
+    public void testMaxTraces() {
+        tracer = new AcquisitionTracer(2);
+
+        tracer.nodeRegistered("infra", "1");
+        tracer.nodeRegistered("infra", "2");
+        tracer.nodeRegistered("infra", "3");
+
+        assertThat(tracer.getTraces().size() <= 2, is(true));
+    }
+
+}
@@ -2,11 +2,17 @@ package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.when;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
 import org.json.JSONObject;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InOrder;
@@ -14,7 +20,12 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 
 public class ConnectorIaasClientTest {
@@ -26,14 +37,31 @@ public class ConnectorIaasClientTest {
     @Mock
     private RestClient restClient;
 
+    private ConnectorIaasHealthMonitor healthMonitor;
+
     @Before
     public void init() {
         MockitoAnnotations.initMocks(this);
         when(restClient.getInfrastructures()).thenReturn("[]");
+        healthMonitor = new ConnectorIaasHealthMonitor(restClient, 60000, 1, 5);
+        when(restClient.getHealthMonitor()).thenReturn(healthMonitor);
         connectorIaasClient = new ConnectorIaasClient(restClient);
 
     }
 
+    @After
+    public void stop() {
+        healthMonitor.close();
+    }
+
+    @Test
+    public void testWaitForConnectorIaasToBeUPOnlyProbesOnce() {
+        connectorIaasClient.waitForConnectorIaasToBeUP();
+        connectorIaasClient.waitForConnectorIaasToBeUP();
+
+        Mockito.verify(restClient).getInfrastructures();
+    }
+
     @Test
     public void testCreateInfrastructure() {
 
@@ -47,6 +75,63 @@ public class ConnectorIaasClientTest {
         inOrderRestClient.verify(restClient).postToInfrastructuresWebResource(infrastructureJson);
     }
 
+    @Test
+    public void testCreateInfrastructureTwiceRegistersOnce() {
+        Mockito.when(restClient.postToInfrastructuresWebResource(infrastructureJson))
+                .thenReturn("{'infrastructureId' : 'infra123'}");
+
+        connectorIaasClient.createInfrastructure("infra123", infrastructureJson);
+        assertThat(connectorIaasClient.createInfrastructure("infra123", infrastructureJson),
+                is("{'infrastructureId' : 'infra123'}"));
+
+        Mockito.verify(restClient, Mockito.times(1)).deleteInfrastructuresWebResource("infra123");
+        Mockito.verify(restClient, Mockito.times(1)).postToInfrastructuresWebResource(infrastructureJson);
+    }
+
+    @Test
+    public void testCreateInfrastructureRegistersAgainWhenChanged() {
+        String otherInfrastructureJson = "{id=\"123\",password=\"other\"}";
+
+        connectorIaasClient.createInfrastructure("infra123", infrastructureJson);
+        connectorIaasClient.createInfrastructure("infra123", otherInfrastructureJson);
+
+        Mockito.verify(restClient, Mockito.times(2)).deleteInfrastructuresWebResource("infra123");
+        Mockito.verify(restClient).postToInfrastructuresWebResource(infrastructureJson);
+        Mockito.verify(restClient).postToInfrastructuresWebResource(otherInfrastructureJson);
+    }
+
+    @Test
+    public void testCreateInfrastructureRegistersAgainAfterTermination() {
+        connectorIaasClient.createInfrastructure("infra123", infrastructureJson);
+        connectorIaasClient.terminateInfrastructure("infra123");
+        connectorIaasClient.createInfrastructure("infra123", infrastructureJson);
+
+        Mockito.verify(restClient, Mockito.times(2)).postToInfrastructuresWebResource(infrastructureJson);
+    }
+
+    @Test
+    public void testCreateInfrastructureRegistersAgainWhenConnectorIaasComesBack() {
+        healthMonitor.reportResponse(200);
+        connectorIaasClient.createInfrastructure("infra123", infrastructureJson);
+
+        healthMonitor.reportResponse(503);
+        healthMonitor.reportResponse(200);
+        connectorIaasClient.createInfrastructure("infra123", infrastructureJson);
+
+        Mockito.verify(restClient, Mockito.times(2)).postToInfrastructuresWebResource(infrastructureJson);
+    }
+
+    @Test
+    public void testCreateInfrastructureRegistersAgainAfterAFailedRequest() {
+        connectorIaasClient.createInfrastructure("infra123", infrastructureJson);
+
+        when(restClient.getInfrastructureFailureCount("infra123")).thenReturn(1L);
+        connectorIaasClient.createInfrastructure("infra123", infrastructureJson);
+        connectorIaasClient.createInfrastructure("infra123", infrastructureJson);
+
+        Mockito.verify(restClient, Mockito.times(2)).postToInfrastructuresWebResource(infrastructureJson);
+    }
+
     @Test
     public void testCreateInstances() {
 
@@ -118,4 +203,327 @@ public class ConnectorIaasClientTest {
 
     }
 
+    @Test
+    public void testRunScriptOnInstanceRetriesServerErrors() {
+        connectorIaasClient = new ConnectorIaasClient(restClient, ConnectorIaasClient.DEFAULT_INSTANCES_PAGE_SIZE,
+                new InstanceInventoryCache(), ConnectorIaasClient.DEFAULT_CONNECTOR_IAAS_READY_TIMEOUT,
+                new ExponentialBackoffRetryPolicy(1, 5, 10000, 3));
+        Mockito.when(restClient.postToScriptsWebResource("infra123", "instanceId", "123456", "somescriptjason"))
+                .thenThrow(new ConnectorIaasException(503)).thenReturn("all ok");
+
+        assertThat(connectorIaasClient.runScriptOnInstance("infra123", "123456", "somescriptjason"), is("all ok"));
+
+        Mockito.verify(restClient, Mockito.times(2)).postToScriptsWebResource("infra123", "instanceId", "123456",
+                "somescriptjason");
+    }
+
+    @Test
+    public void testIdempotentRequestsRetryServerErrors() {
+        connectorIaasClient = new ConnectorIaasClient(restClient, ConnectorIaasClient.DEFAULT_INSTANCES_PAGE_SIZE,
+                new InstanceInventoryCache(), ConnectorIaasClient.DEFAULT_CONNECTOR_IAAS_READY_TIMEOUT,
+                new ExponentialBackoffRetryPolicy(1, 5, 10000, 3));
+        Set<JSONObject> instances = Sets.newHashSet(new JSONObject("{'id' : 'instance1', 'tag' : 'tag1'}"));
+        Mockito.when(restClient.getInstancesIdAndTagByInfrastructure("infra123"))
+                .thenThrow(new ConnectorIaasException(503)).thenReturn(instances);
+        Mockito.doThrow(new ConnectorIaasException(502)).doNothing().when(restClient)
+                .deleteToInstancesWebResource("infra123", "instanceId", "instance1");
+
+        assertThat(connectorIaasClient.getAllJsonInstancesByInfrastructureId("infra123"), is(instances));
+        connectorIaasClient.terminateInstance("infra123", "instance1");
+
+        Mockito.verify(restClient, Mockito.times(2)).getInstancesIdAndTagByInfrastructure("infra123");
+        Mockito.verify(restClient, Mockito.times(2)).deleteToInstancesWebResource("infra123", "instanceId",
+                "instance1");
+    }
+
+    @Test
+    public void testIdempotentRequestsDoNotRetryNotFound() {
+        connectorIaasClient = new ConnectorIaasClient(restClient, ConnectorIaasClient.DEFAULT_INSTANCES_PAGE_SIZE,
+                new InstanceInventoryCache(), ConnectorIaasClient.DEFAULT_CONNECTOR_IAAS_READY_TIMEOUT,
+                new ExponentialBackoffRetryPolicy(1, 5, 10000, 3));
+        Mockito.doThrow(new ConnectorIaasException(404)).when(restClient)
+                .deleteToInstancesWebResource("infra123", "instanceId", "instance1");
+
+        try {
+            connectorIaasClient.terminateInstance("infra123", "instance1");
+            fail();
+        } catch (ConnectorIaasException e) {
+            assertThat(e.getStatus(), is(404));
+        }
+
+        Mockito.verify(restClient).deleteToInstancesWebResource("infra123", "instanceId", "instance1");
+    }
+
+    @Test
+    public void testRunScriptOnInstanceDoesNotRetryClientErrors() {
+        connectorIaasClient = new ConnectorIaasClient(restClient, ConnectorIaasClient.DEFAULT_INSTANCES_PAGE_SIZE,
+                new InstanceInventoryCache(), ConnectorIaasClient.DEFAULT_CONNECTOR_IAAS_READY_TIMEOUT,
+                new ExponentialBackoffRetryPolicy(1, 5, 10000, 3));
+        Mockito.when(restClient.postToScriptsWebResource("infra123", "instanceId", "123456", "somescriptjason"))
+                .thenThrow(new ConnectorIaasException(400));
+
+        try {
+            connectorIaasClient.runScriptOnInstance("infra123", "123456", "somescriptjason");
+            fail();
+        } catch (ConnectorIaasException e) {
+            assertThat(e.getStatus(), is(400));
+        }
+
+        Mockito.verify(restClient).postToScriptsWebResource("infra123", "instanceId", "123456", "somescriptjason");
+    }
+
+    @Test
+    public void testCreateInstancesIfNotExisistAsync() throws InterruptedException, ExecutionException {
+
+        Mockito.when(restClient.getInstancesIdAndTagByInfrastructureAndTagAsync("infra123", "instanceTag123", 0,
+                ConnectorIaasClient.DEFAULT_INSTANCES_PAGE_SIZE))
+                .thenReturn(Futures.<Set<JSONObject>> immediateFuture(
+                        Sets.newHashSet(new JSONObject("{'id' : 'instance456', 'tag' : 'otherTag'}"))));
+        Mockito.when(restClient.postToInstancesWebResourceAsync("infra123", "{id=\"123\",tag=\"instanceTag123\"}"))
+                .thenReturn(Futures.immediateFuture("[{'id' : 'instance123'}]"));
+
+        Set<String> instances = connectorIaasClient.createInstancesIfNotExisistAsync("infra123", "instanceTag123",
+                "{id=\"123\",tag=\"instanceTag123\"}").get();
+
+        assertThat(instances, is((Set<String>) Sets.newHashSet("instance123")));
+
+    }
+
+    @Test
+    public void testCreateInstancesIfNotExisistAsyncAlreadyExistent()
+            throws InterruptedException, ExecutionException {
+
+        Mockito.when(restClient.getInstancesIdAndTagByInfrastructureAndTagAsync("infra123", "instanceTag123", 0,
+                ConnectorIaasClient.DEFAULT_INSTANCES_PAGE_SIZE))
+                .thenReturn(Futures.<Set<JSONObject>> immediateFuture(
+                        Sets.newHashSet(new JSONObject("{'id' : 'instance123', 'tag' : 'instanceTag123'}"))));
+
+        Set<String> instances = connectorIaasClient.createInstancesIfNotExisistAsync("infra123", "instanceTag123",
+                "{id=\"123\",tag=\"instanceTag123\"}").get();
+
+        assertThat(instances, is((Set<String>) Sets.newHashSet("instance123")));
+
+        Mockito.verify(restClient, Mockito.never()).postToInstancesWebResourceAsync(Mockito.anyString(),
+                Mockito.anyString());
+
+    }
+
+    @Test
+    public void testTerminateInstanceAsync() {
+
+        connectorIaasClient.terminateInstanceAsync("infra123", "123456");
+
+        Mockito.verify(restClient).deleteToInstancesWebResourceAsync("infra123", "instanceId", "123456");
+
+    }
+
+    @Test
+    public void testTerminateInstances() throws Exception {
+        Mockito.when(restClient.deleteToInstancesWebResourceAsync("infra123", "instanceId", "instance1"))
+                .thenReturn(Futures.<Void> immediateFuture(null));
+        Mockito.when(restClient.deleteToInstancesWebResourceAsync("infra123", "instanceId", "instance2"))
+                .thenReturn(Futures.<Void> immediateFuture(null));
+        connectorIaasClient.getInventoryCache().putInstancesIds("infra123", "instanceTag123",
+                Sets.newHashSet("instance1", "instance2", "instance3"));
+
+        Map<String, ListenableFuture<Void>> terminations = connectorIaasClient.terminateInstances("infra123",
+                Lists.newArrayList("instance1", "instance2"));
+
+        terminations.get("instance1").get();
+        terminations.get("instance2").get();
+
+        assertThat(connectorIaasClient.getInventoryCache().getInstancesIds("infra123", "instanceTag123"),
+                is((Set<String>) Sets.newHashSet("instance3")));
+    }
+
+    @Test
+    public void testTerminateInstancesByTag() throws Exception {
+        Mockito.when(restClient.deleteToInstancesWebResourceAsync("infra123", "instanceTag", "tag1"))
+                .thenReturn(Futures.<Void> immediateFuture(null));
+        connectorIaasClient.getInventoryCache().putInstancesIds("infra123", "tag1",
+                Sets.newHashSet("instance1"));
+
+        Map<String, ListenableFuture<Void>> terminations = connectorIaasClient
+                .terminateInstancesByTag("infra123", Lists.newArrayList("tag1"));
+
+        terminations.get("tag1").get();
+
+        Mockito.verify(restClient, Mockito.never()).deleteToInstancesWebResourceAsync("infra123",
+                "instanceId", "tag1");
+        assertThat(connectorIaasClient.getInventoryCache().getInstancesIds("infra123", "tag1").isEmpty(),
+                is(true));
+    }
+
+    @Test
+    public void testRunScriptOnInstanceAsync() throws InterruptedException, ExecutionException {
+
+        Mockito.when(restClient.postToScriptsWebResourceAsync("infra123", "instanceId", "123456",
+                "somescriptjason")).thenReturn(Futures.immediateFuture("all ok"));
+
+        assertThat(connectorIaasClient.runScriptOnInstanceAsync("infra123", "123456", "somescriptjason").get(),
+                is("all ok"));
+
+    }
+
+    @Test
+    public void testRunScriptOnInstancesByTagInOneRequest() throws IOException {
+        LocalConnectorIaas connectorIaas = new LocalConnectorIaas();
+        RestClient localRestClient = new RestClient(connectorIaas.getURL());
+
+        try {
+            connectorIaas.addInstance("infra123", "instance1", "instanceTag123");
+            connectorIaas.addInstance("infra123", "instance2", "instanceTag123");
+            connectorIaas.addInstance("infra123", "instance3", "otherTag");
+
+            Map<String, String> scriptResults = new ConnectorIaasClient(localRestClient)
+                    .runScriptOnInstancesByTag("infra123", "instanceTag123", "{\"scripts\":[\"ls\"]}");
+
+            assertThat(scriptResults.keySet(), is((Set<String>) Sets.newHashSet("instance1", "instance2")));
+            assertThat(new JSONObject(scriptResults.get("instance1")).getString("instanceId"),
+                    is("instance1"));
+            assertThat(connectorIaas.getRequests().size(), is(1));
+        } finally {
+            localRestClient.close();
+            connectorIaas.stop();
+        }
+    }
+
+    @Test
+    public void testCreateInstancesIfNotExisistAsyncForManyTags() throws Exception {
+        LocalConnectorIaas connectorIaas = new LocalConnectorIaas();
+        RestClient localRestClient = new RestClient(connectorIaas.getURL());
+
+        try {
+            connectorIaas.addInstance("infra123", "instance1", "tag1");
+
+            Map<String, String> instanceJsonPerTag = Maps.newLinkedHashMap();
+            for (int i = 1; i <= 3; i++) {
+                instanceJsonPerTag.put("tag" + i, "{\"tag\":\"tag" + i + "\",\"number\":\"1\"}");
+            }
+
+            Map<String, ListenableFuture<Set<String>>> instancesIdsPerTag = new ConnectorIaasClient(
+                    localRestClient).createInstancesIfNotExisistAsync("infra123", instanceJsonPerTag);
+
+            assertThat(instancesIdsPerTag.get("tag1").get(), is((Set<String>) Sets.newHashSet("instance1")));
+            assertThat(instancesIdsPerTag.get("tag2").get().size(), is(1));
+            assertThat(instancesIdsPerTag.get("tag3").get().size(), is(1));
+            assertThat(connectorIaas.getInstancesIds("infra123").size(), is(3));
+            assertThat(connectorIaas.getRequests(), is((List<String>) Lists.newArrayList(
+                    "GET /infrastructures/infra123/instances", "POST /infrastructures/infra123/instances",
+                    "POST /infrastructures/infra123/instances")));
+        } finally {
+            localRestClient.close();
+            connectorIaas.stop();
+        }
+    }
+
+    @Test
+    public void testCreateInstancesIfNotExisistAsyncForManyTagsReadsTheCacheOnce() throws Exception {
+        InstanceInventoryCache inventoryCache = Mockito.mock(InstanceInventoryCache.class);
+        // the entry expires right after the first read
+        when(inventoryCache.getInstancesIds("infra123", "tag1")).thenReturn(Sets.newHashSet("instance1"),
+                (Set<String>) null);
+
+        Map<String, ListenableFuture<Set<String>>> instancesIdsPerTag = new ConnectorIaasClient(restClient,
+            ConnectorIaasClient.DEFAULT_INSTANCES_PAGE_SIZE, inventoryCache)
+                .createInstancesIfNotExisistAsync("infra123", ImmutableMap.of("tag1", "{\"tag\":\"tag1\"}"));
+
+        assertThat(instancesIdsPerTag.get("tag1").get(), is((Set<String>) Sets.newHashSet("instance1")));
+        Mockito.verify(inventoryCache, Mockito.times(1)).getInstancesIds("infra123", "tag1");
+        Mockito.verify(restClient, Mockito.never()).postToInstancesWebResource(Mockito.anyString(),
+                Mockito.anyString());
+    }
+
+    @Test
+    public void testGetJsonInstancesByTagPageByPage() throws IOException {
+        LocalConnectorIaas connectorIaas = new LocalConnectorIaas();
+        RestClient localRestClient = new RestClient(connectorIaas.getURL());
+
+        try {
+            for (int i = 0; i < 5; i++) {
+                connectorIaas.addInstance("infra123", "instance" + i, "instanceTag123");
+                connectorIaas.addInstance("infra123", "other" + i, "otherTag");
+            }
+
+            Set<JSONObject> instances = new ConnectorIaasClient(localRestClient, 2)
+                    .getJsonInstancesByTag("infra123", "instanceTag123");
+
+            assertThat(instances.size(), is(5));
+            for (JSONObject instance : instances) {
+                assertThat(instance.getString("tag"), is("instanceTag123"));
+            }
+            assertThat(connectorIaas.getRequests().size(), is(3));
+        } finally {
+            localRestClient.close();
+            connectorIaas.stop();
+        }
+    }
+
+    @Test
+    public void testGetJsonInstancesByTagWhenConnectorIgnoresPaging() {
+
+        Set<JSONObject> allInstances = Sets.newHashSet(new JSONObject("{'id' : 'instance1', 'tag' : 'tag1'}"),
+                new JSONObject("{'id' : 'instance2', 'tag' : 'tag2'}"),
+                new JSONObject("{'id' : 'instance3', 'tag' : 'tag1'}"));
+
+        Mockito.when(restClient.getInstancesIdAndTagByInfrastructureAndTag(Mockito.eq("infra123"),
+                Mockito.eq("tag1"), Mockito.anyInt(), Mockito.eq(3))).thenReturn(allInstances);
+
+        Set<JSONObject> instances = new ConnectorIaasClient(restClient, 3).getJsonInstancesByTag("infra123",
+                "tag1");
+
+        assertThat(instances.size(), is(2));
+        Mockito.verify(restClient, Mockito.times(2)).getInstancesIdAndTagByInfrastructureAndTag(
+                Mockito.eq("infra123"), Mockito.eq("tag1"), Mockito.anyInt(), Mockito.eq(3));
+
+    }
+
+    @Test
+    public void testCreateInstancesIfNotExisistUsesInventoryCache() {
+
+        Mockito.when(restClient.getInstancesIdAndTagByInfrastructureAndTag("infra123", "instanceTag123", 0,
+                ConnectorIaasClient.DEFAULT_INSTANCES_PAGE_SIZE)).thenReturn(Sets.<JSONObject> newHashSet());
+        Mockito.when(restClient.postToInstancesWebResource("infra123", "{id=\"123\",tag=\"instanceTag123\"}"))
+                .thenReturn("[{'id' : 'instance123'}]");
+
+        Set<String> instances = connectorIaasClient.createInstancesIfNotExisist("infra123", "instanceTag123",
+                "{id=\"123\",tag=\"instanceTag123\"}");
+        Set<String> sameInstances = connectorIaasClient.createInstancesIfNotExisist("infra123", "instanceTag123",
+                "{id=\"123\",tag=\"instanceTag123\"}");
+
+        assertThat(instances, is((Set<String>) Sets.newHashSet("instance123")));
+        assertThat(sameInstances, is(instances));
+
+        Mockito.verify(restClient, Mockito.times(1)).getInstancesIdAndTagByInfrastructureAndTag(
+                Mockito.anyString(), Mockito.anyString(), Mockito.anyInt(), Mockito.anyInt());
+        Mockito.verify(restClient, Mockito.times(1)).postToInstancesWebResource(Mockito.anyString(),
+                Mockito.anyString());
+
+        assertThat(connectorIaasClient.getInventoryCache().getMissCount(), is(1L));
+        assertThat(connectorIaasClient.getInventoryCache().getHitCount(), is(1L));
+
+    }
+
+    @Test
+    public void testTerminateInstanceUpdatesInventoryCache() {
+
+        connectorIaasClient.getInventoryCache().putInstancesIds("infra123", "instanceTag123",
+                Sets.newHashSet("instance123", "instance456"));
+
+        connectorIaasClient.terminateInstance("infra123", "instance123");
+
+        assertThat(connectorIaasClient.getInstancesIdsByTag("infra123", "instanceTag123"),
+                is((Set<String>) Sets.newHashSet("instance456")));
+
+        connectorIaasClient.terminateInstanceByTag("infra123", "instanceTag123");
+
+        assertThat(connectorIaasClient.getInstancesIdsByTag("infra123", "instanceTag123").isEmpty(), is(true));
+
+        connectorIaasClient.terminateInfrastructure("infra123");
+
+        assertThat(connectorIaasClient.getInventoryCache().getInstancesIds("infra123", "instanceTag123"),
+                is((Set<String>) null));
+
+    }
+
 }
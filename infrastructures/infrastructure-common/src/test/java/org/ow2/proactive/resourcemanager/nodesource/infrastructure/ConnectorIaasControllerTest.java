@@ -2,15 +2,15 @@ package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
-import static org.mockito.Matchers.anySet;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
@@ -22,6 +22,10 @@ import org.ow2.proactive.resourcemanager.nodesource.NodeSource;
 import org.python.google.common.collect.Sets;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 
 public class ConnectorIaasControllerTest {
@@ -84,14 +88,9 @@ public class ConnectorIaasControllerTest {
 
         Set<String> instanceIds = Sets.newHashSet("123", "456");
 
-        when(connectorIaasClient.createInstancesIfNotExisist(anyString(), anyString(), anyString(), anySet()))
+        when(connectorIaasClient.createInstancesIfNotExisist(anyString(), anyString(), anyString()))
                 .thenReturn(instanceIds);
 
-        Set<JSONObject> existingInstances = Sets.newHashSet();
-
-        when(connectorIaasClient.getAllJsonInstancesByInfrastructureId("node_source_name"))
-                .thenReturn(existingInstances);
-
         Set<String> instancesIds = connectorIaasController.createInstancesWithOptions("node_source_name",
                 "node_source_name", "image", 2, 1, 512, "0.05",
                 "default","127.0.0.1", "00:50:56:11:11:11");
@@ -100,7 +99,7 @@ public class ConnectorIaasControllerTest {
         assertThat(instancesIds.containsAll(instanceIds), is(true));
 
         verify(connectorIaasClient).createInstancesIfNotExisist("node_source_name", "node_source_name",
-                instanceJson, existingInstances);
+                instanceJson);
 
     }
 
@@ -115,14 +114,9 @@ public class ConnectorIaasControllerTest {
 
         Set<String> instanceIds = Sets.newHashSet("123", "456");
 
-        when(connectorIaasClient.createInstancesIfNotExisist(anyString(), anyString(), anyString(), anySet()))
+        when(connectorIaasClient.createInstancesIfNotExisist(anyString(), anyString(), anyString()))
                 .thenReturn(instanceIds);
 
-        Set<JSONObject> existingInstances = Sets.newHashSet();
-
-        when(connectorIaasClient.getAllJsonInstancesByInfrastructureId("node_source_name"))
-                .thenReturn(existingInstances);
-
         Set<String> instancesIds = connectorIaasController.createInstancesWithPublicKeyNameAndInitScript(
                 "node_source_name", "node_source_name", "image", 1, 3, "publicKeyName", scripts);
 
@@ -130,7 +124,7 @@ public class ConnectorIaasControllerTest {
         assertThat(instancesIds.containsAll(instanceIds), is(true));
 
         verify(connectorIaasClient).createInstancesIfNotExisist("node_source_name", "node_source_name",
-                instanceJson, existingInstances);
+                instanceJson);
 
     }
 
@@ -142,14 +136,9 @@ public class ConnectorIaasControllerTest {
 
         Set<String> instanceIds = Sets.newHashSet("123", "456");
 
-        when(connectorIaasClient.createInstancesIfNotExisist(anyString(), anyString(), anyString(), anySet()))
+        when(connectorIaasClient.createInstancesIfNotExisist(anyString(), anyString(), anyString()))
                 .thenReturn(instanceIds);
 
-        Set<JSONObject> existingInstances = Sets.newHashSet(new JSONObject());
-
-        when(connectorIaasClient.getAllJsonInstancesByInfrastructureId("node_source_name"))
-                .thenReturn(existingInstances);
-
         Set<String> instancesIds = connectorIaasController.createInstances("node_source_name",
                 "node_source_name", "image", 2, 1, 512);
 
@@ -157,7 +146,7 @@ public class ConnectorIaasControllerTest {
         assertThat(instancesIds.containsAll(instanceIds), is(true));
 
         verify(connectorIaasClient).createInstancesIfNotExisist("node_source_name", "node_source_name",
-                instanceJson, existingInstances);
+                instanceJson);
 
     }
 
@@ -198,4 +187,172 @@ public class ConnectorIaasControllerTest {
 
     }
 
+    @Test
+    public void testExecuteScriptAsync() throws Exception {
+
+        List<String> scripts = Lists.newArrayList();
+        scripts.add("ls -lrt");
+
+        String instanceScriptJson = ConnectorIaasJSONTransformer.getScriptInstanceJSONWithCredentials(scripts,
+                null, null);
+
+        when(connectorIaasClient.runScriptOnInstanceAsync("node_source_name", "instanceId", instanceScriptJson))
+                .thenReturn(Futures.immediateFuture("all ok"));
+
+        assertThat(connectorIaasController.executeScriptAsync("node_source_name", "instanceId", scripts).get(),
+                is("all ok"));
+
+    }
+
+    @Test
+    public void testCreateInstancesAsync() throws Exception {
+
+        String instanceJson = ConnectorIaasJSONTransformer.getInstanceJSON("node_source_name", "image", "2",
+                "1", "512", null, null, null, null);
+
+        Set<String> instanceIds = Sets.newHashSet("123", "456");
+
+        when(connectorIaasClient.createInstancesIfNotExisistAsync("node_source_name", "node_source_name",
+                instanceJson)).thenReturn(Futures.immediateFuture(instanceIds));
+
+        assertThat(connectorIaasController.createInstancesAsync("node_source_name", "node_source_name", "image",
+                2, 1, 512).get(), is(instanceIds));
+
+    }
+
+    @Test
+    public void testExecuteScriptOnInstancesBoundsConcurrency() throws Exception {
+
+        List<String> scripts = Lists.newArrayList("ls -lrt");
+
+        String instanceScriptJson = ConnectorIaasJSONTransformer.getScriptInstanceJSONWithCredentials(scripts,
+                null, null);
+
+        SettableFuture<String> firstScriptResult = SettableFuture.create();
+
+        when(connectorIaasClient.runScriptOnInstanceAsync("node_source_name", "instance1", instanceScriptJson))
+                .thenReturn(firstScriptResult);
+        when(connectorIaasClient.runScriptOnInstanceAsync("node_source_name", "instance2", instanceScriptJson))
+                .thenReturn(Futures.<String> immediateFailedFuture(new ConnectorIaasException(400)));
+
+        Map<String, List<String>> scriptsPerInstance = Maps.newLinkedHashMap();
+        scriptsPerInstance.put("instance1", scripts);
+        scriptsPerInstance.put("instance2", scripts);
+
+        Map<String, ListenableFuture<String>> scriptsResults = connectorIaasController
+                .executeScriptOnInstances("node_source_name", scriptsPerInstance, 1);
+
+        verify(connectorIaasClient, never()).runScriptOnInstanceAsync("node_source_name", "instance2",
+                instanceScriptJson);
+
+        firstScriptResult.set("all ok");
+
+        assertThat(scriptsResults.get("instance1").get(), is("all ok"));
+
+        Map<String, Throwable> failures = connectorIaasController.waitForScripts(scriptsResults);
+
+        assertThat(failures.keySet(), is((Set<String>) Sets.newHashSet("instance2")));
+        assertThat(((ConnectorIaasException) failures.get("instance2")).getStatus(), is(400));
+
+    }
+
+    @Test
+    public void testExecuteScriptOnManyInstancesFailingRightAway() throws Exception {
+
+        when(connectorIaasClient.runScriptOnInstanceAsync(anyString(), anyString(), anyString()))
+                .thenReturn(Futures.<String> immediateFailedFuture(new ConnectorIaasException(500)));
+
+        Map<String, List<String>> scriptsPerInstance = Maps.newLinkedHashMap();
+        for (int i = 0; i < 5000; i++) {
+            scriptsPerInstance.put("instance" + i, Lists.newArrayList("ls -lrt"));
+        }
+
+        Map<String, ListenableFuture<String>> scriptsResults = connectorIaasController
+                .executeScriptOnInstances("node_source_name", scriptsPerInstance, 1);
+
+        Map<String, Throwable> failures = connectorIaasController.waitForScripts(scriptsResults);
+
+        assertThat(failures.keySet(), is(scriptsPerInstance.keySet()));
+
+    }
+
+    @Test
+    public void testExecuteScriptOnInstancesByTag() throws Exception {
+
+        List<String> scripts = Lists.newArrayList("ls -lrt");
+
+        String instanceScriptJson = ConnectorIaasJSONTransformer.getScriptInstanceJSONWithCredentials(scripts,
+                null, null);
+
+        Map<String, String> scriptResultsPerInstance = Maps.newHashMap();
+        scriptResultsPerInstance.put("instance1", "instance1 ok");
+
+        when(connectorIaasClient.runScriptOnInstancesByTagAsync("node_source_name", "node_source_name",
+                instanceScriptJson)).thenReturn(Futures.immediateFuture(scriptResultsPerInstance));
+        when(connectorIaasClient.runScriptOnInstanceAsync("node_source_name", "instance2", instanceScriptJson))
+                .thenReturn(Futures.immediateFuture("instance2 ok"));
+
+        Map<String, ListenableFuture<String>> scriptsResults = connectorIaasController
+                .executeScriptOnInstancesByTag("node_source_name", "node_source_name",
+                        Sets.newHashSet("instance1", "instance2"), scripts, 10);
+
+        assertThat(scriptsResults.get("instance1").get(), is("instance1 ok"));
+        assertThat(scriptsResults.get("instance2").get(), is("instance2 ok"));
+
+        verify(connectorIaasClient, never()).runScriptOnInstanceAsync("node_source_name", "instance1",
+                instanceScriptJson);
+
+    }
+
+    @Test
+    public void testExecuteScriptOnInstancesByTagFallsBackOnFailure() throws Exception {
+
+        List<String> scripts = Lists.newArrayList("ls -lrt");
+
+        String instanceScriptJson = ConnectorIaasJSONTransformer.getScriptInstanceJSONWithCredentials(scripts,
+                null, null);
+
+        when(connectorIaasClient.runScriptOnInstancesByTagAsync("node_source_name", "node_source_name",
+                instanceScriptJson)).thenReturn(
+                        Futures.<Map<String, String>> immediateFailedFuture(new ConnectorIaasException(500)));
+        when(connectorIaasClient.runScriptOnInstanceAsync("node_source_name", "instance1", instanceScriptJson))
+                .thenReturn(Futures.immediateFuture("instance1 ok"));
+        when(connectorIaasClient.runScriptOnInstanceAsync("node_source_name", "instance2", instanceScriptJson))
+                .thenReturn(Futures.immediateFuture("instance2 ok"));
+
+        Map<String, ListenableFuture<String>> scriptsResults = connectorIaasController
+                .executeScriptOnInstancesByTag("node_source_name", "node_source_name",
+                        Sets.newHashSet("instance1", "instance2"), scripts, 1);
+
+        assertThat(connectorIaasController.waitForScripts(scriptsResults).isEmpty(), is(true));
+        assertThat(scriptsResults.get("instance1").get(), is("instance1 ok"));
+        assertThat(scriptsResults.get("instance2").get(), is("instance2 ok"));
+
+    }
+
+    @Test
+    public void testTerminateInstanceAsync() {
+        connectorIaasController.terminateInstanceAsync("infrastructureId", "instanceId");
+        verify(connectorIaasClient).terminateInstanceAsync("infrastructureId", "instanceId");
+    }
+
+    @Test
+    public void testRegisterNodeSourceOnlyOnce() {
+        NodesPerInstances nodesPerInstances = new NodesPerInstances();
+        try {
+            connectorIaasController.registerNodeSource("nodeSource", nodesPerInstances);
+            NodeSourceMetricsMXBean metrics = ConnectorIaasMetrics.getInstance().getNodeSourceMetrics()
+                    .get("nodeSource");
+
+            connectorIaasController.registerNodeSource("nodeSource", nodesPerInstances);
+
+            assertThat(ConnectorIaasMetrics.getInstance().getNodeSourceMetrics().get("nodeSource") == metrics,
+                    is(true));
+        } finally {
+            connectorIaasController.unregisterNodeSource("nodeSource");
+        }
+        assertThat(ConnectorIaasMetrics.getInstance().getNodeSourceMetrics().containsKey("nodeSource"),
+                is(false));
+    }
+
 }
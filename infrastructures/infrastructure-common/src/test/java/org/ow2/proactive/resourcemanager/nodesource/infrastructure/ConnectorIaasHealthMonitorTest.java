@@ -0,0 +1,98 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class ConnectorIaasHealthMonitorTest {
+
+    private RestClient restClient;
+
+    private ConnectorIaasHealthMonitor healthMonitor;
+
+    private final AtomicInteger recoveries = new AtomicInteger();
+
+    @Before
+    public void init() {
+        restClient = mock(RestClient.class);
+        healthMonitor = new ConnectorIaasHealthMonitor(restClient, 60000, 1, 5);
+        healthMonitor.addRecoveryListener(new Runnable() {
+            @Override
+            public void run() {
+                recoveries.incrementAndGet();
+            }
+        });
+    }
+
+    @After
+    public void stop() {
+        healthMonitor.close();
+    }
+
+    @Test
+    public void testAwaitReadyDoesNotProbeAgainOnceUp() throws InterruptedException {
+        when(restClient.getInfrastructures()).thenReturn("[]");
+
+        assertThat(healthMonitor.awaitReady(5000), is(true));
+        assertThat(healthMonitor.awaitReady(5000), is(true));
+        assertThat(healthMonitor.awaitReady(5000), is(true));
+
+        verify(restClient, times(1)).getInfrastructures();
+        assertThat(recoveries.get(), is(1));
+    }
+
+    @Test
+    public void testAwaitReadyWaitsForConnectorIaasToComeUp() throws InterruptedException {
+        when(restClient.getInfrastructures()).thenThrow(new ConnectorIaasException(503))
+                .thenThrow(new IllegalStateException("connection refused")).thenReturn("[]");
+
+        assertThat(healthMonitor.awaitReady(5000), is(true));
+
+        verify(restClient, times(3)).getInfrastructures();
+        assertThat(healthMonitor.getLastError() == null, is(true));
+        assertThat(recoveries.get(), is(1));
+    }
+
+    @Test
+    public void testAwaitReadyTimesOut() throws InterruptedException {
+        when(restClient.getInfrastructures()).thenThrow(new ConnectorIaasException(503));
+
+        assertThat(healthMonitor.awaitReady(50), is(false));
+        assertThat(healthMonitor.isReady(), is(false));
+        assertThat(((ConnectorIaasException) healthMonitor.getLastError()).getStatus(), is(503));
+    }
+
+    @Test
+    public void testResponsesReceivedByTheClientAreEnoughToBeReady() throws InterruptedException {
+        healthMonitor.reportResponse(404);
+
+        assertThat(healthMonitor.awaitReady(5000), is(true));
+
+        verify(restClient, never()).getInfrastructures();
+    }
+
+    @Test
+    public void testUnavailableResponseMarksConnectorIaasDown() {
+        healthMonitor.reportResponse(200);
+        healthMonitor.reportResponse(503);
+
+        assertThat(healthMonitor.isReady(), is(false));
+
+        healthMonitor.reportResponse(200);
+
+        assertThat(healthMonitor.isReady(), is(true));
+        assertThat(recoveries.get(), is(2));
+    }
+
+}
@@ -0,0 +1,64 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.StringReader;
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+
+public class ConnectorIaasInstancesReaderTest {
+
+    @Test
+    public void testReadEmptyListing() {
+        Set<JSONObject> instances = ConnectorIaasInstancesReader.readIdsAndTags(new StringReader(" [ ] "));
+
+        assertThat(instances.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testReadIdsAndTags() {
+        String listing = "[{\"id\":\"instance123\",\"tag\":\"tag1\",\"image\":\"image\",\"number\":\"1\"," +
+            "\"hardware\":{\"minCores\":\"1\",\"minRam\":\"512\",\"nested\":[{\"a\":\"}]\"},[1,2]]}," +
+            "\"status\":\"RUNNING\",\"toBeRemovedOnShutdown\":true,\"price\":0.05,\"options\":null}," +
+            "{\"tag\":\"tag2\",\"initScript\":{\"scripts\":[\"echo '[{'\"]},\"id\":\"instance456\"}]";
+
+        Set<JSONObject> instances = ConnectorIaasInstancesReader.readIdsAndTags(new StringReader(listing));
+
+        assertThat(instances.size(), is(2));
+        for (JSONObject instance : instances) {
+            assertThat(instance.length(), is(2));
+            if (instance.getString("id").equals("instance123")) {
+                assertThat(instance.getString("tag"), is("tag1"));
+            } else {
+                assertThat(instance.getString("id"), is("instance456"));
+                assertThat(instance.getString("tag"), is("tag2"));
+            }
+        }
+    }
+
+    @Test
+    public void testReadSingleQuotedListing() {
+        Set<JSONObject> instances = ConnectorIaasInstancesReader
+                .readIdsAndTags(new StringReader("[{'id' : 'instance123', 'tag' : 'tag1', 'number' : 2}]"));
+
+        assertThat(instances.size(), is(1));
+        assertThat(instances.iterator().next().getString("id"), is("instance123"));
+        assertThat(instances.iterator().next().getString("tag"), is("tag1"));
+    }
+
+    @Test(expected = JSONException.class)
+    public void testReadTruncatedListing() {
+        ConnectorIaasInstancesReader.readIdsAndTags(new StringReader("[{\"id\":\"instance123\",\"hardware\":{"));
+    }
+
+    @Test(expected = JSONException.class)
+    public void testReadNotAListing() {
+        ConnectorIaasInstancesReader.readIdsAndTags(new StringReader("{\"id\":\"instance123\"}"));
+    }
+
+}
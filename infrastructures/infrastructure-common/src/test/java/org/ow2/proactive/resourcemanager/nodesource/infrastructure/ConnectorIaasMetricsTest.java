@@ -0,0 +1,104 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+
+public class ConnectorIaasMetricsTest {
+
+    private MBeanServer mBeanServer;
+
+    private ConnectorIaasMetrics metrics;
+
+    @Before
+    public void init() {
+        mBeanServer = MBeanServerFactory.newMBeanServer();
+        metrics = new ConnectorIaasMetrics(mBeanServer);
+    }
+
+    @Test
+    public void testRecordRequest() throws Exception {
+        metrics.registerInfrastructure("infra1", "aws-ec2");
+
+        metrics.recordRequest(ConnectorIaasMetrics.POST_INSTANCES, "infra1", 200,
+                TimeUnit.MILLISECONDS.toNanos(40));
+        metrics.recordRequest(ConnectorIaasMetrics.POST_INSTANCES, "infra1", 200,
+                TimeUnit.MILLISECONDS.toNanos(120));
+        metrics.recordRequest(ConnectorIaasMetrics.GET_INSTANCES, "other", ConnectorIaasMetrics.NO_RESPONSE,
+                TimeUnit.MILLISECONDS.toNanos(3));
+
+        assertThat(metrics.getRequestMetrics().size(), is(2));
+
+        ObjectName objectName = new ObjectName(ConnectorIaasMetrics.JMX_DOMAIN +
+            ":type=Requests,operation=\"post-instances\",status=200,infrastructureType=\"aws-ec2\"");
+        assertThat(mBeanServer.isRegistered(objectName), is(true));
+        assertThat((Long) mBeanServer.getAttribute(objectName, "Count"), is(2L));
+        assertThat((Long) mBeanServer.getAttribute(objectName, "TotalTime"), is(160L));
+        assertThat((Long) mBeanServer.getAttribute(objectName, "MaxTime"), is(120L));
+        assertThat((Double) mBeanServer.getAttribute(objectName, "MeanTime"), is(80.0));
+
+        ObjectName unknownObjectName = new ObjectName(ConnectorIaasMetrics.JMX_DOMAIN +
+            ":type=Requests,operation=\"get-instances\",status=-1,infrastructureType=\"unknown\"");
+        assertThat(mBeanServer.isRegistered(unknownObjectName), is(true));
+    }
+
+    @Test
+    public void testPrometheusText() {
+        metrics.registerInfrastructure("infra1", "vmware");
+        metrics.recordRequest(ConnectorIaasMetrics.POST_SCRIPTS, "infra1", 500,
+                TimeUnit.MILLISECONDS.toNanos(300));
+
+        String text = metrics.toPrometheusText();
+
+        String labels = "operation=\"post-scripts\",status=\"500\",infrastructure_type=\"vmware\"";
+        String histogram = "connector_iaas_request_duration_seconds";
+        assertThat(text.contains("# TYPE " + histogram + " histogram\n"), is(true));
+        assertThat(text.contains(histogram + "_bucket{" + labels + ",le=\"0.25\"} 0\n"), is(true));
+        assertThat(text.contains(histogram + "_bucket{" + labels + ",le=\"0.5\"} 1\n"), is(true));
+        assertThat(text.contains(histogram + "_bucket{" + labels + ",le=\"+Inf\"} 1\n"), is(true));
+        assertThat(text.contains(histogram + "_sum{" + labels + "} 0.3\n"), is(true));
+        assertThat(text.contains(histogram + "_count{" + labels + "} 1\n"), is(true));
+    }
+
+    @Test
+    public void testNodeSourceMetrics() throws Exception {
+        NodesPerInstances nodesPerInstances = new NodesPerInstances();
+        nodesPerInstances.addPendingInstances(Lists.newArrayList("123", "456", "789"));
+        nodesPerInstances.addNode("123", "node1");
+        nodesPerInstances.addNode("123", "node2");
+        nodesPerInstances.addNode("456", "node3");
+
+        metrics.registerNodeSource("ns1", new NodeSourceMetrics("openstack", nodesPerInstances));
+
+        ObjectName objectName = new ObjectName(
+            ConnectorIaasMetrics.JMX_DOMAIN + ":type=NodeSource,name=\"ns1\"");
+        assertThat(mBeanServer.isRegistered(objectName), is(true));
+        assertThat((Integer) mBeanServer.getAttribute(objectName, "PendingInstances"), is(1));
+        assertThat((Integer) mBeanServer.getAttribute(objectName, "LiveInstances"), is(2));
+        assertThat((Integer) mBeanServer.getAttribute(objectName, "Nodes"), is(3));
+        assertThat((Double) mBeanServer.getAttribute(objectName, "NodesPerInstance"), is(1.5));
+
+        String text = metrics.toPrometheusText();
+        String labels = "{node_source=\"ns1\",infrastructure_type=\"openstack\"}";
+        String gauge = "connector_iaas_node_source_";
+        assertThat(text.contains(gauge + "pending_instances" + labels + " 1.0\n"), is(true));
+        assertThat(text.contains(gauge + "nodes_per_instance" + labels + " 1.5\n"), is(true));
+
+        metrics.unregisterNodeSource("ns1");
+
+        assertThat(mBeanServer.isRegistered(objectName), is(false));
+        assertThat(metrics.getNodeSourceMetrics().isEmpty(), is(true));
+    }
+
+}
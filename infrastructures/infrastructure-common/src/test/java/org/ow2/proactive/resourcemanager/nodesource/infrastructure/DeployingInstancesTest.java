@@ -0,0 +1,50 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class DeployingInstancesTest {
+
+    private DeployingInstances deployingInstances;
+
+    @Before
+    public void init() {
+        deployingInstances = new DeployingInstances();
+        deployingInstances.add("123", "deploying://123", 0);
+        deployingInstances.add("456", "deploying://456", 2);
+    }
+
+    @Test
+    public void testNodeRegistered() {
+        assertThat(deployingInstances.removeByInstance("123"), is("deploying://123"));
+        assertThat(deployingInstances.removeByInstance("123"), is(nullValue()));
+
+        assertThat(deployingInstances.removeByDeployingNode("deploying://123"), is(nullValue()));
+        assertThat(deployingInstances.size(), is(1));
+        assertThat(deployingInstances.getMissedDeadlines(), is(0));
+    }
+
+    @Test
+    public void testDeadlineMissed() {
+        DeployingInstances.DeployingInstance instance = deployingInstances
+                .removeByDeployingNode("deploying://456");
+
+        assertThat(instance.getInstanceId(), is("456"));
+        assertThat(instance.getReplacement(), is(2));
+        assertThat(deployingInstances.removeByDeployingNode("deploying://456"), is(nullValue()));
+        assertThat(deployingInstances.removeByInstance("456"), is(nullValue()));
+        assertThat(deployingInstances.getMissedDeadlines(), is(1));
+    }
+
+    @Test
+    public void testUnknownDeployingNode() {
+        assertThat(deployingInstances.removeByDeployingNode("deploying://789"), is(nullValue()));
+        assertThat(deployingInstances.size(), is(2));
+    }
+
+}
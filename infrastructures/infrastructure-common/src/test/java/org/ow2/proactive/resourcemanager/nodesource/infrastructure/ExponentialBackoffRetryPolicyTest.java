@@ -0,0 +1,53 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+
+public class ExponentialBackoffRetryPolicyTest {
+
+    private final ExponentialBackoffRetryPolicy retryPolicy = new ExponentialBackoffRetryPolicy(100, 1000, 5000,
+            10);
+
+    @Test
+    public void testDelaysStayBetweenBaseDelayAndMaxDelay() {
+        long delay = 0;
+        for (int attempt = 1; attempt < 10; attempt++) {
+            long nextDelay = retryPolicy.nextDelay(attempt, delay, 0, new RuntimeException());
+            assertThat(nextDelay, is(greaterThanOrEqualTo(100L)));
+            assertThat(nextDelay, is(lessThanOrEqualTo(Math.min(1000L, 3 * Math.max(delay, 100L)))));
+            delay = nextDelay;
+        }
+    }
+
+    @Test
+    public void testGiveUpAfterMaxAttempts() {
+        assertThat(retryPolicy.nextDelay(10, 100, 0, new RuntimeException()), is(-1L));
+    }
+
+    @Test
+    public void testGiveUpWhenDeadlineWouldBeExceeded() {
+        assertThat(retryPolicy.nextDelay(1, 0, 4950, new RuntimeException()), is(-1L));
+    }
+
+    @Test
+    public void testGiveUpOnFatalError() {
+        assertThat(retryPolicy.nextDelay(1, 0, 0, new ConnectorIaasException(400)), is(-1L));
+    }
+
+    @Test
+    public void testIsRetryable() {
+        assertThat(ExponentialBackoffRetryPolicy.isRetryable(new ConnectorIaasException(500)), is(true));
+        assertThat(ExponentialBackoffRetryPolicy.isRetryable(new ConnectorIaasException(503)), is(true));
+        assertThat(ExponentialBackoffRetryPolicy.isRetryable(new ConnectorIaasException(404)), is(true));
+        assertThat(ExponentialBackoffRetryPolicy.isRetryable(new ConnectorIaasException(429)), is(true));
+        assertThat(ExponentialBackoffRetryPolicy.isRetryable(new ConnectorIaasException(400)), is(false));
+        assertThat(ExponentialBackoffRetryPolicy.isRetryable(new ConnectorIaasException(401)), is(false));
+        assertThat(ExponentialBackoffRetryPolicy.isRetryable(new IllegalStateException()), is(true));
+    }
+
+}
@@ -0,0 +1,34 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+
+public class FleetSizeTest {
+
+    @Test
+    public void testReserve() {
+        FleetSize fleetSize = new FleetSize();
+
+        assertThat(fleetSize.reserve(1, 3), is(1));
+        assertThat(fleetSize.reserve(5, 3), is(2));
+        assertThat(fleetSize.reserve(1, 3), is(0));
+        assertThat(fleetSize.get(), is(3));
+    }
+
+    @Test
+    public void testRelease() {
+        FleetSize fleetSize = new FleetSize();
+        fleetSize.reserve(2, 3);
+
+        fleetSize.release(1);
+        assertThat(fleetSize.get(), is(1));
+        assertThat(fleetSize.reserve(5, 3), is(2));
+
+        fleetSize.release(10);
+        assertThat(fleetSize.get(), is(0));
+    }
+
+}
@@ -0,0 +1,98 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Sets;
+
+
+public class InstanceInventoryCacheTest {
+
+    private final AtomicLong time = new AtomicLong();
+
+    private InstanceInventoryCache inventoryCache;
+
+    @Before
+    public void init() {
+        inventoryCache = new InstanceInventoryCache(1000, 2, new Ticker() {
+            @Override
+            public long read() {
+                return time.get();
+            }
+        });
+    }
+
+    @Test
+    public void testGetUnknownTag() {
+        assertThat(inventoryCache.getInstancesIds("infra123", "tag1"), is(nullValue()));
+        assertThat(inventoryCache.getMissCount(), is(1L));
+    }
+
+    @Test
+    public void testPutAndAddInstancesIds() {
+        inventoryCache.putInstancesIds("infra123", "tag1", Sets.newHashSet("instance1"));
+        inventoryCache.addInstancesIds("infra123", "tag1", Sets.newHashSet("instance2"));
+        inventoryCache.addInstancesIds("infra123", "tag2", Sets.newHashSet("instance3"));
+
+        assertThat(inventoryCache.getInstancesIds("infra123", "tag1"),
+                is((Set<String>) Sets.newHashSet("instance1", "instance2")));
+        assertThat(inventoryCache.getInstancesIds("infra123", "tag2"),
+                is((Set<String>) Sets.newHashSet("instance3")));
+        assertThat(inventoryCache.getHitCount(), is(2L));
+    }
+
+    @Test
+    public void testRemoveInstance() {
+        inventoryCache.putInstancesIds("infra123", "tag1", Sets.newHashSet("instance1", "instance2"));
+        inventoryCache.putInstancesIds("infra456", "tag1", Sets.newHashSet("instance1"));
+
+        inventoryCache.removeInstance("infra123", "instance1");
+
+        assertThat(inventoryCache.getInstancesIds("infra123", "tag1"),
+                is((Set<String>) Sets.newHashSet("instance2")));
+        assertThat(inventoryCache.getInstancesIds("infra456", "tag1"),
+                is((Set<String>) Sets.newHashSet("instance1")));
+    }
+
+    @Test
+    public void testInvalidateInfrastructure() {
+        inventoryCache.putInstancesIds("infra123", "tag1", Sets.newHashSet("instance1"));
+        inventoryCache.putInstancesIds("infra456", "tag1", Sets.newHashSet("instance2"));
+
+        inventoryCache.invalidateInfrastructure("infra123");
+
+        assertThat(inventoryCache.getInstancesIds("infra123", "tag1"), is(nullValue()));
+        assertThat(inventoryCache.getInstancesIds("infra456", "tag1"),
+                is((Set<String>) Sets.newHashSet("instance2")));
+    }
+
+    @Test
+    public void testEntriesExpire() {
+        inventoryCache.putInstancesIds("infra123", "tag1", Sets.newHashSet("instance1"));
+
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(1001));
+
+        assertThat(inventoryCache.getInstancesIds("infra123", "tag1"), is(nullValue()));
+        assertThat(inventoryCache.getEvictionCount(), is(1L));
+    }
+
+    @Test
+    public void testSizeIsBounded() {
+        inventoryCache.putInstancesIds("infra123", "tag1", Sets.newHashSet("instance1"));
+        inventoryCache.putInstancesIds("infra123", "tag2", Sets.newHashSet("instance2"));
+        inventoryCache.putInstancesIds("infra123", "tag3", Sets.newHashSet("instance3"));
+
+        assertThat(inventoryCache.size(), is(2L));
+        assertThat(inventoryCache.getEvictionCount(), is(1L));
+    }
+
+}
@@ -0,0 +1,122 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+
+public class InstanceTerminationQueueTest {
+
+    private ConnectorIaasClient connectorIaasClient;
+
+    private InstanceTerminationQueue instanceTerminationQueue;
+
+    @Before
+    public void init() {
+        connectorIaasClient = mock(ConnectorIaasClient.class);
+        instanceTerminationQueue = new InstanceTerminationQueue(connectorIaasClient, 50);
+    }
+
+    @Test
+    public void testInstancesQueuedTogetherAreTerminatedTogether() throws Exception {
+        when(connectorIaasClient.terminateInstances(anyString(), anyCollectionOf(String.class)))
+                .thenAnswer(new Answer<Map<String, ListenableFuture<Void>>>() {
+                    @Override
+                    public Map<String, ListenableFuture<Void>> answer(InvocationOnMock invocation) {
+                        Map<String, ListenableFuture<Void>> terminations = Maps.newHashMap();
+                        for (Object instanceId : (Collection<?>) invocation.getArguments()[1]) {
+                            terminations.put((String) instanceId, Futures.<Void> immediateFuture(null));
+                        }
+                        return terminations;
+                    }
+                });
+
+        ListenableFuture<Void> firstTermination = instanceTerminationQueue.add("infra123", "instance1");
+        instanceTerminationQueue.add("infra123", "instance2");
+        instanceTerminationQueue.add("infra123", "instance2");
+        ListenableFuture<Void> lastTermination = instanceTerminationQueue.add("infra123", "instance3");
+
+        assertThat(instanceTerminationQueue.size(), is(3));
+
+        firstTermination.get(5, TimeUnit.SECONDS);
+        lastTermination.get(5, TimeUnit.SECONDS);
+
+        ArgumentCaptor<Collection> instancesIds = ArgumentCaptor.forClass(Collection.class);
+        verify(connectorIaasClient, times(1)).terminateInstances(eq("infra123"), instancesIds.capture());
+
+        assertThat(Sets.newHashSet(instancesIds.getValue()),
+                is((Set) Sets.newHashSet("instance1", "instance2", "instance3")));
+        assertThat(instanceTerminationQueue.size(), is(0));
+    }
+
+    @Test
+    public void testInstancesQueuedByTagAreTerminatedByTag() throws Exception {
+        when(connectorIaasClient.terminateInstancesByTag(anyString(), anyCollectionOf(String.class)))
+                .thenReturn(ImmutableMap.of("tag1", Futures.<Void> immediateFuture(null)));
+
+        ListenableFuture<Void> termination = instanceTerminationQueue.addByTag("infra123", "tag1");
+        instanceTerminationQueue.addByTag("infra123", "tag1");
+
+        assertThat(instanceTerminationQueue.size(), is(1));
+
+        termination.get(5, TimeUnit.SECONDS);
+
+        ArgumentCaptor<Collection> instancesTags = ArgumentCaptor.forClass(Collection.class);
+        verify(connectorIaasClient, times(1)).terminateInstancesByTag(eq("infra123"),
+                instancesTags.capture());
+        assertThat(Sets.newHashSet(instancesTags.getValue()), is((Set) Sets.newHashSet("tag1")));
+        verify(connectorIaasClient, times(0)).terminateInstances(anyString(), anyCollectionOf(String.class));
+    }
+
+    @Test
+    public void testAddDoesNotWaitForTermination() {
+        instanceTerminationQueue.add("infra123", "instance1");
+
+        verify(connectorIaasClient, times(0)).terminateInstances(anyString(), anyCollectionOf(String.class));
+        verify(connectorIaasClient, timeout(5000)).terminateInstances(anyString(),
+                anyCollectionOf(String.class));
+    }
+
+    @Test
+    public void testFailedTermination() throws Exception {
+        when(connectorIaasClient.terminateInstances(anyString(), anyCollectionOf(String.class)))
+                .thenThrow(new ConnectorIaasException(500));
+
+        ListenableFuture<Void> termination = instanceTerminationQueue.add("infra123", "instance1");
+        instanceTerminationQueue.flush();
+
+        try {
+            termination.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(((ConnectorIaasException) e.getCause()).getStatus(), is(500));
+        }
+    }
+
+}
@@ -0,0 +1,259 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * In-memory stand-in for connector-iaas, listening on a local port, that supports the queries the
+ * infrastructures rely on, including tag filtering and paging of the instance listings.
+ */
+public class LocalConnectorIaas {
+
+    private static final String CONTEXT = "/connector-iaas";
+
+    private final HttpServer server;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final Map<String, JSONObject> infrastructures = Maps.newLinkedHashMap();
+
+    private final Map<String, List<JSONObject>> instancesPerInfrastructure = Maps.newHashMap();
+
+    private final List<String> requests = Collections.synchronizedList(Lists.<String> newArrayList());
+
+    private final AtomicInteger instancesCounter = new AtomicInteger();
+
+    public LocalConnectorIaas() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext(CONTEXT, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleRequest(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public String getURL() {
+        return "http://localhost:" + server.getAddress().getPort() + CONTEXT;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public synchronized void addInstance(String infrastructureId, String instanceId, String instanceTag) {
+        getInstances(infrastructureId).add(new JSONObject().put("id", instanceId).put("tag", instanceTag)
+                .put("image", "image").put("number", "1").put("status", "RUNNING")
+                .put("hardware", new JSONObject().put("minCores", "1").put("minRam", "512")));
+    }
+
+    public synchronized List<String> getInstancesIds(String infrastructureId) {
+        List<String> instancesIds = Lists.newArrayList();
+        for (JSONObject instance : getInstances(infrastructureId)) {
+            instancesIds.add(instance.getString("id"));
+        }
+        return instancesIds;
+    }
+
+    public synchronized boolean hasInfrastructure(String infrastructureId) {
+        return infrastructures.containsKey(infrastructureId);
+    }
+
+    /**
+     * @return the requests received so far, as "METHOD path?query"
+     */
+    public List<String> getRequests() {
+        synchronized (requests) {
+            return Lists.newArrayList(requests);
+        }
+    }
+
+    public void clearRequests() {
+        requests.clear();
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath().substring(CONTEXT.length());
+        String query = exchange.getRequestURI().getRawQuery();
+        requests.add(method + " " + path + (query == null ? "" : "?" + query));
+
+        Multimap<String, String> parameters = parseQuery(query);
+        String[] segments = path.replaceFirst("^/", "").split("/");
+
+        synchronized (this) {
+            if (segments.length == 1 && segments[0].equals("infrastructures")) {
+                if (method.equals("GET")) {
+                    respond(exchange, new JSONArray(infrastructures.values()).toString());
+                    return;
+                } else if (method.equals("POST")) {
+                    JSONObject infrastructure = readBody(exchange);
+                    infrastructures.put(infrastructure.getString("id"), infrastructure);
+                    respond(exchange, infrastructure.toString());
+                    return;
+                }
+            } else if (segments.length == 2 && segments[0].equals("infrastructures") && method.equals("DELETE")) {
+                infrastructures.remove(segments[1]);
+                instancesPerInfrastructure.remove(segments[1]);
+                respond(exchange, "");
+                return;
+            } else if (segments.length == 3 && segments[2].equals("instances")) {
+                handleInstancesRequest(exchange, method, segments[1], parameters);
+                return;
+            } else if (segments.length == 4 && segments[2].equals("instances") && segments[3].equals("scripts") &&
+                method.equals("POST")) {
+                handleScriptsRequest(exchange, segments[1], parameters);
+                return;
+            }
+        }
+        respond(exchange, HttpURLConnection.HTTP_NOT_FOUND, "");
+    }
+
+    private void handleInstancesRequest(HttpExchange exchange, String method, String infrastructureId,
+            Multimap<String, String> parameters) throws IOException {
+        List<JSONObject> instances = getInstances(infrastructureId);
+
+        if (method.equals("GET")) {
+            List<JSONObject> matchingInstances = Lists.newArrayList();
+            for (JSONObject instance : instances) {
+                if (!parameters.containsKey("instanceTag") ||
+                    parameters.get("instanceTag").contains(instance.getString("tag"))) {
+                    matchingInstances.add(instance);
+                }
+            }
+            int offset = getIntParameter(parameters, "offset", 0);
+            int limit = getIntParameter(parameters, "limit", matchingInstances.size());
+            int from = Math.min(offset, matchingInstances.size());
+            int to = Math.min(from + limit, matchingInstances.size());
+            respond(exchange, new JSONArray(matchingInstances.subList(from, to)).toString());
+
+        } else if (method.equals("POST")) {
+            JSONObject instanceRequest = readBody(exchange);
+            JSONArray createdInstances = new JSONArray();
+            for (int i = 0; i < Integer.parseInt(instanceRequest.getString("number")); i++) {
+                String instanceId = "instance-" + instancesCounter.incrementAndGet();
+                addInstance(infrastructureId, instanceId, instanceRequest.getString("tag"));
+                createdInstances.put(instances.get(instances.size() - 1));
+            }
+            respond(exchange, createdInstances.toString());
+
+        } else if (method.equals("DELETE")) {
+            Iterator<JSONObject> instancesIterator = instances.iterator();
+            while (instancesIterator.hasNext()) {
+                if (matches(instancesIterator.next(), parameters)) {
+                    instancesIterator.remove();
+                }
+            }
+            respond(exchange, "");
+
+        } else {
+            respond(exchange, HttpURLConnection.HTTP_BAD_METHOD, "");
+        }
+    }
+
+    private void handleScriptsRequest(HttpExchange exchange, String infrastructureId,
+            Multimap<String, String> parameters) throws IOException {
+        JSONObject script = readBody(exchange);
+        JSONArray scriptResults = new JSONArray();
+        for (JSONObject instance : getInstances(infrastructureId)) {
+            if (matches(instance, parameters)) {
+                scriptResults.put(new JSONObject().put("instanceId", instance.getString("id"))
+                        .put("output", script.getJSONArray("scripts").join(";")).put("error", ""));
+            }
+        }
+        if (parameters.containsKey("instanceId")) {
+            if (scriptResults.length() == 0) {
+                respond(exchange, HttpURLConnection.HTTP_NOT_FOUND, "");
+            } else {
+                respond(exchange, scriptResults.getJSONObject(0).toString());
+            }
+        } else {
+            respond(exchange, scriptResults.toString());
+        }
+    }
+
+    private boolean matches(JSONObject instance, Multimap<String, String> parameters) {
+        return parameters.get("instanceId").contains(instance.getString("id")) ||
+            parameters.get("instanceTag").contains(instance.getString("tag"));
+    }
+
+    private List<JSONObject> getInstances(String infrastructureId) {
+        List<JSONObject> instances = instancesPerInfrastructure.get(infrastructureId);
+        if (instances == null) {
+            instances = Lists.newArrayList();
+            instancesPerInfrastructure.put(infrastructureId, instances);
+        }
+        return instances;
+    }
+
+    private int getIntParameter(Multimap<String, String> parameters, String name, int defaultValue) {
+        if (parameters.containsKey(name)) {
+            return Integer.parseInt(parameters.get(name).iterator().next());
+        }
+        return defaultValue;
+    }
+
+    private Multimap<String, String> parseQuery(String query) throws IOException {
+        Multimap<String, String> parameters = ArrayListMultimap.create();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                String[] keyAndValue = parameter.split("=", 2);
+                parameters.put(URLDecoder.decode(keyAndValue[0], "UTF-8"),
+                        keyAndValue.length > 1 ? URLDecoder.decode(keyAndValue[1], "UTF-8") : "");
+            }
+        }
+        return parameters;
+    }
+
+    private JSONObject readBody(HttpExchange exchange) {
+        return new JSONObject(new JSONTokener(new InputStreamReader(exchange.getRequestBody(), Charsets.UTF_8)));
+    }
+
+    private void respond(HttpExchange exchange, String body) throws IOException {
+        respond(exchange, HttpURLConnection.HTTP_OK, body);
+    }
+
+    private void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(Charsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            OutputStream responseBody = exchange.getResponseBody();
+            responseBody.write(bytes);
+            responseBody.close();
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+
+public class NodesPerInstancesTest {
+
+    @Test
+    public void testAddAndRemoveNodes() {
+        NodesPerInstances nodesPerInstances = new NodesPerInstances();
+
+        nodesPerInstances.addNode("instance1", "node1");
+        nodesPerInstances.addNode("instance1", "node2");
+        nodesPerInstances.addNode("instance2", "node3");
+
+        assertThat(nodesPerInstances.size(), is(2));
+        assertThat(nodesPerInstances.get("instance1"), is((Object) Sets.newHashSet("node1", "node2")));
+
+        assertThat(nodesPerInstances.removeNode("instance1", "node1"), is(false));
+        assertThat(nodesPerInstances.removeNode("instance1", "node2"), is(true));
+        assertThat(nodesPerInstances.removeNode("instance1", "node2"), is(false));
+
+        assertThat(nodesPerInstances.get("instance1"), is(nullValue()));
+        assertThat(nodesPerInstances.getInstancesIds(), is((Object) Sets.newHashSet("instance2")));
+    }
+
+    @Test
+    public void testAddSameNodeTwice() {
+        NodesPerInstances nodesPerInstances = new NodesPerInstances();
+
+        nodesPerInstances.addNode("instance1", "node1");
+        nodesPerInstances.addNode("instance1", "node1");
+
+        assertThat(nodesPerInstances.get("instance1").size(), is(1));
+        assertThat(nodesPerInstances.removeNode("instance1", "node1"), is(true));
+        assertThat(nodesPerInstances.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testRemoveUnknownNode() {
+        NodesPerInstances nodesPerInstances = new NodesPerInstances();
+
+        nodesPerInstances.addNode("instance1", "node1");
+
+        assertThat(nodesPerInstances.removeNode("instance1", "node2"), is(false));
+        assertThat(nodesPerInstances.removeNode("instance2", "node1"), is(false));
+        assertThat(nodesPerInstances.get("instance1").size(), is(1));
+    }
+
+    @Test
+    public void testAddNodeToEmptiedInstance() {
+        NodesPerInstances nodesPerInstances = new NodesPerInstances();
+
+        nodesPerInstances.addNode("instance1", "node1");
+        nodesPerInstances.removeNode("instance1", "node1");
+        nodesPerInstances.addNode("instance1", "node2");
+
+        assertThat(nodesPerInstances.get("instance1"), is((Object) Sets.newHashSet("node2")));
+        assertThat(nodesPerInstances.removeNode("instance1", "node2"), is(true));
+    }
+
+    @Test
+    public void testConcurrentRemovalsEmptyEachInstanceOnce() throws Exception {
+        final NodesPerInstances nodesPerInstances = new NodesPerInstances();
+        final int numberOfInstances = 100;
+        final int nodesPerInstance = 8;
+        final AtomicInteger emptiedInstances = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(nodesPerInstance);
+
+        try {
+            List<Future<Void>> results = Lists.newArrayList();
+            for (int n = 0; n < nodesPerInstance; n++) {
+                final String nodeName = "node" + n;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        for (int i = 0; i < numberOfInstances; i++) {
+                            nodesPerInstances.addNode("instance" + i, nodeName);
+                        }
+                        for (int i = 0; i < numberOfInstances; i++) {
+                            if (nodesPerInstances.removeNode("instance" + i, nodeName)) {
+                                emptiedInstances.incrementAndGet();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // an instance may be emptied then filled again while other threads are still adding nodes
+        assertThat(emptiedInstances.get() >= numberOfInstances, is(true));
+        assertThat(nodesPerInstances.isEmpty(), is(true));
+    }
+
+}
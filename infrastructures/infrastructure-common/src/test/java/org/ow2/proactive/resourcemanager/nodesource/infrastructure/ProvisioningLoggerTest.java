@@ -0,0 +1,70 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.apache.log4j.AsyncAppender;
+import org.apache.log4j.Logger;
+import org.apache.log4j.varia.NullAppender;
+import org.junit.Test;
+
+
+public class ProvisioningLoggerTest {
+
+    @Test
+    public void testFormat() {
+        assertThat(ProvisioningLogger.format("Created {} instances with tag {}", 2, "tag1"),
+                is("Created 2 instances with tag tag1"));
+        assertThat(ProvisioningLogger.format("No argument {}"), is("No argument {}"));
+        assertThat(ProvisioningLogger.format("Too many {}", 1, 2), is("Too many 1"));
+    }
+
+    @Test
+    public void testRedactCredentials() {
+        String infrastructureJson = ConnectorIaasJSONTransformer.getInfrastructureJSONWithEndPoint("infra",
+                "vmware", "admin", "s3cr\"et", "https://vcenter", false);
+
+        String redacted = ProvisioningLogger.redact(infrastructureJson);
+
+        assertThat(redacted.contains("s3cr"), is(false));
+        assertThat(redacted.contains("\"password\":\"****\""), is(true));
+        assertThat(redacted.contains("\"username\":\"admin\""), is(true));
+        assertThat(ProvisioningLogger.redact("{\"aws_secret_key\" : \"abc\"}"),
+                is("{\"aws_secret_key\" : \"****\"}"));
+        assertThat(ProvisioningLogger.redact("{\"publicKeyName\":\"mykey\"}"),
+                is("{\"publicKeyName\":\"mykey\"}"));
+    }
+
+    @Test
+    public void testTruncate() {
+        assertThat(ProvisioningLogger.truncate("short", 10), is("short"));
+        assertThat(ProvisioningLogger.truncate("0123456789abcdef", 10),
+                is("0123456789... (6 more characters)"));
+    }
+
+    @Test
+    public void testUseAsyncAppender() {
+        Logger logger = Logger.getLogger(ProvisioningLoggerTest.class.getName() + ".async");
+        NullAppender appender = new NullAppender();
+        appender.setName("null");
+        logger.addAppender(appender);
+
+        try {
+            ProvisioningLogger.useAsyncAppender(logger);
+            ProvisioningLogger.useAsyncAppender(logger);
+
+            assertThat(logger.getAppender("null"), is(nullValue()));
+            assertThat(logger.getAppender(ProvisioningLogger.ASYNC_APPENDER_NAME),
+                    is(instanceOf(AsyncAppender.class)));
+            AsyncAppender asyncAppender = (AsyncAppender) logger
+                    .getAppender(ProvisioningLogger.ASYNC_APPENDER_NAME);
+            assertThat(asyncAppender.getAppender("null"), is(notNullValue()));
+        } finally {
+            logger.removeAllAppenders();
+        }
+    }
+
+}
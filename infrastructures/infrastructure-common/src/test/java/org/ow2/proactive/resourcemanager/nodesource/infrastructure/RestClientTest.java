@@ -0,0 +1,93 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Set;
+
+import javax.ws.rs.ProcessingException;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+
+public class RestClientTest {
+
+    @Test
+    public void testGetInstanceIsSharedPerConnectorIaasURL() {
+        RestClient restClient = RestClient.getInstance("http://localhost:8088/connector-iaas");
+
+        try {
+            assertThat(RestClient.getInstance("http://localhost:8088/connector-iaas"),
+                    is(sameInstance(restClient)));
+            assertThat(RestClient.getInstance("http://otherhost:8088/connector-iaas"),
+                    is(not(sameInstance(restClient))));
+        } finally {
+            restClient.close();
+            RestClient.getInstance("http://otherhost:8088/connector-iaas").close();
+        }
+    }
+
+    @Test
+    public void testCloseReleasesSharedInstance() {
+        RestClient restClient = RestClient.getInstance("http://localhost:8088/connector-iaas");
+        restClient.close();
+
+        RestClient newRestClient = RestClient.getInstance("http://localhost:8088/connector-iaas");
+
+        assertThat(newRestClient, is(not(sameInstance(restClient))));
+
+        newRestClient.close();
+    }
+
+    @Test
+    public void testUnreachableConnectorIaasCountsAsInfrastructureFailure() throws IOException {
+        LocalConnectorIaas connectorIaas = new LocalConnectorIaas();
+        String connectorIaasURL = connectorIaas.getURL();
+        connectorIaas.stop();
+        RestClient restClient = new RestClient(connectorIaasURL);
+
+        try {
+            restClient.getInstancesByInfrastructure("infra123");
+            fail("connector-iaas is not running");
+        } catch (ProcessingException e) {
+            assertThat(restClient.getInfrastructureFailureCount("infra123"), is(1L));
+            assertThat(restClient.getInfrastructureFailureCount("infra456"), is(0L));
+        } finally {
+            restClient.close();
+        }
+    }
+
+    @Test
+    public void testGetInstancesIdAndTagByInfrastructureAndTag() throws IOException {
+        LocalConnectorIaas connectorIaas = new LocalConnectorIaas();
+        RestClient restClient = new RestClient(connectorIaas.getURL());
+
+        try {
+            connectorIaas.addInstance("infra123", "instance1", "tag1");
+            connectorIaas.addInstance("infra123", "instance2", "tag2");
+            connectorIaas.addInstance("infra123", "instance3", "tag1");
+            connectorIaas.addInstance("infra123", "instance4", "tag1");
+
+            Set<JSONObject> firstPage = restClient.getInstancesIdAndTagByInfrastructureAndTag("infra123", "tag1",
+                    0, 2);
+            Set<JSONObject> secondPage = restClient.getInstancesIdAndTagByInfrastructureAndTag("infra123",
+                    "tag1", 2, 2);
+
+            assertThat(firstPage.size(), is(2));
+            assertThat(secondPage.size(), is(1));
+            assertThat(secondPage.iterator().next().getString("id"), is("instance4"));
+            assertThat(secondPage.iterator().next().getString("tag"), is("tag1"));
+            assertThat(secondPage.iterator().next().has("image"), is(false));
+            assertThat(restClient.getInstancesIdAndTagByInfrastructure("infra123").size(), is(4));
+        } finally {
+            restClient.close();
+            connectorIaas.stop();
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+
+public class RetryExecutorTest {
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private RetryMetrics retryMetrics;
+
+    private ScheduledExecutorService scheduler;
+
+    private RetryExecutor retryExecutor;
+
+    @Before
+    public void init() {
+        retryMetrics = new RetryMetrics();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        retryExecutor = new RetryExecutor(new ExponentialBackoffRetryPolicy(1, 5, 10000, 3), retryMetrics,
+                scheduler);
+    }
+
+    @After
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testExecuteRetriesUntilSuccess() {
+        String result = retryExecutor.execute("operation", failingTimes(2, new ConnectorIaasException(503)));
+
+        assertThat(result, is("ok"));
+        assertThat(calls.get(), is(3));
+        assertThat(retryMetrics.getOperationMetrics("operation").getAttempts(), is(3L));
+        assertThat(retryMetrics.getOperationMetrics("operation").getRetries(), is(2L));
+        assertThat(retryMetrics.getOperationMetrics("operation").getFailures(), is(0L));
+    }
+
+    @Test
+    public void testExecuteGivesUpAfterMaxAttempts() {
+        try {
+            retryExecutor.execute("operation", failingTimes(5, new ConnectorIaasException(503)));
+            fail();
+        } catch (ConnectorIaasException e) {
+            assertThat(e.getStatus(), is(503));
+        }
+
+        assertThat(calls.get(), is(3));
+        assertThat(retryMetrics.getOperationMetrics("operation").getFailures(), is(1L));
+    }
+
+    @Test
+    public void testExecuteDoesNotRetryFatalError() {
+        try {
+            retryExecutor.execute("operation", failingTimes(1, new ConnectorIaasException(400)));
+            fail();
+        } catch (ConnectorIaasException e) {
+            assertThat(e.getStatus(), is(400));
+        }
+
+        assertThat(calls.get(), is(1));
+    }
+
+    @Test
+    public void testExecuteAsyncRetriesUntilSuccess() throws InterruptedException, ExecutionException {
+        ListenableFuture<String> result = retryExecutor.executeAsync("operation",
+                asyncFailingTimes(2, new ConnectorIaasException(503)));
+
+        assertThat(result.get(), is("ok"));
+        assertThat(calls.get(), is(3));
+        assertThat(retryMetrics.getOperationMetrics("operation").getRetries(), is(2L));
+    }
+
+    @Test
+    public void testExecuteAsyncGivesUpOnFatalError() throws InterruptedException {
+        ListenableFuture<String> result = retryExecutor.executeAsync("operation",
+                asyncFailingTimes(1, new ConnectorIaasException(401)));
+
+        try {
+            result.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(ConnectorIaasException.class)));
+        }
+        assertThat(calls.get(), is(1));
+        assertThat(retryMetrics.getOperationMetrics("operation").getFailures(), is(1L));
+    }
+
+    private Callable<String> failingTimes(final int failures, final RuntimeException error) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                if (calls.incrementAndGet() <= failures) {
+                    throw error;
+                }
+                return "ok";
+            }
+        };
+    }
+
+    private Supplier<ListenableFuture<String>> asyncFailingTimes(final int failures, final RuntimeException error) {
+        return new Supplier<ListenableFuture<String>>() {
+            @Override
+            public ListenableFuture<String> get() {
+                if (calls.incrementAndGet() <= failures) {
+                    return Futures.immediateFailedFuture(error);
+                }
+                return Futures.immediateFuture("ok");
+            }
+        };
+    }
+
+}
@@ -0,0 +1,276 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+
+public class WarmInstancePoolTest {
+
+    private ConnectorIaasController connectorIaasController;
+
+    private TestInstanceFactory instanceFactory;
+
+    private WarmInstancePool warmInstancePool;
+
+    @Before
+    public void init() {
+        connectorIaasController = mock(ConnectorIaasController.class);
+        instanceFactory = new TestInstanceFactory();
+        warmInstancePool = new WarmInstancePool(connectorIaasController, "infra", 2, instanceFactory);
+    }
+
+    @Test
+    public void testClaimFromEmptyPoolRefillsIt() {
+        List<String> instancesIds = warmInstancePool.claim(3);
+
+        assertThat(instancesIds.isEmpty(), is(true));
+        assertThat(warmInstancePool.getMissCount(), is(3L));
+        assertThat(warmInstancePool.getHitCount(), is(0L));
+        assertThat(instanceFactory.creations.size(), is(1));
+        assertThat(instanceFactory.creations.get(0), startsWith("infra-warm-"));
+        assertThat(instanceFactory.numberOfInstances.get(0), is(2));
+        assertThat(warmInstancePool.getPendingInstancesCount(), is(2));
+    }
+
+    @Test
+    public void testPreparedInstancesAreParked() {
+        warmInstancePool.refill();
+        instanceFactory.creationResults.get(0).set(Sets.newHashSet("i1", "i2"));
+
+        assertThat(warmInstancePool.getParkedInstancesCount(), is(0));
+        assertThat(instanceFactory.preparedTags, is(instanceFactory.creations));
+
+        instanceFactory.preparations.get("i1").set("ok");
+        instanceFactory.preparations.get("i2").set("ok");
+
+        assertThat(warmInstancePool.getParkedInstancesCount(), is(2));
+        assertThat(warmInstancePool.getPendingInstancesCount(), is(0));
+        assertThat(warmInstancePool.getRefillCount(), is(2L));
+    }
+
+    @Test
+    public void testClaimTakesParkedInstancesAndRefills() {
+        warmInstancePool.refill();
+        instanceFactory.creationResults.get(0).set(Sets.newHashSet("i1", "i2"));
+        instanceFactory.preparations.get("i1").set("ok");
+        instanceFactory.preparations.get("i2").set("ok");
+
+        List<String> instancesIds = warmInstancePool.claim(1);
+
+        assertThat(instancesIds.size(), is(1));
+        assertThat(warmInstancePool.getHitCount(), is(1L));
+        assertThat(warmInstancePool.getMissCount(), is(0L));
+        assertThat(instanceFactory.creations.size(), is(2));
+        assertThat(instanceFactory.numberOfInstances.get(1), is(1));
+    }
+
+    @Test
+    public void testRefillDoesNotCreateInstancesAlreadyPending() {
+        warmInstancePool.refill();
+        warmInstancePool.refill();
+
+        assertThat(instanceFactory.creations.size(), is(1));
+    }
+
+    @Test
+    public void testFailedPreparationTerminatesInstance() {
+        warmInstancePool.refill();
+        instanceFactory.creationResults.get(0).set(Sets.newHashSet("i1", "i2"));
+        instanceFactory.preparations.get("i1").set("ok");
+        instanceFactory.preparations.get("i2").setException(new RuntimeException("wget failed"));
+
+        assertThat(warmInstancePool.getParkedInstancesCount(), is(1));
+        assertThat(warmInstancePool.getPendingInstancesCount(), is(0));
+        verify(connectorIaasController).queueInstanceTermination("infra", "i2");
+    }
+
+    @Test
+    public void testFewerInstancesCreatedThanAsked() {
+        warmInstancePool.refill();
+        instanceFactory.creationResults.get(0).set(Sets.newHashSet("i1"));
+
+        assertThat(warmInstancePool.getPendingInstancesCount(), is(1));
+
+        instanceFactory.preparations.get("i1").set("ok");
+
+        assertThat(warmInstancePool.getPendingInstancesCount(), is(0));
+        assertThat(warmInstancePool.getParkedInstancesCount(), is(1));
+    }
+
+    @Test
+    public void testFailedCreationReleasesPendingInstances() {
+        warmInstancePool.refill();
+        instanceFactory.creationResults.get(0).setException(new RuntimeException("quota exceeded"));
+
+        assertThat(warmInstancePool.getPendingInstancesCount(), is(0));
+
+        warmInstancePool.refill();
+
+        assertThat(instanceFactory.creations.size(), is(2));
+    }
+
+    @Test
+    public void testDisabledPool() {
+        WarmInstancePool disabledPool = new WarmInstancePool(connectorIaasController, "infra", 0,
+                instanceFactory);
+
+        assertThat(disabledPool.claim(2).isEmpty(), is(true));
+        assertThat(disabledPool.getMissCount(), is(0L));
+        assertThat(instanceFactory.creations.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testRetainWithoutIdleTimeout() {
+        assertThat(warmInstancePool.retain("i1"), is(false));
+        assertThat(warmInstancePool.getParkedInstancesCount(), is(0));
+    }
+
+    @Test
+    public void testRetainedInstanceIsReused() {
+        WarmInstancePool retainingPool = new WarmInstancePool(connectorIaasController, "infra", 0, 600000, 0,
+                instanceFactory);
+        retainingPool.recordLaunch(Sets.newHashSet("i1"), 5000);
+
+        assertThat(retainingPool.retain("i1"), is(true));
+        assertThat(retainingPool.claim(2), is((List<String>) Lists.newArrayList("i1")));
+        assertThat(retainingPool.getReusedCount(), is(1L));
+        assertThat(retainingPool.getReuseRate(), is(1.0));
+        assertThat(retainingPool.getSavedBootTime(), is(5000L));
+        assertThat(instanceFactory.creations.isEmpty(), is(true));
+        verify(connectorIaasController, never()).queueInstanceTermination(anyString(), anyString());
+    }
+
+    @Test
+    public void testRetainedInstanceExpires() {
+        WarmInstancePool retainingPool = new WarmInstancePool(connectorIaasController, "infra", 0, 50, 0,
+                instanceFactory);
+
+        assertThat(retainingPool.retain("i1"), is(true));
+
+        verify(connectorIaasController, timeout(5000)).queueInstanceTermination("infra", "i1");
+        assertThat(retainingPool.getParkedInstancesCount(), is(0));
+        assertThat(retainingPool.getExpiredCount(), is(1L));
+        assertThat(retainingPool.getReuseRate(), is(0.0));
+    }
+
+    @Test
+    public void testRetentionEndsBeforeNextBillingPeriod() {
+        WarmInstancePool retainingPool = new WarmInstancePool(connectorIaasController, "infra", 0, 600000,
+                3600000, instanceFactory);
+
+        assertThat(retainingPool.computeExpiry(null, 3000000L), is(3600000L));
+        assertThat(retainingPool.computeExpiry(0L, 1000000L), is(1600000L));
+        assertThat(retainingPool.computeExpiry(0L, 3000000L), is(3540000L));
+        assertThat(retainingPool.computeExpiry(0L, 3700000L), is(4300000L));
+    }
+
+    @Test
+    public void testInstanceCloseToNextBillingPeriodIsNotRetained() {
+        WarmInstancePool retainingPool = new WarmInstancePool(connectorIaasController, "infra", 0, 600000,
+                3600000, instanceFactory);
+        retainingPool.recordLaunch(Sets.newHashSet("i1"), 3590000);
+
+        assertThat(retainingPool.retain("i1"), is(false));
+        assertThat(retainingPool.getRetainedCount(), is(0L));
+    }
+
+    @Test
+    public void testCloseTerminatesParkedAndRetainedInstances() throws InterruptedException {
+        WarmInstancePool retainingPool = new WarmInstancePool(connectorIaasController, "infra", 1, 100, 0,
+                instanceFactory);
+        retainingPool.refill();
+        instanceFactory.creationResults.get(0).set(Sets.newHashSet("i1"));
+        instanceFactory.preparations.get("i1").set("ok");
+        retainingPool.retain("i2");
+
+        retainingPool.close();
+
+        verify(connectorIaasController).queueInstanceTermination("infra", "i1");
+        verify(connectorIaasController).queueInstanceTermination("infra", "i2");
+        assertThat(retainingPool.getParkedInstancesCount(), is(0));
+
+        // the expiry timer of the retained instance was cancelled
+        Thread.sleep(300);
+        assertThat(retainingPool.getExpiredCount(), is(0L));
+        verify(connectorIaasController).queueInstanceTermination("infra", "i2");
+    }
+
+    @Test
+    public void testClosedPoolTerminatesInstancesBeingCreated() {
+        warmInstancePool.refill();
+        instanceFactory.creationResults.get(0).set(Sets.newHashSet("i1"));
+
+        warmInstancePool.close();
+        instanceFactory.preparations.get("i1").set("ok");
+
+        verify(connectorIaasController).queueInstanceTermination("infra", "i1");
+        assertThat(warmInstancePool.getParkedInstancesCount(), is(0));
+        assertThat(warmInstancePool.getPendingInstancesCount(), is(0));
+    }
+
+    @Test
+    public void testClosedPoolNeitherRefillsNorRetains() {
+        WarmInstancePool retainingPool = new WarmInstancePool(connectorIaasController, "infra", 2, 600000, 0,
+                instanceFactory);
+        retainingPool.close();
+
+        assertThat(retainingPool.claim(1).isEmpty(), is(true));
+        assertThat(retainingPool.retain("i1"), is(false));
+        assertThat(instanceFactory.creations.isEmpty(), is(true));
+    }
+
+    private static class TestInstanceFactory implements WarmInstancePool.InstanceFactory {
+
+        private final List<String> creations = Lists.newArrayList();
+
+        private final List<Integer> numberOfInstances = Lists.newArrayList();
+
+        private final List<SettableFuture<Set<String>>> creationResults = Lists.newArrayList();
+
+        private final Map<String, SettableFuture<String>> preparations = Maps.newHashMap();
+
+        private final List<String> preparedTags = Lists.newArrayList();
+
+        @Override
+        public ListenableFuture<Set<String>> createInstances(String instanceTag, int numberOfInstances) {
+            SettableFuture<Set<String>> creationResult = SettableFuture.create();
+            creations.add(instanceTag);
+            this.numberOfInstances.add(numberOfInstances);
+            creationResults.add(creationResult);
+            return creationResult;
+        }
+
+        @Override
+        public Map<String, SettableFuture<String>> prepareInstances(String instanceTag,
+                Set<String> instancesIds) {
+            preparedTags.add(instanceTag);
+            Map<String, SettableFuture<String>> tagPreparations = Maps.newHashMap();
+            for (String instanceId : instancesIds) {
+                SettableFuture<String> preparation = SettableFuture.create();
+                preparations.put(instanceId, preparation);
+                tagPreparations.put(instanceId, preparation);
+            }
+            return tagPreparations;
+        }
+    }
+
+}
@@ -38,10 +38,9 @@ package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.objectweb.proactive.core.ProActiveException;
@@ -61,6 +60,8 @@ public class OpenstackInfrastructure extends InfrastructureManager {
 
     private static final Logger logger = Logger.getLogger(OpenstackInfrastructure.class);
 
+    private static final int DEFAULT_MAX_INSTANCE_REPLACEMENTS = 3;
+
     @Configurable(description = "The Openstack_Username")
     protected String username = null;
 
@@ -97,21 +98,39 @@ public class OpenstackInfrastructure extends InfrastructureManager {
     @Configurable(description = "Additional Java command properties (e.g. \"-Dpropertyname=propertyvalue\")")
     protected String additionalProperties = "-Dproactive.useIPaddress=true";
 
+    @Configurable(description = "Seconds given to the nodes of an instance to register (0 to disable)")
+    protected int nodeRegistrationTimeout = 0;
+
+    @Configurable(description = "Maximum number of times an instance whose nodes never register is replaced")
+    protected int maxInstanceReplacements = DEFAULT_MAX_INSTANCE_REPLACEMENTS;
+
     protected ConnectorIaasController connectorIaasController = null;
 
-    protected final Map<String, Set<String>> nodesPerInstances;
+    protected final NodesPerInstances nodesPerInstances;
+
+    protected final DeployingInstances deployingInstances;
+
+    protected final FleetSize fleetSize;
+
+    // numbers the instances, each one having its own tag
+    private final AtomicInteger instancesTagsCount = new AtomicInteger();
+
+    // the counter restarts with the node source, the nonce keeps apart the tags of its earlier runs
+    protected final String tagsNonce = Long.toString(System.currentTimeMillis(), 36);
 
     /**
      * Default constructor
      */
     public OpenstackInfrastructure() {
-        nodesPerInstances = Maps.newConcurrentMap();
+        nodesPerInstances = new NodesPerInstances();
+        deployingInstances = new DeployingInstances();
+        fleetSize = new FleetSize();
     }
 
     @Override
     public void configure(Object... parameters) {
 
-        logger.info("Validating parameters : " + parameters);
+        logger.info("Validating parameters");
         validate(parameters);
 
         this.username = parameters[0].toString().trim();
@@ -126,6 +145,12 @@ public class OpenstackInfrastructure extends InfrastructureManager {
         this.numberOfNodesPerInstance = Integer.parseInt(parameters[9].toString().trim());
         this.downloadCommand = parameters[10].toString().trim();
         this.additionalProperties = parameters[11].toString().trim();
+        if (parameters.length > 12) {
+            this.nodeRegistrationTimeout = Integer.parseInt(parameters[12].toString().trim());
+        }
+        if (parameters.length > 13) {
+            this.maxInstanceReplacements = Integer.parseInt(parameters[13].toString().trim());
+        }
 
         connectorIaasController = new ConnectorIaasController(connectorIaasURL, INFRASTRUCTURE_TYPE);
 
@@ -181,32 +206,95 @@ public class OpenstackInfrastructure extends InfrastructureManager {
             throw new IllegalArgumentException("The minimum number of cores required must be specified");
         }
 
+        if (parameters.length > 12 && parameters[12] == null) {
+            parameters[12] = 0;
+        }
+
+        if (parameters.length > 13 && parameters[13] == null) {
+            parameters[13] = DEFAULT_MAX_INSTANCE_REPLACEMENTS;
+        }
+
     }
 
+    /**
+     * Adds one instance to the node source, unless it already has {@link #numberOfInstances}.
+     */
     @Override
     public void acquireNode() {
+        growFleet(1);
+    }
+
+    /**
+     * Adds the instances the node source lacks to have {@link #numberOfInstances}.
+     */
+    @Override
+    public void acquireAllNodes() {
+        growFleet(numberOfInstances);
+    }
+
+    private void growFleet(int numberOfInstancesToAdd) {
 
         connectorIaasController.waitForConnectorIaasToBeUP();
 
         connectorIaasController.createInfrastructure(getInfrastructureId(), username, password, endpoint,
                 true);
 
-        for (int i = 1; i <= numberOfInstances; i++) {
+        connectorIaasController.registerNodeSource(nodeSource.getName(), nodesPerInstances);
+
+        int reserved = fleetSize.reserve(numberOfInstancesToAdd, numberOfInstances);
+        if (reserved == 0) {
+            logger.info("The node source already has its " + numberOfInstances + " instances");
+            return;
+        }
+
+        List<String> instancesTags = Lists.newArrayList();
+
+        for (int i = 0; i < reserved; i++) {
+            instancesTags.add(
+                    getInfrastructureId() + "_" + tagsNonce + "_" + instancesTagsCount.incrementAndGet());
+        }
+
+        acquireInstances(instancesTags, 0);
+
+    }
+
+    /**
+     * @param replacement
+     *            0 when acquiring the requested instances, n when replacing an instance for the n-th
+     *            time because its nodes did not register
+     */
+    private void acquireInstances(List<String> instancesTags, int replacement) {
 
-            String instanceTag = getInfrastructureId() + "_" + i;
+        Map<String, List<String>> scriptsPerTag = Maps.newLinkedHashMap();
+
+        for (String instanceTag : instancesTags) {
 
             List<String> scripts = Lists.newArrayList(this.downloadCommand,
                     "nohup " + generateDefaultStartNodeCommand(instanceTag) + "  &");
 
-            connectorIaasController.createInstancesWithPublicKeyNameAndInitScript(getInfrastructureId(),
-                    instanceTag, image, 1, flavor, publicKeyName, scripts);
+            scriptsPerTag.put(instanceTag, scripts);
+
+            addDeployingInstance(instanceTag, replacement);
         }
 
-    }
+        // the nodes of an instance know it by its tag
+        nodesPerInstances.addPendingInstances(scriptsPerTag.keySet());
+
+        Map<String, Throwable> failures = connectorIaasController.waitForInstances(
+                connectorIaasController.createInstancesWithPublicKeyNameAndInitScriptPerTag(getInfrastructureId(),
+                        scriptsPerTag, image, 1, flavor, publicKeyName));
+
+        nodesPerInstances.removePendingInstances(failures.keySet());
+
+        for (Map.Entry<String, Throwable> failure : failures.entrySet()) {
+            String deployingNode = deployingInstances.removeByInstance(failure.getKey());
+            if (deployingNode != null) {
+                declareDeployingNodeLost(deployingNode,
+                        "The instance could not be created: " + failure.getValue().getMessage());
+            }
+        }
+        fleetSize.release(failures.size());
 
-    @Override
-    public void acquireAllNodes() {
-        acquireNode();
     }
 
     @Override
@@ -221,15 +309,16 @@ public class OpenstackInfrastructure extends InfrastructureManager {
             logger.warn(e);
         }
 
-        synchronized (this) {
-            nodesPerInstances.get(instanceId).remove(node.getNodeInformation().getName());
-            logger.info("Removed node : " + node.getNodeInformation().getName());
+        boolean lastNodeOfInstance = nodesPerInstances.removeNode(instanceId,
+                node.getNodeInformation().getName());
+        logger.info("Removed node : " + node.getNodeInformation().getName());
 
-            if (nodesPerInstances.get(instanceId).isEmpty()) {
-                connectorIaasController.terminateInstance(getInfrastructureId(), instanceId);
-                nodesPerInstances.remove(instanceId);
-                logger.info("Removed instance : " + instanceId);
-            }
+        if (lastNodeOfInstance) {
+            connectorIaasController.traceNodeRemoval(getInfrastructureId(), instanceId);
+            fleetSize.release(1);
+            // the nodes know their instance by its tag only
+            connectorIaasController.queueInstanceTerminationByTag(getInfrastructureId(), instanceId);
+            logger.info("Removed instance : " + instanceId);
         }
     }
 
@@ -238,11 +327,53 @@ public class OpenstackInfrastructure extends InfrastructureManager {
 
         String instanceId = getInstanceIdProperty(node);
 
-        synchronized (this) {
-            if (!nodesPerInstances.containsKey(instanceId)) {
-                nodesPerInstances.put(instanceId, new HashSet<String>());
+        nodesPerInstances.addNode(instanceId, node.getNodeInformation().getName());
+
+        connectorIaasController.traceNodeRegistration(getInfrastructureId(), instanceId);
+
+        String deployingNode = deployingInstances.removeByInstance(instanceId);
+        if (deployingNode != null) {
+            internalRemoveDeployingNode(deployingNode);
+        }
+    }
+
+    /**
+     * Terminates the instance whose nodes did not register in time and acquires a replacement in
+     * parallel, unless the instance already replaced {@link #maxInstanceReplacements} others. The
+     * replacement gets a new tag, as no instance is created for a tag some instance already has.
+     */
+    @Override
+    protected void notifyDeployingNodeLost(String pnURL) {
+        final DeployingInstances.DeployingInstance instance = deployingInstances.removeByDeployingNode(pnURL);
+        if (instance == null) {
+            return;
+        }
+
+        final String instanceTag = instance.getInstanceId();
+        logger.warn("The nodes of instance " + instanceTag + " did not register in time, terminating it");
+        nodesPerInstances.removePendingInstances(Lists.newArrayList(instanceTag));
+        connectorIaasController.queueInstanceTerminationByTag(getInfrastructureId(), instanceTag);
+
+        if (instance.getReplacement() >= maxInstanceReplacements) {
+            logger.error("Instance " + instanceTag + " was replacement number " +
+                instance.getReplacement() + ", giving up replacing it");
+            fleetSize.release(1);
+            return;
+        }
+
+        nodeSource.executeInParallel(new Runnable() {
+            @Override
+            public void run() {
+                acquireInstances(Lists.newArrayList(instanceTag + "_" + (instance.getReplacement() + 1)),
+                        instance.getReplacement() + 1);
             }
-            nodesPerInstances.get(instanceId).add(node.getNodeInformation().getName());
+        });
+    }
+
+    @Override
+    public void shutDown() {
+        if (connectorIaasController != null) {
+            connectorIaasController.unregisterNodeSource(nodeSource.getName());
         }
     }
 
@@ -295,6 +426,16 @@ public class OpenstackInfrastructure extends InfrastructureManager {
         }
     }
 
+    private void addDeployingInstance(String instanceTag, int replacement) {
+        if (nodeRegistrationTimeout <= 0) {
+            return;
+        }
+        String deployingNode = addDeployingNode(instanceTag, generateDefaultStartNodeCommand(instanceTag),
+                "Waiting for the nodes of instance " + instanceTag + " to register",
+                nodeRegistrationTimeout * 1000L);
+        deployingInstances.add(instanceTag, deployingNode, replacement);
+    }
+
     private String getInstanceIdProperty(Node node) throws RMException {
         try {
             return node.getProperty(INSTANCE_TAG_NODE_PROPERTY);
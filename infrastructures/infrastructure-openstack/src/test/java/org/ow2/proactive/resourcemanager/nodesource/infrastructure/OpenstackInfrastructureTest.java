@@ -4,15 +4,22 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
-import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyMap;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.Map;
+import java.util.Set;
+
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.objectweb.proactive.core.ProActiveException;
@@ -110,10 +117,6 @@ public class OpenstackInfrastructureTest {
         when(connectorIaasController.createInfrastructure("node_source_name", "username", "password",
                 "endpoint", false)).thenReturn("node_source_name");
 
-        when(connectorIaasController.createInstancesWithPublicKeyNameAndInitScript(anyString(), anyString(),
-                anyString(), anyInt(), anyInt(), anyString(), anyList()))
-                        .thenReturn(Sets.newHashSet("123", "456"));
-
         openstackInfrastructure.acquireNode();
 
         verify(connectorIaasController, times(1)).waitForConnectorIaasToBeUP();
@@ -121,8 +124,17 @@ public class OpenstackInfrastructureTest {
         verify(connectorIaasController).createInfrastructure("node_source_name", "username", "password",
                 "endpoint", true);
 
-        verify(connectorIaasController, times(2)).createInstancesWithPublicKeyNameAndInitScript(anyString(),
-                anyString(), anyString(), anyInt(), anyInt(), anyString(), anyList());
+        ArgumentCaptor<Map> scriptsPerTag = ArgumentCaptor.forClass(Map.class);
+
+        verify(connectorIaasController).createInstancesWithPublicKeyNameAndInitScriptPerTag(
+                eq("node_source_name"), scriptsPerTag.capture(), eq("openstack-image"), eq(1), eq(3),
+                eq("publicKeyName"));
+
+        assertThat(scriptsPerTag.getValue().keySet(), is((Set) Sets.newHashSet(instanceTag(1))));
+
+        assertThat(openstackInfrastructure.fleetSize.get(), is(1));
+
+        verify(connectorIaasController).waitForInstances(anyMap());
 
         verify(connectorIaasController, times(0)).executeScript(anyString(), anyString(), anyList());
 
@@ -130,7 +142,44 @@ public class OpenstackInfrastructureTest {
 
     @Test
     public void testAcquireAllNodes() {
-        testAcquireNode();
+
+        when(nodeSource.getName()).thenReturn("node source name");
+        openstackInfrastructure.nodeSource = nodeSource;
+
+        openstackInfrastructure.configure("username", "password", "endpoint", "test.activeeon.com",
+                "http://localhost:8088/connector-iaas", "openstack-image", "3", "publicKeyName", "2", "3",
+                "wget -nv test.activeeon.com/rest/node.jar", "-Dnew=value");
+
+        openstackInfrastructure.connectorIaasController = connectorIaasController;
+
+        openstackInfrastructure.rmUrl = "http://test.activeeon.com";
+
+        when(connectorIaasController.createInfrastructure("node_source_name", "username", "password",
+                "endpoint", false)).thenReturn("node_source_name");
+
+        openstackInfrastructure.acquireAllNodes();
+        openstackInfrastructure.acquireAllNodes();
+
+        verify(connectorIaasController, times(2)).waitForConnectorIaasToBeUP();
+
+        verify(connectorIaasController, times(2)).createInfrastructure("node_source_name", "username",
+                "password", "endpoint", true);
+
+        ArgumentCaptor<Map> scriptsPerTag = ArgumentCaptor.forClass(Map.class);
+
+        verify(connectorIaasController).createInstancesWithPublicKeyNameAndInitScriptPerTag(
+                eq("node_source_name"), scriptsPerTag.capture(), eq("openstack-image"), eq(1), eq(3),
+                eq("publicKeyName"));
+
+        assertThat(scriptsPerTag.getValue().keySet(),
+                is((Set) Sets.newHashSet(instanceTag(1), instanceTag(2))));
+
+        assertThat(openstackInfrastructure.fleetSize.get(), is(2));
+
+        verify(connectorIaasController).waitForInstances(anyMap());
+
+        verify(connectorIaasController, times(0)).executeScript(anyString(), anyString(), anyList());
+
     }
 
     @Test
@@ -153,15 +202,18 @@ public class OpenstackInfrastructureTest {
 
         when(nodeInformation.getName()).thenReturn("nodename");
 
-        openstackInfrastructure.nodesPerInstances.put("123", Sets.newHashSet("nodename"));
+        openstackInfrastructure.nodesPerInstances.addNode("123", "nodename");
+        openstackInfrastructure.fleetSize.reserve(1, 2);
 
         openstackInfrastructure.removeNode(node);
 
         verify(proActiveRuntime).killNode("nodename");
 
-        verify(connectorIaasController).terminateInstance("node_source_name", "123");
+        verify(connectorIaasController).queueInstanceTerminationByTag("node_source_name", "123");
+        verify(connectorIaasController, never()).queueInstanceTermination(anyString(), anyString());
 
         assertThat(openstackInfrastructure.nodesPerInstances.isEmpty(), is(true));
+        assertThat(openstackInfrastructure.fleetSize.get(), is(0));
 
     }
 
@@ -190,10 +242,40 @@ public class OpenstackInfrastructureTest {
 
     }
 
+    @Test
+    public void testNotifyDeployingNodeLostTerminatesInstanceByTag() {
+
+        when(nodeSource.getName()).thenReturn("Node source Name");
+        openstackInfrastructure.nodeSource = nodeSource;
+
+        openstackInfrastructure.configure("username", "password", "endpoint", "test.activeeon.com",
+                "http://localhost:8088/connector-iaas", "openstack-image", "3", "publicKeyName", "2", "3",
+                "wget -nv test.activeeon.com/rest/node.jar", "-Dnew=value", "600", "1");
+
+        openstackInfrastructure.connectorIaasController = connectorIaasController;
+
+        openstackInfrastructure.fleetSize.reserve(1, 2);
+        openstackInfrastructure.deployingInstances.add("node_source_name_1", "deploying://1", 1);
+
+        openstackInfrastructure.notifyDeployingNodeLost("deploying://1");
+
+        verify(connectorIaasController).queueInstanceTerminationByTag("node_source_name",
+                "node_source_name_1");
+        verify(connectorIaasController, never()).queueInstanceTermination(anyString(), anyString());
+        // the replacement would exceed the maximum number of replacements
+        verify(nodeSource, never()).executeInParallel(any(Runnable.class));
+        assertThat(openstackInfrastructure.fleetSize.get(), is(0));
+
+    }
+
     @Test
     public void testGetDescription() {
         assertThat(openstackInfrastructure.getDescription(),
                 is("Handles nodes from the Amazon Elastic Compute Cloud Service."));
     }
 
+    private String instanceTag(int number) {
+        return "node_source_name_" + openstackInfrastructure.tagsNonce + "_" + number;
+    }
+
 }
@@ -38,9 +38,10 @@ package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.objectweb.proactive.core.ProActiveException;
@@ -50,6 +51,7 @@ import org.ow2.proactive.resourcemanager.nodesource.common.Configurable;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
 
 
 public class VMWareInfrastructure extends InfrastructureManager {
@@ -60,6 +62,8 @@ public class VMWareInfrastructure extends InfrastructureManager {
 
     private static final Logger logger = Logger.getLogger(VMWareInfrastructure.class);
 
+    private static final int DEFAULT_MAX_INSTANCE_REPLACEMENTS = 3;
+
     @Configurable(description = "The VMWare_Username")
     protected String username = null;
 
@@ -105,21 +109,47 @@ public class VMWareInfrastructure extends InfrastructureManager {
     @Configurable(description = "Additional Java command properties (e.g. \"-Dpropertyname=propertyvalue\")")
     protected String additionalProperties = "-Dproactive.useIPaddress=true";
 
+    @Configurable(description = "Number of instances kept booted and ready for new nodes (0 to disable)")
+    protected int warmPoolSize = 0;
+
+    @Configurable(description = "Seconds an instance without nodes is kept for new nodes (0 to disable)")
+    protected int idleInstanceTimeout = 0;
+
+    @Configurable(description = "Seconds given to the nodes of an instance to register (0 to disable)")
+    protected int nodeRegistrationTimeout = 0;
+
+    @Configurable(description = "Maximum number of times an instance whose nodes never register is replaced")
+    protected int maxInstanceReplacements = DEFAULT_MAX_INSTANCE_REPLACEMENTS;
+
     protected ConnectorIaasController connectorIaasController = null;
 
-    protected final Map<String, Set<String>> nodesPerInstances;
+    protected WarmInstancePool warmInstancePool = null;
+
+    protected final NodesPerInstances nodesPerInstances;
+
+    protected final DeployingInstances deployingInstances;
+
+    protected final FleetSize fleetSize;
+
+    // numbers the acquisitions, whose instances are tagged apart from the instances already there
+    private final AtomicInteger acquisitionsCount = new AtomicInteger();
+
+    // differs from one run of the node source to the next, see AWSEC2Infrastructure
+    protected final String tagsNonce = Long.toString(System.currentTimeMillis(), 36);
 
     /**
      * Default constructor
      */
     public VMWareInfrastructure() {
-        nodesPerInstances = Maps.newConcurrentMap();
+        nodesPerInstances = new NodesPerInstances();
+        deployingInstances = new DeployingInstances();
+        fleetSize = new FleetSize();
     }
 
     @Override
     public void configure(Object... parameters) {
 
-        logger.info("Validating parameters : " + parameters);
+        logger.info("Validating parameters");
         validate(parameters);
 
         this.username = parameters[0].toString().trim();
@@ -137,6 +167,18 @@ public class VMWareInfrastructure extends InfrastructureManager {
         this.downloadCommand = parameters[12].toString().trim();
         this.macAddresses = parameters[13].toString().trim();
         this.additionalProperties = parameters[14].toString().trim();
+        if (parameters.length > 15) {
+            this.warmPoolSize = Integer.parseInt(parameters[15].toString().trim());
+        }
+        if (parameters.length > 16) {
+            this.idleInstanceTimeout = Integer.parseInt(parameters[16].toString().trim());
+        }
+        if (parameters.length > 17) {
+            this.nodeRegistrationTimeout = Integer.parseInt(parameters[17].toString().trim());
+        }
+        if (parameters.length > 18) {
+            this.maxInstanceReplacements = Integer.parseInt(parameters[18].toString().trim());
+        }
 
         connectorIaasController = new ConnectorIaasController(connectorIaasURL, INFRASTRUCTURE_TYPE);
 
@@ -207,43 +249,162 @@ public class VMWareInfrastructure extends InfrastructureManager {
         if (parameters[14] == null) {
             parameters[14] = "";
         }
+
+        if (parameters.length > 15 && parameters[15] == null) {
+            parameters[15] = 0;
+        }
+
+        if (parameters.length > 16 && parameters[16] == null) {
+            parameters[16] = 0;
+        }
+
+        if (parameters.length > 17 && parameters[17] == null) {
+            parameters[17] = 0;
+        }
+
+        if (parameters.length > 18 && parameters[18] == null) {
+            parameters[18] = DEFAULT_MAX_INSTANCE_REPLACEMENTS;
+        }
     }
 
+    /**
+     * Adds one instance to the node source, unless it already has {@link #numberOfInstances}. The
+     * instances are all added at once when MAC addresses are assigned, as the addresses are given
+     * out in order to the instances of a single creation: the node source then only grows when it
+     * has no instance left.
+     */
     @Override
     public void acquireNode() {
+        growFleet(macAddresses.isEmpty() ? 1 : numberOfInstances);
+    }
+
+    /**
+     * Adds the instances the node source lacks to have {@link #numberOfInstances}.
+     */
+    @Override
+    public void acquireAllNodes() {
+        growFleet(numberOfInstances);
+    }
+
+    private void growFleet(int numberOfInstancesToAdd) {
 
         connectorIaasController.waitForConnectorIaasToBeUP();
 
         connectorIaasController.createInfrastructure(getInfrastructureId(), username, password, endpoint,
                 false);
 
-        String instanceTag = getInfrastructureId();
-        Set<String> instancesIds;
-        if (!macAddresses.isEmpty()) {
-            instancesIds = connectorIaasController.createInstancesWithOptions(getInfrastructureId(), instanceTag, image,
-                    numberOfInstances, cores, ram, null, null, null, macAddresses);
-        } else {
+        connectorIaasController.registerNodeSource(nodeSource.getName(), nodesPerInstances);
+
+        int reserved = fleetSize.reserve(numberOfInstancesToAdd, numberOfInstances);
+        if (reserved == 0) {
+            logger.info("The node source already has its " + numberOfInstances + " instances");
+            return;
+        }
 
-            instancesIds = connectorIaasController.createInstances(getInfrastructureId(), instanceTag,
-                    image, numberOfInstances, cores, ram);
+        if (!macAddresses.isEmpty() && reserved < numberOfInstances) {
+            // a partial creation would give out again the first MAC addresses, which some
+            // remaining instances still have
+            fleetSize.release(reserved);
+            logger.warn("The node source lacks " + reserved + " of its " + numberOfInstances +
+                " instances, which cannot be recreated without the whole set as MAC addresses are assigned");
+            return;
         }
 
+        acquireInstances(reserved, 0);
+
+    }
+
+    /**
+     * @param replacement
+     *            0 when acquiring the requested instances, n when replacing an instance for the n-th
+     *            time because its nodes did not register
+     */
+    private void acquireInstances(int numberOfInstances, int replacement) {
+
+        String instanceTag = getInfrastructureId() + "-" + tagsNonce + "-" +
+            acquisitionsCount.incrementAndGet();
+
+        List<String> warmInstancesIds = getWarmInstancePool().claim(numberOfInstances);
+
+        nodesPerInstances.addPendingInstances(warmInstancesIds);
+
+        Map<String, ListenableFuture<String>> scriptsResults = Maps.newHashMap();
+
+        // node.jar was downloaded when the warm instances were parked
+        for (String instanceId : warmInstancesIds) {
+
+            String startScript = "-c 'nohup " + generateDefaultStartNodeCommand(instanceId) + "  &'";
+
+            addDeployingInstance(instanceId, replacement);
+
+            scriptsResults.put(instanceId, connectorIaasController.executeScriptWithCredentialsAsync(
+                    getInfrastructureId(), instanceId, Lists.newArrayList(startScript), vmUsername,
+                    vmPassword));
+        }
+
+        if (warmInstancesIds.size() == numberOfInstances) {
+            handleScriptsFailures(connectorIaasController.waitForScripts(scriptsResults));
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        int numberOfInstancesToCreate = numberOfInstances - warmInstancesIds.size();
+        Set<String> instancesIds;
+        try {
+            if (!macAddresses.isEmpty()) {
+                instancesIds = connectorIaasController.createInstancesWithOptions(getInfrastructureId(),
+                        instanceTag, image, numberOfInstancesToCreate, cores, ram, null, null, null,
+                        macAddresses);
+            } else {
+
+                instancesIds = connectorIaasController.createInstances(getInfrastructureId(), instanceTag,
+                        image, numberOfInstancesToCreate, cores, ram);
+            }
+        } catch (RuntimeException e) {
+            fleetSize.release(numberOfInstancesToCreate);
+            handleScriptsFailures(connectorIaasController.waitForScripts(scriptsResults));
+            throw e;
+        }
+        fleetSize.release(Math.max(0, numberOfInstancesToCreate - instancesIds.size()));
+
         logger.info("Instances ids created : " + instancesIds);
 
+        nodesPerInstances.addPendingInstances(instancesIds);
+
         for (String instanceId : instancesIds) {
 
             String fullScript = "-c '" + this.downloadCommand + ";nohup " +
                 generateDefaultStartNodeCommand(instanceId) + "  &'";
 
-            connectorIaasController.executeScriptWithCredentials(getInfrastructureId(), instanceId,
-                    Lists.newArrayList(fullScript), vmUsername, vmPassword);
+            addDeployingInstance(instanceId, replacement);
+
+            scriptsResults.put(instanceId, connectorIaasController.executeScriptWithCredentialsAsync(
+                    getInfrastructureId(), instanceId, Lists.newArrayList(fullScript), vmUsername,
+                    vmPassword));
         }
 
+        handleScriptsFailures(connectorIaasController.waitForScripts(scriptsResults));
+
+        getWarmInstancePool().recordLaunch(instancesIds, System.currentTimeMillis() - start);
+
     }
 
-    @Override
-    public void acquireAllNodes() {
-        acquireNode();
+    /**
+     * Terminates the instances on which the node could not be started, and gives their room back so
+     * that they can be acquired again.
+     */
+    private void handleScriptsFailures(Map<String, Throwable> failures) {
+        nodesPerInstances.removePendingInstances(failures.keySet());
+        for (Map.Entry<String, Throwable> failure : failures.entrySet()) {
+            String instanceId = failure.getKey();
+            String deployingNode = deployingInstances.removeByInstance(instanceId);
+            if (deployingNode != null) {
+                declareDeployingNodeLost(deployingNode,
+                        "The node could not be started on the instance: " + failure.getValue().getMessage());
+            }
+            connectorIaasController.queueInstanceTermination(getInfrastructureId(), instanceId);
+            fleetSize.release(1);
+        }
     }
 
     @Override
@@ -258,15 +419,18 @@ public class VMWareInfrastructure extends InfrastructureManager {
             logger.warn(e);
         }
 
-        synchronized (this) {
-            nodesPerInstances.get(instanceId).remove(node.getNodeInformation().getName());
-            logger.info("Removed node : " + node.getNodeInformation().getName());
+        boolean lastNodeOfInstance = nodesPerInstances.removeNode(instanceId,
+                node.getNodeInformation().getName());
+        logger.info("Removed node : " + node.getNodeInformation().getName());
 
-            if (nodesPerInstances.get(instanceId).isEmpty()) {
-                connectorIaasController.terminateInstance(getInfrastructureId(), instanceId);
-                nodesPerInstances.remove(instanceId);
-                logger.info("Removed instance : " + instanceId);
-            }
+        if (lastNodeOfInstance) {
+            connectorIaasController.traceNodeRemoval(getInfrastructureId(), instanceId);
+            fleetSize.release(1);
+        }
+
+        if (lastNodeOfInstance && !getWarmInstancePool().retain(instanceId)) {
+            connectorIaasController.queueInstanceTermination(getInfrastructureId(), instanceId);
+            logger.info("Removed instance : " + instanceId);
         }
     }
 
@@ -275,11 +439,64 @@ public class VMWareInfrastructure extends InfrastructureManager {
 
         String instanceId = getInstanceIdProperty(node);
 
+        nodesPerInstances.addNode(instanceId, node.getNodeInformation().getName());
+
+        connectorIaasController.traceNodeRegistration(getInfrastructureId(), instanceId);
+
+        String deployingNode = deployingInstances.removeByInstance(instanceId);
+        if (deployingNode != null) {
+            internalRemoveDeployingNode(deployingNode);
+        }
+    }
+
+    /**
+     * Terminates the instance whose nodes did not register in time and acquires a replacement in
+     * parallel, unless the instance already replaced {@link #maxInstanceReplacements} others or MAC
+     * addresses are assigned to the instances.
+     */
+    @Override
+    protected void notifyDeployingNodeLost(String pnURL) {
+        final DeployingInstances.DeployingInstance instance = deployingInstances.removeByDeployingNode(pnURL);
+        if (instance == null) {
+            return;
+        }
+
+        String instanceId = instance.getInstanceId();
+        logger.warn("The nodes of instance " + instanceId + " did not register in time, terminating it");
+        nodesPerInstances.removePendingInstances(Lists.newArrayList(instanceId));
+        connectorIaasController.queueInstanceTermination(getInfrastructureId(), instanceId);
+
+        if (instance.getReplacement() >= maxInstanceReplacements) {
+            logger.error("Instance " + instanceId + " was replacement number " +
+                instance.getReplacement() + ", giving up replacing it");
+            fleetSize.release(1);
+            return;
+        }
+
+        if (!macAddresses.isEmpty()) {
+            // the replacement would need the MAC address of the instance, which is still terminating
+            logger.error("Instance " + instanceId + " has a fixed MAC address, it cannot be replaced");
+            fleetSize.release(1);
+            return;
+        }
+
+        nodeSource.executeInParallel(new Runnable() {
+            @Override
+            public void run() {
+                acquireInstances(1, instance.getReplacement() + 1);
+            }
+        });
+    }
+
+    @Override
+    public void shutDown() {
         synchronized (this) {
-            if (!nodesPerInstances.containsKey(instanceId)) {
-                nodesPerInstances.put(instanceId, new HashSet<String>());
+            if (warmInstancePool != null) {
+                warmInstancePool.close();
             }
-            nodesPerInstances.get(instanceId).add(node.getNodeInformation().getName());
+        }
+        if (connectorIaasController != null) {
+            connectorIaasController.unregisterNodeSource(nodeSource.getName());
         }
     }
 
@@ -332,6 +549,52 @@ public class VMWareInfrastructure extends InfrastructureManager {
         }
     }
 
+    private synchronized WarmInstancePool getWarmInstancePool() {
+        if (warmInstancePool == null) {
+            int poolSize = warmPoolSize;
+            if (poolSize > 0 && !macAddresses.isEmpty()) {
+                // each MAC address can only be assigned once, keep them for the nodes asked for
+                logger.warn("The warm pool is disabled as MAC addresses are assigned to the instances");
+                poolSize = 0;
+            }
+            warmInstancePool = new WarmInstancePool(connectorIaasController, getInfrastructureId(), poolSize,
+                idleInstanceTimeout * 1000L, 0, new WarmInstancePool.InstanceFactory() {
+                    @Override
+                    public ListenableFuture<Set<String>> createInstances(String instanceTag,
+                            int numberOfInstances) {
+                        return connectorIaasController.createInstancesAsync(getInfrastructureId(),
+                                instanceTag, image, numberOfInstances, cores, ram);
+                    }
+
+                    @Override
+                    public Map<String, ListenableFuture<String>> prepareInstances(String instanceTag,
+                            Set<String> instancesIds) {
+                        // the scripts by tag do not take the credentials, one request per instance
+                        Map<String, ListenableFuture<String>> preparations = Maps.newHashMap();
+                        for (String instanceId : instancesIds) {
+                            preparations.put(instanceId,
+                                    connectorIaasController.executeScriptWithCredentialsAsync(
+                                            getInfrastructureId(), instanceId,
+                                            Lists.newArrayList("-c '" + downloadCommand + "'"), vmUsername,
+                                            vmPassword));
+                        }
+                        return preparations;
+                    }
+                });
+        }
+        return warmInstancePool;
+    }
+
+    private void addDeployingInstance(String instanceId, int replacement) {
+        if (nodeRegistrationTimeout <= 0) {
+            return;
+        }
+        String deployingNode = addDeployingNode(instanceId, generateDefaultStartNodeCommand(instanceId),
+                "Waiting for the nodes of instance " + instanceId + " to register",
+                nodeRegistrationTimeout * 1000L);
+        deployingInstances.add(instanceId, deployingNode, replacement);
+    }
+
     private String getInstanceIdProperty(Node node) throws RMException {
         try {
             return node.getProperty(INSTANCE_ID_NODE_PROPERTY);
@@ -4,8 +4,11 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyMap;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -113,7 +116,7 @@ public class VMWareInfrastructureTest {
         when(connectorIaasController.createInfrastructure("node_source_name", "username", "password",
                 "endpoint", false)).thenReturn("node_source_name");
 
-        when(connectorIaasController.createInstances("node_source_name", "node_source_name", "vmware-image",
+        when(connectorIaasController.createInstances("node_source_name", instanceTag(1), "vmware-image",
                 1, 1, 512)).thenReturn(Sets.newHashSet("123", "456"));
 
         vmwareInfrastructure.acquireNode();
@@ -123,11 +126,13 @@ public class VMWareInfrastructureTest {
         verify(connectorIaasController).createInfrastructure("node_source_name", "username", "password",
                 "endpoint", false);
 
-        verify(connectorIaasController).createInstances("node_source_name", "node_source_name",
+        verify(connectorIaasController).createInstances("node_source_name", instanceTag(1),
                 "vmware-image", 1, 1, 512);
 
-        verify(connectorIaasController, times(2)).executeScriptWithCredentials(anyString(), anyString(),
+        verify(connectorIaasController, times(2)).executeScriptWithCredentialsAsync(anyString(), anyString(),
                 anyList(), anyString(), anyString());
+
+        verify(connectorIaasController).waitForScripts(anyMap());
     }
 
     @Test
@@ -147,7 +152,7 @@ public class VMWareInfrastructureTest {
         when(connectorIaasController.createInfrastructure("node_source_name", "username", "password",
                 "endpoint", false)).thenReturn("node_source_name");
 
-        when(connectorIaasController.createInstancesWithOptions("node_source_name", "node_source_name",
+        when(connectorIaasController.createInstancesWithOptions("node_source_name", instanceTag(1),
                 "vmware-image", 1, 1, 512, null, null, null, "00:50:56:11:11:11"))
                 .thenReturn(Sets.newHashSet("123", "456"));
 
@@ -158,13 +163,39 @@ public class VMWareInfrastructureTest {
         verify(connectorIaasController).createInfrastructure("node_source_name", "username", "password",
                 "endpoint", false);
 
-        verify(connectorIaasController).createInstancesWithOptions("node_source_name", "node_source_name",
+        verify(connectorIaasController).createInstancesWithOptions("node_source_name", instanceTag(1),
                 "vmware-image", 1, 1, 512, null, null, null, "00:50:56:11:11:11");
 
-        verify(connectorIaasController, times(2)).executeScriptWithCredentials(anyString(), anyString(),
+        verify(connectorIaasController, times(2)).executeScriptWithCredentialsAsync(anyString(), anyString(),
                 anyList(), anyString(), anyString());
     }
 
+    @Test
+    public void testAcquireNodeWithOptionsDoesNotRecreatePartOfTheInstances() {
+
+        when(nodeSource.getName()).thenReturn("Node source Name");
+        vmwareInfrastructure.nodeSource = nodeSource;
+
+        vmwareInfrastructure.configure("username", "password", "endpoint", "test.activeeon.com",
+                "http://localhost:8088/connector-iaas", "vmware-image", "512", "1", "vmUsername",
+                "vmPassword", "2", "3", "wget -nv test.activeeon.com/rest/node.jar",
+                "00:50:56:11:11:11,00:50:56:11:11:12", "-Dnew=value");
+
+        vmwareInfrastructure.connectorIaasController = connectorIaasController;
+
+        vmwareInfrastructure.rmUrl = "http://test.activeeon.com";
+
+        // one of the two instances is still there
+        vmwareInfrastructure.fleetSize.reserve(1, 2);
+
+        vmwareInfrastructure.acquireNode();
+
+        verify(connectorIaasController, never()).createInstancesWithOptions(anyString(), anyString(),
+                anyString(), anyInt(), anyInt(), anyInt(), anyString(), anyString(), anyString(),
+                anyString());
+        assertThat(vmwareInfrastructure.fleetSize.get(), is(1));
+    }
+
     @Test
     public void testAcquireAllNodes() {
         testAcquireNode();
@@ -189,13 +220,13 @@ public class VMWareInfrastructureTest {
 
         when(nodeInformation.getName()).thenReturn("nodename");
 
-        vmwareInfrastructure.nodesPerInstances.put("123", Sets.newHashSet("nodename"));
+        vmwareInfrastructure.nodesPerInstances.addNode("123", "nodename");
 
         vmwareInfrastructure.removeNode(node);
 
         verify(proActiveRuntime).killNode("nodename");
 
-        verify(connectorIaasController).terminateInstance("node_source_name", "123");
+        verify(connectorIaasController).queueInstanceTermination("node_source_name", "123");
 
         assertThat(vmwareInfrastructure.nodesPerInstances.isEmpty(), is(true));
 
@@ -232,4 +263,8 @@ public class VMWareInfrastructureTest {
                 is("Handles nodes from the Amazon Elastic Compute Cloud Service."));
     }
 
+    private String instanceTag(int number) {
+        return "node_source_name-" + vmwareInfrastructure.tagsNonce + "-" + number;
+    }
+
 }
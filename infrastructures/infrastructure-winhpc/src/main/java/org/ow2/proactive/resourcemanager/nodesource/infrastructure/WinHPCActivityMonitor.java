@@ -0,0 +1,291 @@
+/*
+ * ################################################################
+ *
+ * ProActive Parallel Suite(TM): The Java(TM) library for
+ *    Parallel, Distributed, Multi-Core Computing for
+ *    Enterprise Grids & Clouds
+ *
+ * Copyright (C) 1997-2015 INRIA/University of
+ *                 Nice-Sophia Antipolis/ActiveEon
+ * Contact: proactive@ow2.org or contact@activeeon.com
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; version 3 of
+ * the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307
+ * USA
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ *
+ *  Initial developer(s):               The ActiveEon Team
+ *                        http://www.activeeon.com/
+ *  Contributor(s):
+ *
+ * ################################################################
+ * $$ACTIVEEON_INITIAL_DEV$$
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.ActivityStateEnumeration;
+import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.ActivityStatusType;
+import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.EndpointReferenceType;
+import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.GetActivityStatusResponseType;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+
+/**
+ * Monitors the activities submitted to the WinHPC scheduler from a single thread, asking for the
+ * status of all of them with one GetActivityStatuses request per round. The delay between two
+ * rounds starts at {@link #MIN_REFRESH_RATE} and doubles, up to {@link #MAX_REFRESH_RATE}, as long
+ * as no activity changes its state. It goes back to the minimum as soon as one does, or as soon as
+ * a new activity is monitored.
+ */
+public class WinHPCActivityMonitor {
+
+    private static final Logger logger = Logger.getLogger(WinHPCActivityMonitor.class);
+
+    static final long MIN_REFRESH_RATE = 1000;
+
+    static final long MAX_REFRESH_RATE = 10000;
+
+    /** number of rounds the status of an activity can be missing before giving up on it */
+    static final int ERROR_HANDLE_THRESHOLD = 5;
+
+    /**
+     * Retrieves the statuses of the activities and handles them.
+     */
+    public interface ActivityHandler {
+
+        /**
+         * @return the statuses of the activities, in the same order
+         */
+        GetActivityStatusResponseType[] getActivityStatuses(EndpointReferenceType[] activities)
+                throws Exception;
+
+        /**
+         * Called at each round with the state of the activity.
+         *
+         * @param changed
+         *            whether the state is not the one of the previous round
+         * @return false to stop monitoring the activity
+         */
+        boolean handleState(String deployingNode, String nodeName, ActivityStateEnumeration state,
+                boolean changed);
+
+        /**
+         * Called when the status of the activity could not be retrieved
+         * {@link WinHPCActivityMonitor#ERROR_HANDLE_THRESHOLD} times, after which it is not monitored
+         * anymore.
+         */
+        void handleError(String deployingNode, String nodeName, Throwable cause);
+    }
+
+    private final ActivityHandler handler;
+
+    private final ConcurrentMap<String, Activity> activities = Maps.newConcurrentMap();
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Runnable pollTask = new Runnable() {
+        @Override
+        public void run() {
+            poll();
+        }
+    };
+
+    private long refreshRate = MIN_REFRESH_RATE;
+
+    private boolean scheduled;
+
+    private boolean activityAdded;
+
+    private boolean shutdown;
+
+    public WinHPCActivityMonitor(ActivityHandler handler) {
+        this(handler, Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("winhpc-activity-monitor-%d").build()));
+    }
+
+    WinHPCActivityMonitor(ActivityHandler handler, ScheduledExecutorService scheduler) {
+        this.handler = handler;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Starts monitoring the activity deploying the node, until the handler stops it, gives up on it or
+     * {@link #unmonitor(String)} is called. Does nothing once the monitor is shut down.
+     */
+    public void monitor(String deployingNode, String nodeName, EndpointReferenceType activity) {
+        synchronized (this) {
+            if (shutdown) {
+                logger.debug("Not monitoring the activity deploying " + nodeName +
+                    ", the monitor is shut down");
+                return;
+            }
+            activities.put(deployingNode, new Activity(deployingNode, nodeName, activity));
+            activityAdded = true;
+            if (!scheduled) {
+                scheduled = true;
+                refreshRate = MIN_REFRESH_RATE;
+                scheduler.schedule(pollTask, refreshRate, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * @return the name of the node deployed by the activity, null if the activity was not monitored
+     */
+    public String unmonitor(String deployingNode) {
+        Activity activity = activities.remove(deployingNode);
+        return activity == null ? null : activity.nodeName;
+    }
+
+    public int size() {
+        return activities.size();
+    }
+
+    public synchronized void shutdown() {
+        shutdown = true;
+        scheduler.shutdownNow();
+    }
+
+    private void poll() {
+        boolean stateChanged = false;
+        try {
+            List<Activity> polledActivities = Lists.newArrayList(activities.values());
+            if (!polledActivities.isEmpty()) {
+                stateChanged = poll(polledActivities);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Failed to monitor the WinHPC activities", e);
+        } finally {
+            synchronized (this) {
+                if (shutdown || activities.isEmpty()) {
+                    scheduled = false;
+                } else {
+                    refreshRate = stateChanged || activityAdded ? MIN_REFRESH_RATE
+                            : Math.min(refreshRate * 2, MAX_REFRESH_RATE);
+                    activityAdded = false;
+                    scheduler.schedule(pollTask, refreshRate, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the state of at least one activity changed
+     */
+    private boolean poll(List<Activity> polledActivities) {
+        EndpointReferenceType[] eprs = new EndpointReferenceType[polledActivities.size()];
+        for (int i = 0; i < eprs.length; i++) {
+            eprs[i] = polledActivities.get(i).epr;
+        }
+
+        GetActivityStatusResponseType[] statuses = null;
+        Throwable error = null;
+        try {
+            statuses = handler.getActivityStatuses(eprs);
+            int statusesCount = statuses == null ? 0 : statuses.length;
+            if (statusesCount != eprs.length) {
+                error = new IllegalStateException("The WinHPC scheduler returned " + statusesCount +
+                    " statuses for " + eprs.length + " activities");
+            }
+        } catch (Exception e) {
+            error = e;
+        }
+
+        boolean stateChanged = false;
+        for (int i = 0; i < eprs.length; i++) {
+            Activity activity = polledActivities.get(i);
+            GetActivityStatusResponseType response = error == null ? statuses[i] : null;
+            ActivityStatusType status = response == null ? null : response.getActivityStatus();
+            if (status == null || status.getState() == null) {
+                handleError(activity, error != null ? error
+                        : new IllegalStateException("No status returned for the activity"));
+            } else if (handleState(activity, status.getState())) {
+                stateChanged = true;
+            }
+        }
+        return stateChanged;
+    }
+
+    /**
+     * @return whether the state of the activity changed
+     */
+    private boolean handleState(Activity activity, ActivityStateEnumeration state) {
+        boolean changed = !state.equals(activity.state);
+        activity.state = state;
+        if (activities.get(activity.deployingNode) != activity) {
+            // unmonitored during the round
+            return changed;
+        }
+        boolean monitored = false;
+        try {
+            monitored = handler.handleState(activity.deployingNode, activity.nodeName, state, changed);
+        } catch (RuntimeException e) {
+            logger.error("Failed to handle the state of the activity deploying " + activity.nodeName, e);
+        }
+        if (!monitored) {
+            activities.remove(activity.deployingNode, activity);
+        }
+        return changed;
+    }
+
+    private void handleError(Activity activity, Throwable cause) {
+        activity.errors++;
+        if (activity.errors < ERROR_HANDLE_THRESHOLD) {
+            logger.debug("Cannot retrieve the status of the activity deploying " + activity.nodeName, cause);
+            return;
+        }
+        if (activities.remove(activity.deployingNode, activity)) {
+            try {
+                handler.handleError(activity.deployingNode, activity.nodeName, cause);
+            } catch (RuntimeException e) {
+                logger.error("Failed to handle the error of the activity deploying " + activity.nodeName, e);
+            }
+        }
+    }
+
+    /**
+     * Only accessed from the monitoring thread, once added.
+     */
+    private static class Activity {
+
+        private final String deployingNode;
+
+        private final String nodeName;
+
+        private final EndpointReferenceType epr;
+
+        private ActivityStateEnumeration state;
+
+        private int errors;
+
+        private Activity(String deployingNode, String nodeName, EndpointReferenceType epr) {
+            this.deployingNode = deployingNode;
+            this.nodeName = nodeName;
+            this.epr = epr;
+        }
+    }
+
+}
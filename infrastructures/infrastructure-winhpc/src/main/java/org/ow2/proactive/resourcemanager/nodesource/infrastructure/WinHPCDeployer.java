@@ -36,6 +36,15 @@
  */
 package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
 import org.apache.axis2.context.ConfigurationContext;
 import org.apache.axis2.context.ConfigurationContextFactory;
 import org.apache.log4j.Logger;
@@ -46,6 +55,7 @@ import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.CreateActivity
 import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.CreateActivityResponse;
 import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.CreateActivityType;
 import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.EndpointReferenceType;
+import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.Exact_Type;
 import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.FileName_Type;
 import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.GetActivityStatusResponseType;
 import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.GetActivityStatuses;
@@ -54,12 +64,17 @@ import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.GetActivitySta
 import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.HPCProfileApplication_Type;
 import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.JobDefinition_Type;
 import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.JobDescription_Type;
+import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.RangeValue_Type;
+import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.Resources_Type;
 import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.TerminateActivities;
 import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.TerminateActivitiesResponse;
 import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.TerminateActivitiesType;
 import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.TerminateActivityResponseType;
 import org.ogf.hpcbp.Client;
 
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 
 /**
  *
@@ -72,19 +87,88 @@ public class WinHPCDeployer {
     /** logger */
     protected static Logger logger = Logger.getLogger(WinHPCDeployer.class);
 
-    private HPCBPServiceStub proxy;
+    public static final String STUB_POOL_SIZE_PROPERTY = "winhpc.stubPoolSize";
+
+    /** number of stubs, hence of requests that can be sent at the same time */
+    private static final int DEFAULT_STUB_POOL_SIZE = 8;
+
+    /** maximum number of activities terminated by a single request */
+    static final int TERMINATE_CHUNK_SIZE = 100;
+
+    /** maximum number of termination requests sent at the same time */
+    static final int TERMINATE_PARALLELISM = 4;
+
+    /**
+     * The proxies to the HPCBP service, all sharing the same configuration context. A stub is not
+     * meant to be used by several threads at once, so each request leases one for its duration.
+     */
+    private final BlockingQueue<HPCBPServiceStub> stubs;
+
+    /** set once closed, the stubs returned afterwards are cleaned up instead of being pooled */
+    private volatile boolean closed;
 
     public WinHPCDeployer(String axisRep, String serviceURL, String username, String password)
             throws Exception {
-        // Creates the proxy to the HPCBP service
+        this(axisRep, serviceURL, username, password,
+                Integer.getInteger(STUB_POOL_SIZE_PROPERTY, DEFAULT_STUB_POOL_SIZE));
+    }
+
+    public WinHPCDeployer(String axisRep, String serviceURL, String username, String password,
+            int stubPoolSize) throws Exception {
+        // Creates the proxies to the HPCBP service
         String confFile = axisRep + System.getProperty("file.separator") + "conf" +
             System.getProperty("file.separator") + "axis2.xml";
         ConfigurationContext config = ConfigurationContextFactory
                 .createConfigurationContextFromFileSystem(axisRep, confFile);
-        proxy = new HPCBPServiceStub(config, serviceURL);
         Client.WSSUsername = username;
         Client.WSSPassword = password;
-        proxy._getServiceClient().engageModule("rampart");
+        stubs = new LinkedBlockingQueue<>();
+        for (int i = 0; i < Math.max(1, stubPoolSize); i++) {
+            HPCBPServiceStub proxy = new HPCBPServiceStub(config, serviceURL);
+            proxy._getServiceClient().engageModule("rampart");
+            stubs.add(proxy);
+        }
+    }
+
+    /**
+     * Takes a stub from the pool, waiting for one to be returned if all are leased. The stub must be
+     * given back with {@link #returnStub(HPCBPServiceStub)} once the request is done.
+     */
+    public HPCBPServiceStub leaseStub() throws InterruptedException {
+        return stubs.take();
+    }
+
+    public void returnStub(HPCBPServiceStub stub) {
+        try {
+            // releases the connection of the last request
+            stub._getServiceClient().cleanupTransport();
+        } catch (Exception e) {
+            logger.debug("Cannot clean up the transport of the stub", e);
+        }
+        stubs.add(stub);
+        // pooled before checking the flag, so a concurrent close cannot miss the stub
+        if (closed) {
+            cleanupIdleStubs();
+        }
+    }
+
+    /**
+     * Releases the resources of the stubs that are not leased, and of the leased ones once returned.
+     */
+    public void close() {
+        closed = true;
+        cleanupIdleStubs();
+    }
+
+    private void cleanupIdleStubs() {
+        HPCBPServiceStub stub;
+        while ((stub = stubs.poll()) != null) {
+            try {
+                stub._getServiceClient().cleanup();
+            } catch (Exception e) {
+                logger.debug("Cannot clean up the stub", e);
+            }
+        }
     }
 
     /**
@@ -93,6 +177,13 @@ public class WinHPCDeployer {
      *
      */
     public static JobDefinition_Type createJSDLDocument(String command) {
+        return createJSDLDocument(command, 1);
+    }
+
+    /**
+     * Creates JSDL document of a job requesting the given number of cores
+     */
+    public static JobDefinition_Type createJSDLDocument(String command, int cpuCount) {
         JobDefinition_Type jobDefinition = new JobDefinition_Type();
         JobDescription_Type jobDescription = new JobDescription_Type();
         Application_Type application = new Application_Type();
@@ -103,6 +194,15 @@ public class WinHPCDeployer {
         application.setHPCProfileApplication(hpcApplication);
 
         jobDescription.setApplication(application);
+        if (cpuCount > 1) {
+            Exact_Type exactCount = new Exact_Type();
+            exactCount.setDouble(cpuCount);
+            RangeValue_Type totalCpuCount = new RangeValue_Type();
+            totalCpuCount.setExact(new Exact_Type[] { exactCount });
+            Resources_Type resources = new Resources_Type();
+            resources.setTotalCPUCount(totalCpuCount);
+            jobDescription.setResources(resources);
+        }
         jobDefinition.setJobDescription(jobDescription);
 
         return jobDefinition;
@@ -121,8 +221,13 @@ public class WinHPCDeployer {
         CreateActivity activity = new CreateActivity();
         activity.setCreateActivity(createActivityType);
         try {
-            CreateActivityResponse response = proxy.CreateActivity(activity);
-            return response.getCreateActivityResponse().getActivityIdentifier();
+            HPCBPServiceStub proxy = leaseStub();
+            try {
+                CreateActivityResponse response = proxy.CreateActivity(activity);
+                return response.getCreateActivityResponse().getActivityIdentifier();
+            } finally {
+                returnStub(proxy);
+            }
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -138,8 +243,13 @@ public class WinHPCDeployer {
             getActivityStatusesType.setActivityIdentifier(activities);
             GetActivityStatuses getActivityStatuses = new GetActivityStatuses();
             getActivityStatuses.setGetActivityStatuses(getActivityStatusesType);
-            GetActivityStatusesResponse response = proxy.GetActivityStatuses(getActivityStatuses);
-            return response.getGetActivityStatusesResponse().getResponse();
+            HPCBPServiceStub proxy = leaseStub();
+            try {
+                GetActivityStatusesResponse response = proxy.GetActivityStatuses(getActivityStatuses);
+                return response.getGetActivityStatusesResponse().getResponse();
+            } finally {
+                returnStub(proxy);
+            }
         } catch (Exception ex) {
             logger.warn(ex.getMessage(), ex);
             return new GetActivityStatusResponseType[0];
@@ -155,12 +265,78 @@ public class WinHPCDeployer {
             terminateActivitiesType.setActivityIdentifier(activityEPRs);
             TerminateActivities terminateActivities = new TerminateActivities();
             terminateActivities.setTerminateActivities(terminateActivitiesType);
-            TerminateActivitiesResponse response = proxy.TerminateActivities(terminateActivities);
-            return response.getTerminateActivitiesResponse().getResponse();
+            HPCBPServiceStub proxy = leaseStub();
+            try {
+                TerminateActivitiesResponse response = proxy.TerminateActivities(terminateActivities);
+                return response.getTerminateActivitiesResponse().getResponse();
+            } finally {
+                returnStub(proxy);
+            }
         } catch (Exception ex) {
             logger.warn(ex.getMessage(), ex);
             return new TerminateActivityResponseType[0];
         }
     }
 
+    /**
+     * Terminates many activities at once, with one request per chunk of
+     * {@link #TERMINATE_CHUNK_SIZE} activities and up to {@link #TERMINATE_PARALLELISM} requests
+     * at the same time.
+     *
+     * @return the number of activities reported as terminated by the scheduler
+     */
+    public int terminateActivities(List<EndpointReferenceType> activities) {
+        if (activities.isEmpty()) {
+            return 0;
+        }
+        List<List<EndpointReferenceType>> chunks = Lists.partition(activities, TERMINATE_CHUNK_SIZE);
+        int parallelism = Math.min(chunks.size(), TERMINATE_PARALLELISM);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("winhpc-terminate-%d").build());
+        try {
+            List<Future<Integer>> terminations = Lists.newArrayList();
+            for (final List<EndpointReferenceType> chunk : chunks) {
+                terminations.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return countTerminated(chunk, terminateActivity(
+                                chunk.toArray(new EndpointReferenceType[chunk.size()])));
+                    }
+                }));
+            }
+            int terminated = 0;
+            for (Future<Integer> termination : terminations) {
+                try {
+                    terminated += termination.get();
+                } catch (ExecutionException e) {
+                    logger.warn("Cannot terminate activities", e.getCause());
+                }
+            }
+            return terminated;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while terminating activities", e);
+            return 0;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static int countTerminated(List<EndpointReferenceType> activities,
+            TerminateActivityResponseType[] responses) {
+        if (responses.length != activities.size()) {
+            logger.warn("Termination of " + activities.size() + " activities returned " + responses.length +
+                " responses");
+        }
+        int terminated = 0;
+        for (TerminateActivityResponseType response : responses) {
+            if (response.getTerminated()) {
+                terminated++;
+            } else if (logger.isDebugEnabled()) {
+                logger.debug("Activity not terminated: " + response.getActivityIdentifier());
+            }
+        }
+        return terminated;
+    }
+
 }
@@ -0,0 +1,320 @@
+/*
+ * ################################################################
+ *
+ * ProActive Parallel Suite(TM): The Java(TM) library for
+ *    Parallel, Distributed, Multi-Core Computing for
+ *    Enterprise Grids & Clouds
+ *
+ * Copyright (C) 1997-2015 INRIA/University of
+ *                 Nice-Sophia Antipolis/ActiveEon
+ * Contact: proactive@ow2.org or contact@activeeon.com
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; version 3 of
+ * the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307
+ * USA
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ *
+ *  Initial developer(s):               The ActiveEon Team
+ *                        http://www.activeeon.com/
+ *  Contributor(s):
+ *
+ * ################################################################
+ * $$ACTIVEEON_INITIAL_DEV$$
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.EndpointReferenceType;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+
+/**
+ * Keeps track of the nodes deployed by a WinHPC infrastructure, from the reservation of their slots
+ * until their removal, along with the deploying node and the job of each deployment. A deployment
+ * starts one or several nodes with a single job, the nodes being named after the deployment, with
+ * an optional _index suffix. Deployments can be reserved, added and removed concurrently: each slot
+ * is given back exactly once, by whichever removal comes first, so that the number of nodes never
+ * exceeds the maximum and no slot is lost.
+ * <p>
+ * A deployment ends when the last of its nodes that registered is removed, giving back the slots
+ * of the nodes that never registered.
+ */
+public class WinHPCDeployments {
+
+    /**
+     * What the removal of a node did.
+     */
+    public enum NodeRemoval {
+        /** the node does not belong to any deployment */
+        UNKNOWN,
+        /** the node was removed before, its slot is already given back */
+        ALREADY_REMOVED,
+        /** the slot of the node is given back, other registered nodes of its deployment remain */
+        REMOVED,
+        /** the node was the last registered one of its deployment, which is removed */
+        LAST_REMOVED
+    }
+
+    private final AtomicInteger availableSlots;
+
+    private final ConcurrentMap<String, Deployment> deploymentsByNodeName = Maps.newConcurrentMap();
+
+    private final ConcurrentMap<String, Deployment> deploymentsByDeployingNode = Maps.newConcurrentMap();
+
+    public WinHPCDeployments(int maxNodes) {
+        this.availableSlots = new AtomicInteger(maxNodes);
+    }
+
+    /**
+     * Reserves the slots of the nodes of a new deployment, to be either added or released.
+     *
+     * @return false if there are not enough slots left
+     */
+    public boolean reserve(int nodesCount) {
+        while (true) {
+            int slots = availableSlots.get();
+            if (slots < nodesCount) {
+                return false;
+            }
+            if (availableSlots.compareAndSet(slots, slots - nodesCount)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back the slots reserved for a deployment that was not added.
+     */
+    public void release(int nodesCount) {
+        availableSlots.addAndGet(nodesCount);
+    }
+
+    /**
+     * Adds a deployment whose slots are reserved.
+     */
+    public Deployment add(String nodeName, String deployingNode, int nodesCount) {
+        Deployment deployment = new Deployment(nodeName, deployingNode, nodesCount);
+        deploymentsByNodeName.put(nodeName, deployment);
+        deploymentsByDeployingNode.put(deployingNode, deployment);
+        return deployment;
+    }
+
+    /**
+     * To be called once the nodes are acquired, the deployment being kept until they are removed.
+     */
+    public void nodeAcquired(String nodeName) {
+        Deployment deployment = deploymentsByNodeName.get(nodeName);
+        if (deployment != null) {
+            deploymentsByDeployingNode.remove(deployment.getDeployingNode(), deployment);
+        }
+    }
+
+    /**
+     * To be called when a node registers, for its deployment to end with the last registered node.
+     */
+    public void nodeRegistered(String nodeName) {
+        Deployment deployment = getDeployment(nodeName);
+        if (deployment != null) {
+            synchronized (deployment) {
+                deployment.registeredNodes.add(nodeName);
+            }
+        }
+    }
+
+    /**
+     * Gives back the slot of one of the nodes of a deployment. The deployment is removed along with
+     * its last registered node, giving back the slots of the nodes that never registered.
+     */
+    public NodeRemoval removeNode(String nodeName) {
+        Deployment deployment = getDeployment(nodeName);
+        if (deployment == null) {
+            return NodeRemoval.UNKNOWN;
+        }
+        boolean lastRegisteredNode;
+        synchronized (deployment) {
+            if (!deployment.removedNodes.add(nodeName)) {
+                return NodeRemoval.ALREADY_REMOVED;
+            }
+            deployment.registeredNodes.add(nodeName);
+            lastRegisteredNode = deployment.removedNodes.containsAll(deployment.registeredNodes);
+        }
+        if (deployment.takeSlots(1) == 0) {
+            // the whole deployment was removed meanwhile, along with the slot of the node
+            return NodeRemoval.LAST_REMOVED;
+        }
+        availableSlots.incrementAndGet();
+        if (lastRegisteredNode && remove(deployment)) {
+            return NodeRemoval.LAST_REMOVED;
+        }
+        return NodeRemoval.REMOVED;
+    }
+
+    /**
+     * Removes the deployment and gives the slots of its remaining nodes back.
+     *
+     * @return the removed deployment, null if it was already removed
+     */
+    public Deployment removeDeployment(String nodeName) {
+        Deployment deployment = deploymentsByNodeName.get(nodeName);
+        if (deployment == null || !remove(deployment)) {
+            return null;
+        }
+        return deployment;
+    }
+
+    /**
+     * Removes the deployment that the deploying node stands for, and gives the slots of its remaining
+     * nodes back.
+     *
+     * @return the removed deployment, null if it was already removed or if the nodes were acquired
+     */
+    public Deployment removeByDeployingNode(String deployingNode) {
+        Deployment deployment = deploymentsByDeployingNode.get(deployingNode);
+        if (deployment == null || !remove(deployment)) {
+            return null;
+        }
+        return deployment;
+    }
+
+    /**
+     * @return the deployment of the node, whether it is named after the deployment or has an _index
+     *         suffix, null if the node is unknown
+     */
+    private Deployment getDeployment(String nodeName) {
+        Deployment deployment = deploymentsByNodeName.get(nodeName);
+        if (deployment == null) {
+            int suffix = nodeName.lastIndexOf('_');
+            if (suffix >= 0 && nodeName.substring(suffix + 1).matches("\\d+")) {
+                deployment = deploymentsByNodeName.get(nodeName.substring(0, suffix));
+            }
+        }
+        return deployment;
+    }
+
+    private boolean remove(Deployment deployment) {
+        deploymentsByDeployingNode.remove(deployment.getDeployingNode(), deployment);
+        if (!deploymentsByNodeName.remove(deployment.getNodeName(), deployment)) {
+            return false;
+        }
+        availableSlots.addAndGet(deployment.takeSlots(deployment.getNodesCount()));
+        return true;
+    }
+
+    /**
+     * @return the jobs of the nodes deployed or being deployed, as far as they were submitted
+     */
+    public List<EndpointReferenceType> getActivities() {
+        List<EndpointReferenceType> activities = Lists.newArrayList();
+        for (Deployment deployment : deploymentsByNodeName.values()) {
+            EndpointReferenceType activity = deployment.getActivity();
+            if (activity != null) {
+                activities.add(activity);
+            }
+        }
+        return activities;
+    }
+
+    /**
+     * @return the number of deployments
+     */
+    public int size() {
+        return deploymentsByNodeName.size();
+    }
+
+    public int getAvailableSlots() {
+        return availableSlots.get();
+    }
+
+    public static class Deployment {
+
+        private final String nodeName;
+
+        private final String deployingNode;
+
+        private final int nodesCount;
+
+        private final AtomicInteger remainingNodes;
+
+        // guarded by the deployment
+        private final Set<String> registeredNodes = Sets.newHashSet();
+
+        // guarded by the deployment
+        private final Set<String> removedNodes = Sets.newHashSet();
+
+        private volatile EndpointReferenceType activity;
+
+        private Deployment(String nodeName, String deployingNode, int nodesCount) {
+            this.nodeName = nodeName;
+            this.deployingNode = deployingNode;
+            this.nodesCount = nodesCount;
+            this.remainingNodes = new AtomicInteger(nodesCount);
+        }
+
+        /**
+         * @return the name of the deployment, which is also the name of its node if it has only one
+         */
+        public String getNodeName() {
+            return nodeName;
+        }
+
+        public String getDeployingNode() {
+            return deployingNode;
+        }
+
+        public int getNodesCount() {
+            return nodesCount;
+        }
+
+        /**
+         * @return the number of nodes of the deployment that were not removed yet
+         */
+        public int getRemainingNodes() {
+            return remainingNodes.get();
+        }
+
+        /**
+         * @return the job deploying the nodes, null until it is submitted
+         */
+        public EndpointReferenceType getActivity() {
+            return activity;
+        }
+
+        public void setActivity(EndpointReferenceType activity) {
+            this.activity = activity;
+        }
+
+        /**
+         * @return the number of slots taken from the remaining nodes, at most the given one
+         */
+        private int takeSlots(int maxSlots) {
+            while (true) {
+                int remaining = remainingNodes.get();
+                int taken = Math.min(remaining, maxSlots);
+                if (taken == 0 || remainingNodes.compareAndSet(remaining, remaining - taken)) {
+                    return taken;
+                }
+            }
+        }
+    }
+
+}
@@ -39,8 +39,7 @@ package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 import java.io.File;
 import java.io.IOException;
 import java.security.KeyException;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.List;
 
 import org.apache.axiom.om.OMElement;
 import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.ActivityStateEnumeration;
@@ -57,7 +56,6 @@ import org.ow2.proactive.resourcemanager.nodesource.common.Configurable;
 import org.ow2.proactive.resourcemanager.utils.CommandLineBuilder;
 import org.ow2.proactive.resourcemanager.utils.OperatingSystem;
 import org.ow2.proactive.utils.FileToBytesConverter;
-import org.python.google.common.collect.Maps;
 import com.google.common.base.Throwables;
 
 
@@ -69,8 +67,8 @@ public class WinHPCInfrastructure extends DefaultInfrastructureManager {
      */
     @Configurable(description = "Maximum number of nodes to deploy")
     protected int maxNodes = 1;
-    /** The atomic value of max nodes */
-    protected AtomicInteger atomicMaxNodes = null;
+    /** The nodes deployed or being deployed, within the limit of max nodes */
+    protected WinHPCDeployments deployments = null;
 
     /**
      * A url of HPC basic profile web service
@@ -121,56 +119,42 @@ public class WinHPCInfrastructure extends DefaultInfrastructureManager {
     @Configurable(description = "in ms. After this timeout expired\nthe node is considered to be lost")
     protected Integer timeout = 60 * 1000;// 1 mn
 
+    /**
+     * Number of nodes started by each job, all of them in the same JVM
+     */
+    @Configurable(description = "Number of nodes started by each job,\nin a single JVM")
+    protected int nodesPerActivity = 1;
+
     /** Credentials used by remote nodes to register to the NS */
     private Credentials credentials = null;
     /** The credentials value as a string */
     private String credBase64 = null;
     /** the path of the trust store which holds hpc server's certificate */
     private String trustStorePath;
-    /** the list of submitted jobs */
-    private Map<String, EndpointReferenceType[]> submittedJobs = Maps.newHashMap();
-    /** ensures that the deploying node's timeout is not finished */
-    private Map<String, Boolean> dnTimeout = Maps.newHashMap();
-    /** to retrieve job's data from deploying node's url */
-    private Map<String, EndpointReferenceType[]> deployingNodeToEndpoint = Maps.newHashMap();
     /** the deployer instance */
-    private transient org.ow2.proactive.resourcemanager.nodesource.infrastructure.WinHPCDeployer deployer;
-    /** the refresh rate of the job's state in ms */
-    private static final int JOB_STATE_REFRESH_RATE = 1000;
-
-    /** threshold of retry in case of error/retry */
-    private static final int ERROR_HANDLE_THRESHOLD = 5;
+    private transient volatile WinHPCDeployer deployer;
+    /** polls the state of the submitted jobs until their nodes are acquired */
+    private transient WinHPCActivityMonitor activityMonitor;
 
     @Override
     public void acquireAllNodes() {
-        while (this.atomicMaxNodes.getAndDecrement() >= 1) {
+        while (this.deployments.reserve(nodesPerActivity)) {
             acquireNodeImpl();
         }
-        // we decremented one too many
-        this.atomicMaxNodes.getAndIncrement();
         logger.debug("Maximum number of node acquisition reached");
     }
 
     @Override
     public void acquireNode() {
-        if (this.atomicMaxNodes.getAndDecrement() >= 1) {
+        if (this.deployments.reserve(nodesPerActivity)) {
             acquireNodeImpl();
         } else {
-            // one decremented once too many
-            this.atomicMaxNodes.getAndIncrement();
-            logger.debug("Maximum number of node acquisition reached");
+            logger.debug("Maximum number of node acquisition reached: max nodes " + maxNodes +
+                ", current nodes " + (maxNodes - this.deployments.getAvailableSlots()));
         }
-        synchronized (submittedJobs) {
-            if (submittedJobs.size() >= maxNodes) {
-                logger.warn("Attempting to acquire nodes while maximum reached: max nodes " + maxNodes +
-                    ", current nodes " + submittedJobs.size());
-                return;
-            }
-        }
-
     }
 
-    /** async node acquisition implementation */
+    /** async node acquisition implementation, the slots of the nodes being reserved */
     private void acquireNodeImpl() {
         nodeSource.executeInParallel(new Runnable() {
             @Override
@@ -178,9 +162,7 @@ public class WinHPCInfrastructure extends DefaultInfrastructureManager {
                 try {
                     startNode();
                 } catch (Exception e) {
-                    // could handle the exception here to increment the number
-                    // of available nodes
-                    // or get it done in the handleFailedDeployment* methods...
+                    // the slots of the nodes are given back by the handleFailedDeployment* methods
                     logger.error("Could not acquire node ", e);
                     return;
                 }
@@ -189,10 +171,10 @@ public class WinHPCInfrastructure extends DefaultInfrastructureManager {
     }
 
     /**
-     * Queues a new command which starts a new node.
+     * Queues a new command which starts a new node, or {@link #nodesPerActivity} nodes in the same
+     * JVM.
      */
     private void startNode() throws RMException {
-        EndpointReferenceType[] eprs = new EndpointReferenceType[1];
         // Creates the command line builder
         CommandLineBuilder clb = this.getCommandLineBuilder();
         String nodeName = clb.getNodeName();
@@ -200,30 +182,32 @@ public class WinHPCInfrastructure extends DefaultInfrastructureManager {
         // escaping the built command if contains quotes
         String fullCommand = null;
         String obfuscatedFullCommand = null;
+        String workersOption = nodesPerActivity > 1 ? " -w " + nodesPerActivity : "";
         try {
-            fullCommand = "cmd /C \" " + clb.buildCommandLine(true).replace("\"", "\\\"") + " \"";
-            obfuscatedFullCommand = "cmd /C \" " + clb.buildCommandLine(false).replace("\"", "\\\"") + " \"";
+            fullCommand = "cmd /C \" " + (clb.buildCommandLine(true) + workersOption).replace("\"", "\\\"") +
+                " \"";
+            obfuscatedFullCommand = "cmd /C \" " +
+                (clb.buildCommandLine(false) + workersOption).replace("\"", "\\\"") + " \"";
         } catch (IOException e) {
             this.handleFailedDeployment(clb, e);
         }
 
         String dNode = super.addDeployingNode(nodeName, obfuscatedFullCommand,
                 "Node deployment on Windows HPC", timeout);
-        // we add the timeout flag
-        this.dnTimeout.put(dNode, false);
-        this.submittedJobs.put(nodeName, eprs);
-        this.deployingNodeToEndpoint.put(dNode, eprs);
+        WinHPCDeployments.Deployment deployment = this.deployments.add(nodeName, dNode, nodesPerActivity);
 
         logger.debug("Executing: " + fullCommand);
+        EndpointReferenceType epr = null;
         try {
-            eprs[0] = this.getDeployer()
+            epr = this.getDeployer()
                     .createActivity(org.ow2.proactive.resourcemanager.nodesource.infrastructure.WinHPCDeployer
-                            .createJSDLDocument(fullCommand));
+                            .createJSDLDocument(fullCommand, nodesPerActivity));
         } catch (Exception e) {
-            this.handleFailedDeployment(dNode, clb, e);
+            this.handleFailedDeployment(dNode, nodeName, e);
         }
+        deployment.setActivity(epr);
 
-        ReferenceParametersType rps = eprs[0].getReferenceParameters();
+        ReferenceParametersType rps = epr.getReferenceParameters();
         OMElement[] elements = rps.getExtraElement();
         if (logger.isDebugEnabled()) {
             for (int i = 0; i < elements.length; i++) {
@@ -231,57 +215,57 @@ public class WinHPCInfrastructure extends DefaultInfrastructureManager {
             }
         }
 
-        // getting job status to detect failed jobs
-        GetActivityStatusResponseType[] status = null;
-        String statusString = null;
-        int threshold = WinHPCInfrastructure.ERROR_HANDLE_THRESHOLD;
-        Throwable thresholdCause = null;
-        Boolean hasTimeouted = false;
-        do {
+        // the job's status is then polled along with the ones of the other jobs, to detect failed
+        // jobs and acquired nodes
+        this.getActivityMonitor().monitor(dNode, nodeName, epr);
+    }
 
+    /**
+     * Follows the deployment of a node from the state of its job.
+     *
+     * @return false once the node is acquired or its deployment failed
+     */
+    private boolean handleActivityState(String dNode, String nodeName, ActivityStateEnumeration state,
+            boolean changed) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Node " + nodeName + " deployment status - " + state);
+        }
+        if (state == ActivityStateEnumeration.Failed) {
+            // job failed
             try {
-                Thread.sleep(WinHPCInfrastructure.JOB_STATE_REFRESH_RATE);
-                status = this.getDeployer().getActivityStatuses(eprs);
-            } catch (Exception rmex) {
-                threshold--;
-                thresholdCause = rmex;
-            }
-            String currentStatus = status[0].getActivityStatus().getState().toString();
-            if (logger.isDebugEnabled()) {
-                logger.debug("Node " + nodeName + " deployment status - " + currentStatus);
-            }
-            if (status[0].getActivityStatus().getState() == ActivityStateEnumeration.Failed) {
-                // job failed
-                this.handleFailedDeployment(dNode, clb, "The job's status is failed.");
-            }
-            // if the status changed, we update it
-            if (currentStatus != null && !currentStatus.equals(statusString)) {
-                statusString = currentStatus;
-                super.updateDeployingNodeDescription(dNode, "Node deployment on Windows HPC" +
-                    System.lineSeparator() + "job's status: " + statusString);
-            }
-
-            if (super.checkNodeIsAcquiredAndDo(nodeName, null, null)) {
-                // node has been acquired, can exit
-                return;
-            } else {
-                // waiting
+                this.handleFailedDeployment(dNode, nodeName, "The job's status is failed.");
+            } catch (RMException e) {
+                logger.error("Could not acquire node " + nodeName, e);
             }
-        } while (((hasTimeouted = this.dnTimeout.get(dNode)) != null) && !hasTimeouted && threshold > 0);
-
-        // we exited the loop because of the threshold
-        if (threshold <= 0) {
-            this.handleFailedDeployment(dNode, clb, thresholdCause);
+            return false;
+        }
+        // if the status changed, we update it
+        if (changed) {
+            super.updateDeployingNodeDescription(dNode, "Node deployment on Windows HPC" +
+                System.lineSeparator() + "job's status: " + state);
         }
+        // once the node has been acquired, its job is not monitored anymore
+        if (isNodeAcquired(nodeName)) {
+            this.deployments.nodeAcquired(nodeName);
+            return false;
+        }
+        return true;
+    }
 
-        // if we exit because of a timeout
-        if (hasTimeouted != null && hasTimeouted) {
-            // we remove it
-            this.dnTimeout.remove(dNode);
-            // has been terminated during the deploying node removal
-            this.submittedJobs.remove(clb.getNodeName());
-            throw new RMException("Deploying Node " + nodeName + " not expected any more");
+    /**
+     * @return whether the node, or one of the nodes when the job starts several of them, is acquired
+     */
+    private boolean isNodeAcquired(String nodeName) {
+        if (super.checkNodeIsAcquiredAndDo(nodeName, null, null)) {
+            return true;
         }
+        // the nodes sharing a JVM are named after the first one, with their index as suffix
+        for (int i = 0; i < nodesPerActivity && nodesPerActivity > 1; i++) {
+            if (super.checkNodeIsAcquiredAndDo(nodeName + "_" + i, null, null)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -289,14 +273,15 @@ public class WinHPCInfrastructure extends DefaultInfrastructureManager {
      */
     @Override
     protected void notifyDeployingNodeLost(String pnURL) {
-        // we notify the control loop to exit
         logger.debug("Terminating the job for node " + pnURL);
-        this.dnTimeout.put(pnURL, true);
+        // the job is not monitored anymore, it has been terminated
+        this.getActivityMonitor().unmonitor(pnURL);
         // we remove the job
-        EndpointReferenceType[] epr = this.deployingNodeToEndpoint.remove(pnURL);
-        if (epr != null) {
+        WinHPCDeployments.Deployment deployment = this.deployments.removeByDeployingNode(pnURL);
+        if (deployment != null && deployment.getActivity() != null) {
             try {
-                this.getDeployer().terminateActivity(epr);
+                this.getDeployer()
+                        .terminateActivity(new EndpointReferenceType[] { deployment.getActivity() });
             } catch (RMException e) {
                 logger.error("Cannot terminate the job associated with deploying node " + pnURL, e);
             }
@@ -308,15 +293,13 @@ public class WinHPCInfrastructure extends DefaultInfrastructureManager {
      * of internal maintained structures.
      * 
      * @param dNode
-     * @param clb
+     * @param nodeName
      * @param cause
      * @throws RMException
      */
-    private void handleFailedDeployment(String dNode, CommandLineBuilder clb, String cause)
+    private void handleFailedDeployment(String dNode, String nodeName, String cause)
             throws RMException {
-        String nodeName = clb.getNodeName();
-        this.submittedJobs.remove(nodeName);
-        this.dnTimeout.remove(dNode);
+        this.deployments.removeDeployment(nodeName);
         super.declareDeployingNodeLost(dNode, cause);
         throw new RMException("The job's status is failed.");
     }
@@ -327,18 +310,18 @@ public class WinHPCInfrastructure extends DefaultInfrastructureManager {
      * 
      * @param dNode
      *            The deploying node's url to update
+     * @param nodeName
+     *            The name of the node being deployed
      * @param e
      *            the exception that caused the deployment to fail
      * @throws RMException
      */
-    private void handleFailedDeployment(String dNode, CommandLineBuilder clb, Throwable e)
+    private void handleFailedDeployment(String dNode, String nodeName, Throwable e)
             throws RMException {
         String error = Throwables.getStackTraceAsString(e);
         super.declareDeployingNodeLost(dNode,
                 "The deployment failed because of an error: " + System.lineSeparator() + error);
-        String nodeName = clb.getNodeName();
-        this.submittedJobs.remove(nodeName);
-        this.dnTimeout.remove(dNode);
+        this.deployments.removeDeployment(nodeName);
         throw new RMException("The deployment failed because of an error", e);
     }
 
@@ -362,8 +345,8 @@ public class WinHPCInfrastructure extends DefaultInfrastructureManager {
         String lostNode = super.addDeployingNode(clb.getNodeName(), command,
                 "Cannot deploy the node because of an error:" + System.lineSeparator() + error, 60000);
         super.declareDeployingNodeLost(lostNode, null);
-        String nodeName = clb.getNodeName();
-        this.submittedJobs.remove(nodeName);
+        // the nodes were not added to the deployments yet
+        this.deployments.release(nodesPerActivity);
         throw new RMException("The deployment failed because of an error", e);
     }
 
@@ -372,13 +355,14 @@ public class WinHPCInfrastructure extends DefaultInfrastructureManager {
      * username parameters[3] = password parameters[4] = keystore parameters[5]
      * = keystore's password parameters[6] = java path parameters[7] = rmPath
      * parameters[8] = credentials parameters[9] = java options parameters[10] =
-     * extra classpath parameters[11] = timeout
+     * extra classpath parameters[11] = timeout parameters[12] = nodes per
+     * activity (optional)
      */
     @Override
     public void configure(Object... parameters) {
         try {
             this.maxNodes = Integer.parseInt(parameters[0].toString());
-            this.atomicMaxNodes = new AtomicInteger(this.maxNodes);
+            this.deployments = new WinHPCDeployments(this.maxNodes);
         } catch (NumberFormatException e) {
             throw new IllegalArgumentException("Max Nodes value has to be integer");
         }
@@ -418,6 +402,17 @@ public class WinHPCInfrastructure extends DefaultInfrastructureManager {
             throw new IllegalArgumentException("Timeout value must be an number");
         }
 
+        if (parameters.length > 12 && parameters[12] != null) {
+            try {
+                this.nodesPerActivity = Integer.parseInt(parameters[12].toString().trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Nodes per activity value has to be integer");
+            }
+            if (this.nodesPerActivity < 1 || this.nodesPerActivity > this.maxNodes) {
+                throw new IllegalArgumentException("Nodes per activity must be between 1 and max nodes");
+            }
+        }
+
         // Set up the environment for the SSL verificaton
         System.setProperty("javax.net.ssl.trustStore", trustStorePath);
         System.setProperty("javax.net.ssl.keyStorePassword", trustStorePassword);
@@ -426,14 +421,30 @@ public class WinHPCInfrastructure extends DefaultInfrastructureManager {
 
     @Override
     public void shutDown() {
+        synchronized (this) {
+            if (this.activityMonitor != null) {
+                this.activityMonitor.shutdown();
+            }
+        }
         new File(trustStorePath).delete();
-        for (EndpointReferenceType[] ert : submittedJobs.values()) {
+        List<EndpointReferenceType> activities = this.deployments.getActivities();
+        // no deployer means no job was ever submitted
+        WinHPCDeployer currentDeployer = this.deployer;
+        if (currentDeployer == null) {
+            return;
+        }
+        if (!activities.isEmpty()) {
             try {
-                this.getDeployer().terminateActivity(ert);
+                int terminated = currentDeployer.terminateActivities(activities);
+                if (terminated < activities.size()) {
+                    logger.warn((activities.size() - terminated) + " of the " + activities.size() +
+                        " jobs were not terminated");
+                }
             } catch (Exception e) {
-                logger.warn("Cannot remove file " + trustStorePath, e);
+                logger.warn("Cannot terminate the jobs", e);
             }
         }
+        currentDeployer.close();
     }
 
     /**
@@ -443,18 +454,25 @@ public class WinHPCInfrastructure extends DefaultInfrastructureManager {
         // the job will be finished when JVM is killed
         String nodeName = node.getNodeInformation().getName();
         logger.debug("Removing node " + nodeName);
-        if (submittedJobs.remove(nodeName) != null) {
-            this.atomicMaxNodes.incrementAndGet();
-            // the job is automatically finished
-        } else {
-            logger.warn("Unknown node " + node.getNodeInformation().getName());
+        WinHPCDeployments.NodeRemoval removal = this.deployments.removeNode(nodeName);
+        if (removal == WinHPCDeployments.NodeRemoval.UNKNOWN) {
+            logger.warn("Unknown node " + nodeName);
+        } else if (removal == WinHPCDeployments.NodeRemoval.ALREADY_REMOVED) {
+            logger.debug("Node " + nodeName + " was already removed");
         }
+        // the JVM is killed along with its last registered node only, which finishes the job
+        final boolean lastNode = removal == WinHPCDeployments.NodeRemoval.UNKNOWN ||
+            removal == WinHPCDeployments.NodeRemoval.LAST_REMOVED;
         final Node n = node;
         this.nodeSource.executeInParallel(new Runnable() {
             @Override
             public void run() {
                 try {
-                    n.getProActiveRuntime().killRT(false);
+                    if (lastNode) {
+                        n.getProActiveRuntime().killRT(false);
+                    } else {
+                        n.getProActiveRuntime().killNode(n.getNodeInformation().getName());
+                    }
                 } catch (Exception e) {
                     logger.trace("An exception occurred during node removal", e);
                 }
@@ -462,6 +480,14 @@ public class WinHPCInfrastructure extends DefaultInfrastructureManager {
         });
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void notifyAcquiredNode(Node node) throws RMException {
+        this.deployments.nodeRegistered(node.getNodeInformation().getName());
+    }
+
     @Override
     public String getDescription() {
         return "Windows HPC infrasturcure";
@@ -496,22 +522,59 @@ public class WinHPCInfrastructure extends DefaultInfrastructureManager {
     }
 
     /**
-     * @return the win hpc deployer instance
+     * @return the monitor of the jobs submitted by this infrastructure, started with the first job
+     */
+    private synchronized WinHPCActivityMonitor getActivityMonitor() {
+        if (this.activityMonitor == null) {
+            this.activityMonitor = new WinHPCActivityMonitor(new WinHPCActivityMonitor.ActivityHandler() {
+                @Override
+                public GetActivityStatusResponseType[] getActivityStatuses(EndpointReferenceType[] activities)
+                        throws Exception {
+                    return getDeployer().getActivityStatuses(activities);
+                }
+
+                @Override
+                public boolean handleState(String deployingNode, String nodeName,
+                        ActivityStateEnumeration state, boolean changed) {
+                    return handleActivityState(deployingNode, nodeName, state, changed);
+                }
+
+                @Override
+                public void handleError(String deployingNode, String nodeName, Throwable cause) {
+                    try {
+                        handleFailedDeployment(deployingNode, nodeName, cause);
+                    } catch (RMException e) {
+                        logger.error("Could not acquire node " + nodeName, e);
+                    }
+                }
+            });
+        }
+        return this.activityMonitor;
+    }
+
+    /**
+     * @return the win hpc deployer instance, shared by all the threads without locking once created
      * @throws RMException
      */
-    private synchronized org.ow2.proactive.resourcemanager.nodesource.infrastructure.WinHPCDeployer getDeployer()
-            throws RMException {
-        if (this.deployer == null) {
-            try {
-                this.deployer = new org.ow2.proactive.resourcemanager.nodesource.infrastructure.WinHPCDeployer(
-                    new File(PAResourceManagerProperties.RM_HOME.getValueAsString(),
-                        "config" + File.separator + "rm" + File.separator + "deployment" + File.separator +
-                            "winhpc" + File.separator).getAbsolutePath(),
-                    serviceUrl, userName, password);
-            } catch (Exception e) {
-                throw new RMException("Cannot instantiate the win hpc deployer", e);
+    private WinHPCDeployer getDeployer() throws RMException {
+        WinHPCDeployer result = this.deployer;
+        if (result == null) {
+            synchronized (this) {
+                result = this.deployer;
+                if (result == null) {
+                    try {
+                        result = new WinHPCDeployer(
+                            new File(PAResourceManagerProperties.RM_HOME.getValueAsString(),
+                                "config" + File.separator + "rm" + File.separator + "deployment" +
+                                    File.separator + "winhpc" + File.separator).getAbsolutePath(),
+                            serviceUrl, userName, password);
+                    } catch (Exception e) {
+                        throw new RMException("Cannot instantiate the win hpc deployer", e);
+                    }
+                    this.deployer = result;
+                }
             }
         }
-        return this.deployer;
+        return result;
     }
 }
@@ -0,0 +1,229 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.ActivityStateEnumeration;
+import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.ActivityStatusType;
+import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.EndpointReferenceType;
+import org.ggf.schemas.bes._2006._08.bes_factory.HPCBPServiceStub.GetActivityStatusResponseType;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+
+public class WinHPCActivityMonitorTest {
+
+    private ScheduledExecutorService scheduler;
+
+    private final List<Runnable> scheduledRounds = Lists.newArrayList();
+
+    private final List<Long> refreshRates = Lists.newArrayList();
+
+    private TestActivityHandler handler;
+
+    private WinHPCActivityMonitor activityMonitor;
+
+    private EndpointReferenceType activity;
+
+    @Before
+    public void init() {
+        scheduler = mock(ScheduledExecutorService.class);
+        when(scheduler.schedule(any(Runnable.class), anyLong(), any(TimeUnit.class)))
+                .thenAnswer(new Answer<ScheduledFuture<?>>() {
+                    @Override
+                    public ScheduledFuture<?> answer(InvocationOnMock invocation) {
+                        scheduledRounds.add((Runnable) invocation.getArguments()[0]);
+                        refreshRates.add((Long) invocation.getArguments()[1]);
+                        return null;
+                    }
+                });
+        handler = new TestActivityHandler();
+        activityMonitor = new WinHPCActivityMonitor(handler, scheduler);
+        activity = mock(EndpointReferenceType.class);
+    }
+
+    @Test
+    public void testRefreshRateBacksOffWhileNothingChanges() {
+        handler.states.put(activity, ActivityStateEnumeration.Running);
+        activityMonitor.monitor("dnode", "node", activity);
+
+        for (int i = 0; i < 6; i++) {
+            runRound();
+        }
+
+        assertThat(refreshRates, is((List<Long>) Lists.newArrayList(1000L, 1000L, 2000L, 4000L, 8000L, 10000L,
+                10000L)));
+        assertThat(handler.handledStates.get(0), is("node Running changed"));
+        assertThat(handler.handledStates.get(1), is("node Running"));
+    }
+
+    @Test
+    public void testRefreshRateIsResetWhenAStateChanges() {
+        handler.states.put(activity, ActivityStateEnumeration.Pending);
+        activityMonitor.monitor("dnode", "node", activity);
+        runRound();
+        runRound();
+        runRound();
+
+        handler.states.put(activity, ActivityStateEnumeration.Running);
+        runRound();
+
+        assertThat(lastRefreshRate(), is(WinHPCActivityMonitor.MIN_REFRESH_RATE));
+    }
+
+    @Test
+    public void testRefreshRateIsResetWhenAnActivityIsAdded() {
+        handler.states.put(activity, ActivityStateEnumeration.Running);
+        activityMonitor.monitor("dnode", "node", activity);
+        runRound();
+        runRound();
+        runRound();
+
+        // no state changes in the next round, the new activity having no status yet
+        activityMonitor.monitor("otherDnode", "otherNode", mock(EndpointReferenceType.class));
+
+        // already scheduled, the new activity is polled with the next round
+        assertThat(scheduledRounds.size(), is(1));
+        runRound();
+
+        assertThat(lastRefreshRate(), is(WinHPCActivityMonitor.MIN_REFRESH_RATE));
+    }
+
+    @Test
+    public void testMonitoringStopsWhenTheHandlerSaysSo() {
+        handler.states.put(activity, ActivityStateEnumeration.Failed);
+        activityMonitor.monitor("dnode", "node", activity);
+
+        runRound();
+
+        assertThat(activityMonitor.size(), is(0));
+        assertThat(scheduledRounds.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testGivesUpAfterTooManyErrors() {
+        handler.error = new Exception("scheduler unreachable");
+        activityMonitor.monitor("dnode", "node", activity);
+
+        for (int i = 1; i < WinHPCActivityMonitor.ERROR_HANDLE_THRESHOLD; i++) {
+            runRound();
+        }
+        assertThat(handler.handledErrors.isEmpty(), is(true));
+        assertThat(activityMonitor.size(), is(1));
+
+        runRound();
+
+        assertThat(handler.handledErrors,
+                is((List<String>) Lists.newArrayList("node scheduler unreachable")));
+        assertThat(activityMonitor.size(), is(0));
+        assertThat(scheduledRounds.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testMissingStatusIsHandledAsAnError() {
+        EndpointReferenceType otherActivity = mock(EndpointReferenceType.class);
+        handler.states.put(otherActivity, ActivityStateEnumeration.Running);
+        activityMonitor.monitor("dnode", "node", activity);
+        activityMonitor.monitor("otherDnode", "otherNode", otherActivity);
+
+        for (int i = 0; i < WinHPCActivityMonitor.ERROR_HANDLE_THRESHOLD; i++) {
+            runRound();
+        }
+
+        assertThat(handler.handledErrors,
+                is((List<String>) Lists.newArrayList("node No status returned for the activity")));
+        assertThat(activityMonitor.size(), is(1));
+        assertThat(handler.handledStates.contains("otherNode Running changed"), is(true));
+    }
+
+    @Test
+    public void testMonitorAfterShutdownIsIgnored() {
+        activityMonitor.shutdown();
+
+        activityMonitor.monitor("dnode", "node", activity);
+
+        assertThat(activityMonitor.size(), is(0));
+        verify(scheduler, never()).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    public void testNoRoundIsScheduledAfterShutdown() {
+        handler.states.put(activity, ActivityStateEnumeration.Running);
+        activityMonitor.monitor("dnode", "node", activity);
+
+        activityMonitor.shutdown();
+        runRound();
+
+        assertThat(scheduledRounds.isEmpty(), is(true));
+    }
+
+    private void runRound() {
+        assertThat(scheduledRounds.size(), is(1));
+        scheduledRounds.remove(0).run();
+    }
+
+    private long lastRefreshRate() {
+        return refreshRates.get(refreshRates.size() - 1);
+    }
+
+    private static class TestActivityHandler implements WinHPCActivityMonitor.ActivityHandler {
+
+        // the activities without state get no status
+        private final Map<EndpointReferenceType, ActivityStateEnumeration> states = Maps.newHashMap();
+
+        private final List<String> handledStates = Lists.newArrayList();
+
+        private final List<String> handledErrors = Lists.newArrayList();
+
+        private Exception error;
+
+        @Override
+        public GetActivityStatusResponseType[] getActivityStatuses(EndpointReferenceType[] activities)
+                throws Exception {
+            if (error != null) {
+                throw error;
+            }
+            GetActivityStatusResponseType[] statuses = new GetActivityStatusResponseType[activities.length];
+            for (int i = 0; i < activities.length; i++) {
+                ActivityStateEnumeration state = states.get(activities[i]);
+                if (state != null) {
+                    ActivityStatusType status = mock(ActivityStatusType.class);
+                    when(status.getState()).thenReturn(state);
+                    statuses[i] = mock(GetActivityStatusResponseType.class);
+                    when(statuses[i].getActivityStatus()).thenReturn(status);
+                }
+            }
+            return statuses;
+        }
+
+        @Override
+        public boolean handleState(String deployingNode, String nodeName, ActivityStateEnumeration state,
+                boolean changed) {
+            handledStates.add(nodeName + " " + state + (changed ? " changed" : ""));
+            return state != ActivityStateEnumeration.Failed;
+        }
+
+        @Override
+        public void handleError(String deployingNode, String nodeName, Throwable cause) {
+            handledErrors.add(nodeName + " " + cause.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+
+public class WinHPCDeploymentsTest {
+
+    private static final int THREADS = 8;
+
+    private WinHPCDeployments deployments;
+
+    private ExecutorService executor;
+
+    @Before
+    public void init() {
+        deployments = new WinHPCDeployments(10);
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testReserveAndRelease() {
+        assertThat(deployments.reserve(4), is(true));
+        assertThat(deployments.reserve(7), is(false));
+        assertThat(deployments.getAvailableSlots(), is(6));
+
+        deployments.release(4);
+
+        assertThat(deployments.getAvailableSlots(), is(10));
+    }
+
+    @Test
+    public void testConcurrentReservationsNeverExceedMaxNodes() throws Exception {
+        final AtomicInteger reserved = new AtomicInteger();
+
+        runConcurrently(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    if (deployments.reserve(1)) {
+                        reserved.incrementAndGet();
+                    }
+                }
+            }
+        });
+
+        assertThat(reserved.get(), is(10));
+        assertThat(deployments.getAvailableSlots(), is(0));
+    }
+
+    @Test
+    public void testRemoveNode() {
+        deployments.reserve(1);
+        deployments.add("node", "dnode", 1);
+
+        assertThat(deployments.removeNode("node"), is(WinHPCDeployments.NodeRemoval.LAST_REMOVED));
+        assertThat(deployments.getAvailableSlots(), is(10));
+        assertThat(deployments.size(), is(0));
+        assertThat(deployments.removeNode("node"), is(WinHPCDeployments.NodeRemoval.UNKNOWN));
+        assertThat(deployments.getAvailableSlots(), is(10));
+    }
+
+    @Test
+    public void testNodeRemovedTwiceGivesItsSlotBackOnce() {
+        deployments.reserve(3);
+        deployments.add("node", "dnode", 3);
+        deployments.nodeRegistered("node_0");
+        deployments.nodeRegistered("node_1");
+
+        assertThat(deployments.removeNode("node_0"), is(WinHPCDeployments.NodeRemoval.REMOVED));
+        assertThat(deployments.removeNode("node_0"), is(WinHPCDeployments.NodeRemoval.ALREADY_REMOVED));
+
+        assertThat(deployments.getAvailableSlots(), is(8));
+        assertThat(deployments.size(), is(1));
+    }
+
+    @Test
+    public void testUnknownNode() {
+        deployments.reserve(2);
+        deployments.add("node", "dnode", 2);
+
+        assertThat(deployments.removeNode("other"), is(WinHPCDeployments.NodeRemoval.UNKNOWN));
+        assertThat(deployments.removeNode("node_x"), is(WinHPCDeployments.NodeRemoval.UNKNOWN));
+        assertThat(deployments.getAvailableSlots(), is(8));
+    }
+
+    @Test
+    public void testLastRegisteredNodeGivesBackTheSlotsOfUnregisteredNodes() {
+        deployments.reserve(4);
+        deployments.add("node", "dnode", 4);
+        deployments.nodeRegistered("node_0");
+        deployments.nodeRegistered("node_1");
+
+        assertThat(deployments.removeNode("node_0"), is(WinHPCDeployments.NodeRemoval.REMOVED));
+        assertThat(deployments.getAvailableSlots(), is(7));
+
+        assertThat(deployments.removeNode("node_1"), is(WinHPCDeployments.NodeRemoval.LAST_REMOVED));
+        assertThat(deployments.getAvailableSlots(), is(10));
+        assertThat(deployments.size(), is(0));
+    }
+
+    @Test
+    public void testDeploymentCannotBeRemovedByDeployingNodeOnceAcquired() {
+        deployments.reserve(1);
+        deployments.add("node", "dnode", 1);
+
+        deployments.nodeAcquired("node");
+
+        assertThat(deployments.removeByDeployingNode("dnode"), is(nullValue()));
+        assertThat(deployments.size(), is(1));
+        assertThat(deployments.getAvailableSlots(), is(9));
+    }
+
+    @Test
+    public void testConcurrentRemovalsGiveEachSlotBackOnce() throws Exception {
+        for (int round = 0; round < 50; round++) {
+            final String nodeName = "node" + round;
+            final String deployingNode = "dnode" + round;
+            deployments.reserve(4);
+            deployments.add(nodeName, deployingNode, 4);
+            deployments.nodeRegistered(nodeName + "_0");
+            deployments.nodeRegistered(nodeName + "_1");
+
+            runConcurrently(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 4; i++) {
+                        deployments.removeNode(nodeName + "_" + i);
+                    }
+                    deployments.removeDeployment(nodeName);
+                    deployments.removeByDeployingNode(deployingNode);
+                }
+            });
+
+            assertThat(deployments.getAvailableSlots(), is(10));
+            assertThat(deployments.size(), is(0));
+        }
+    }
+
+    @Test
+    public void testConcurrentDeploymentsAndRemovalsKeepTheSlotsBalanced() throws Exception {
+        final AtomicInteger counter = new AtomicInteger();
+
+        runConcurrently(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 200; i++) {
+                    if (deployments.reserve(2)) {
+                        String nodeName = "node" + counter.incrementAndGet();
+                        deployments.add(nodeName, "d" + nodeName, 2);
+                        deployments.removeNode(nodeName + "_0");
+                        deployments.removeNode(nodeName + "_1");
+                    }
+                }
+            }
+        });
+
+        assertThat(deployments.getAvailableSlots(), is(10));
+        assertThat(deployments.size(), is(0));
+        assertThat(deployments.getActivities().isEmpty(), is(true));
+    }
+
+    /**
+     * Runs the task from all the threads at once and waits for them to finish.
+     */
+    private void runConcurrently(final Runnable task) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> results = Lists.newArrayList();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    task.run();
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Void> result : results) {
+            result.get();
+        }
+    }
+
+}